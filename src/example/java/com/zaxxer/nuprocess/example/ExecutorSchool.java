@@ -0,0 +1,96 @@
+package com.zaxxer.nuprocess.example;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.zaxxer.nuprocess.NuExecutor;
+import com.zaxxer.nuprocess.NuExecutor.Result;
+import com.zaxxer.nuprocess.NuExecutor.ResultHandler;
+import com.zaxxer.nuprocess.NuProcessBuilder;
+
+/**
+ * This class measures how the throughput of NuExecutor scales with the
+ * number of processes it keeps running, from 1 up to twice the number of
+ * available processors.  Each input runs a small CPU-bound shell loop, so
+ * that the processes compete for the cores rather than for the event
+ * processor.  Results are checked and delivered in input order, with a
+ * reorder window of twice the number of running processes.
+ *
+ * @author Brett Wooldridge
+ */
+public class ExecutorSchool
+{
+    public static void main(String... args) throws InterruptedException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: java com.zaxxer.nuprocess.example.ExecutorSchool <num of inputs> [<loop iterations>]");
+            System.exit(0);
+        }
+
+        final int INPUTS = Integer.valueOf(args[0]);
+        String iterations = (args.length > 1) ? args[1] : "20000";
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        NuProcessBuilder pb = new NuProcessBuilder("sh", "-c", "i=0; while [ $i -lt $1 ]; do i=$((i+1)); done; echo $0");
+
+        double baseline = 0;
+        for (int processes = 1; processes <= 2 * cores; processes *= 2)
+        {
+            NuExecutor executor = new NuExecutor(pb, processes);
+            executor.setReorderWindow(2 * processes);
+
+            final long[] expected = new long[1];
+            long start = System.currentTimeMillis();
+            executor.run(inputs(INPUTS, iterations), new ResultHandler() {
+                @Override
+                public void onResult(Result result)
+                {
+                    byte[] bytes = new byte[result.getStdout().remaining()];
+                    result.getStdout().get(bytes);
+                    if (result.getExitCode() != 0 || result.getIndex() != expected[0]++ || !new String(bytes).trim().equals(String.valueOf(result.getIndex())))
+                    {
+                        System.err.println("Unexpected result for input " + result.getIndex());
+                        System.exit(-1);
+                    }
+                }
+            });
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            double throughput = INPUTS * 1000.0 / elapsed;
+            if (processes == 1)
+            {
+                baseline = throughput;
+            }
+            System.out.printf("%3d processes: %8.1f inputs/s, %5.2fx (%d cores)\n", processes, throughput, throughput / baseline, cores);
+        }
+
+        System.exit(0);
+    }
+
+    private static Iterator<List<String>> inputs(final int count, final String iterations)
+    {
+        return new Iterator<List<String>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < count;
+            }
+
+            @Override
+            public List<String> next()
+            {
+                return Arrays.asList(String.valueOf(next++), iterations);
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
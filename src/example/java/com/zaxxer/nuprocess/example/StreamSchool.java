@@ -0,0 +1,190 @@
+package com.zaxxer.nuprocess.example;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+import com.zaxxer.nuprocess.NuProcess;
+import com.zaxxer.nuprocess.NuProcessBuilder;
+import com.zaxxer.nuprocess.NuStreamHandler;
+
+/**
+ * This class runs the OldSchool benchmark with the blocking streams of
+ * NuStreamHandler instead of the streams of java.lang.Process: the same
+ * pumper threads read and write the same data, but the pipes themselves are
+ * served by the NuProcess event processors.  Comparing the three examples
+ * shows the cost of the stream hand-off over the NuSchool callbacks, and
+ * its gain over the native blocking reads and writes of OldSchool.
+ *
+ * @author Brett Wooldridge
+ */
+public class StreamSchool
+{
+    public static void main(String... args)
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: java com.zaxxer.nuprocess.example.StreamSchool <num of processes>");
+            System.exit(0);
+        }
+
+        int PROCESSES = Integer.valueOf(args[0]);
+
+        ThreadPoolExecutor outExecutor = new ThreadPoolExecutor(PROCESSES, PROCESSES, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        ThreadPoolExecutor inExecutor = new ThreadPoolExecutor(PROCESSES, PROCESSES, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+        String command = "/bin/cat";
+        if (System.getProperty("os.name").toLowerCase().contains("win"))
+        {
+            command = "src\\test\\java\\org\\nuprocess\\cat.exe";
+        }
+
+        NuProcessBuilder pb = new NuProcessBuilder(command);
+
+        long start = System.currentTimeMillis();
+        long maxFreeMem = 0;
+
+        for (int times = 0; times < 10; times++)
+        {
+            NuProcess[] processes = new NuProcess[PROCESSES];
+            OutPumper[] outPumpers = new OutPumper[PROCESSES];
+            Future<?>[] outFutures = new Future<?>[PROCESSES];
+
+            CyclicBarrier startBarrier = new CyclicBarrier(PROCESSES);
+            try
+            {
+                for (int i = 0; i < PROCESSES; i++)
+                {
+                    NuStreamHandler handler = new NuStreamHandler();
+                    pb.setProcessListener(handler);
+                    processes[i] = pb.start();
+
+                    // The streams hand over whole chunks, so no BufferedInputStream on the output side
+                    outPumpers[i] = new OutPumper(handler.getInputStream());
+                    outFutures[i] = outExecutor.submit(outPumpers[i]);
+                    inExecutor.execute(new InPumper(startBarrier, new BufferedOutputStream(handler.getOutputStream(), 65536)));
+                }
+
+                for (NuProcess process : processes)
+                {
+                    maxFreeMem = Math.max(maxFreeMem, Runtime.getRuntime().freeMemory());
+                    if (process.waitFor(0, TimeUnit.SECONDS) != 0)
+                    {
+                        System.err.println("Exit code not zero (0)");
+                        System.exit(-1);
+                    }
+                }
+
+                for (int i = 0; i < PROCESSES; i++)
+                {
+                    // The process can exit before its pumper has read the last chunks
+                    outFutures[i].get();
+                    if (outPumpers[i].getAdler() != 4237270634l)
+                    {
+                        System.err.println("Adler32 mismatch between written and read");
+                        System.exit(-1);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace(System.err);
+                System.exit(-1);
+            }
+        }
+
+        System.out.printf("Maximum memory used: %d\n", Runtime.getRuntime().totalMemory() - maxFreeMem);
+        System.out.printf("Total execution time (ms): %d\n", (System.currentTimeMillis() - start));
+        System.exit(0);
+    }
+
+    /**
+     * Writes the same 60MB as the InPumper of OldSchool, once every pumper of
+     * the iteration is ready.
+     */
+    private static class InPumper implements Runnable
+    {
+        private static final byte[] bytes;
+        private final CyclicBarrier startBarrier;
+        private final OutputStream outputStream;
+
+        static
+        {
+            // Create 600K of data.
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 6000; i++)
+            {
+                sb.append("1234567890");
+            }
+            bytes = sb.toString().getBytes();
+        }
+
+        InPumper(CyclicBarrier startBarrier, OutputStream outputStream)
+        {
+            this.startBarrier = startBarrier;
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                startBarrier.await();
+                for (int i = 0; i < 100; i++)
+                {
+                    outputStream.write(bytes);
+                }
+
+                outputStream.close();
+            }
+            catch (Exception e)
+            {
+                System.err.println(e);
+            }
+        }
+    }
+
+    private static class OutPumper implements Runnable
+    {
+        private final InputStream inputStream;
+        private final Adler32 readAdler32;
+
+        OutPumper(InputStream inputStream)
+        {
+            this.inputStream = inputStream;
+            this.readAdler32 = new Adler32();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                byte[] buf = new byte[65536];
+                int rc;
+                while ((rc = inputStream.read(buf)) != -1)
+                {
+                    readAdler32.update(buf, 0, rc);
+                }
+
+                inputStream.close();
+            }
+            catch (Exception e)
+            {
+                System.err.println(e);
+            }
+        }
+
+        long getAdler()
+        {
+            return readAdler32.getValue();
+        }
+    }
+}
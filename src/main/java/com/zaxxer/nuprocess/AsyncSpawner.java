@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+
+/**
+ * Spawns the processes of {@link NuProcessBuilder#startAsync()} on dedicated threads.  A spawner
+ * thread takes every request that is queued when it wakes up, up to {@value #MAX_BATCH}, so that
+ * requests arriving together cost a single wakeup.  The requests that share a factory, an environment
+ * and options are spawned with one {@link NuProcessFactory#createProcesses} call, which takes the spawn
+ * lock and prepares the spawn attributes and environment once for all of them.
+ * <p>
+ * The number of spawner threads is set by the {@code com.zaxxer.nuprocess.spawnerThreads} system
+ * property, one by default.  They are started by the first request.
+ *
+ * @author Brett Wooldridge
+ */
+final class AsyncSpawner
+{
+   static final int MAX_BATCH = 64;
+
+   private static final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+   private static boolean started;
+
+   private AsyncSpawner() {
+   }
+
+   /**
+    * Queue a spawn request.
+    *
+    * @return the future completed with the process, see {@link NuProcessBuilder#startAsync()}
+    */
+   static NuFuture<NuProcess> submit(NuProcessFactory factory, List<String> command, String[] env, NuProcessHandler processListener,
+                                     SpawnOptions options)
+   {
+      startThreads();
+
+      Request request = new Request(factory, command, env, processListener, options);
+      queue.add(request);
+      return request.future;
+   }
+
+   private static synchronized void startThreads()
+   {
+      if (started) {
+         return;
+      }
+
+      int numThreads = Math.max(1, Integer.getInteger("com.zaxxer.nuprocess.spawnerThreads", 1));
+      for (int i = 0; i < numThreads; i++) {
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+               spawnLoop();
+            }
+         }, "NuSpawner" + i);
+         thread.setDaemon(true);
+         thread.start();
+      }
+      started = true;
+   }
+
+   private static void spawnLoop()
+   {
+      List<Request> batch = new ArrayList<Request>(MAX_BATCH);
+      while (true) {
+         try {
+            batch.add(queue.take());
+         }
+         catch (InterruptedException e) {
+            // Daemon threads are not interrupted by us, keep serving the queue
+            continue;
+         }
+
+         queue.drainTo(batch, MAX_BATCH - 1);
+         spawnBatch(batch);
+         batch.clear();
+      }
+   }
+
+   private static void spawnBatch(List<Request> batch)
+   {
+      List<Request> group = new ArrayList<Request>();
+      boolean[] grouped = new boolean[batch.size()];
+      for (int i = 0; i < batch.size(); i++) {
+         if (grouped[i]) {
+            continue;
+         }
+
+         Request first = batch.get(i);
+         group.add(first);
+         for (int j = i + 1; j < batch.size(); j++) {
+            if (!grouped[j] && first.canShareSpawn(batch.get(j))) {
+               grouped[j] = true;
+               group.add(batch.get(j));
+            }
+         }
+
+         if (group.size() == 1) {
+            first.spawn();
+         }
+         else {
+            spawnGroup(group);
+         }
+         group.clear();
+      }
+   }
+
+   /**
+    * Spawn requests that share a factory, an environment and options in one call.  If the call throws,
+    * the processes that were spawned before the failure are told apart from the others by their
+    * handlers, which see {@code onPreStart} without a launch failure.
+    */
+   private static void spawnGroup(List<Request> group)
+   {
+      List<Request> requests = new ArrayList<Request>(group.size());
+      List<List<String>> commands = new ArrayList<List<String>>(group.size());
+      List<GroupHandler> handlers = new ArrayList<GroupHandler>(group.size());
+      for (Request request : group) {
+         if (request.future.isDone()) {
+            // Cancelled while queued
+            continue;
+         }
+         requests.add(request);
+         commands.add(request.command);
+         handlers.add(new GroupHandler(request.processListener));
+      }
+
+      if (requests.isEmpty()) {
+         return;
+      }
+
+      Request first = requests.get(0);
+      List<NuProcess> processes = null;
+      Throwable failure = null;
+      try {
+         processes = first.factory.createProcesses(commands, first.env, handlers, first.options);
+      }
+      catch (Throwable t) {
+         failure = t;
+      }
+
+      for (int i = 0; i < requests.size(); i++) {
+         NuFuture<NuProcess> future = requests.get(i).future;
+         GroupHandler handler = handlers.get(i);
+         if (failure == null) {
+            future.complete(processes.get(i));
+         }
+         else if (handler.process != null && !handler.launchFailed) {
+            future.complete(handler.process);
+         }
+         else {
+            future.completeExceptionally(failure);
+         }
+      }
+   }
+
+   private static final class Request
+   {
+      final NuProcessFactory factory;
+      final List<String> command;
+      final String[] env;
+      final NuProcessHandler processListener;
+      final SpawnOptions options;
+      final NuFuture<NuProcess> future;
+
+      Request(NuProcessFactory factory, List<String> command, String[] env, NuProcessHandler processListener, SpawnOptions options) {
+         this.factory = factory;
+         this.command = command;
+         this.env = env;
+         this.processListener = processListener;
+         this.options = options;
+         this.future = new NuFuture<NuProcess>();
+      }
+
+      boolean canShareSpawn(Request other)
+      {
+         return factory == other.factory && options.equals(other.options) && Arrays.equals(env, other.env);
+      }
+
+      void spawn()
+      {
+         if (future.isDone()) {
+            // Cancelled while queued
+            return;
+         }
+
+         try {
+            future.complete(factory.createProcess(command, env, processListener, options));
+         }
+         catch (Throwable t) {
+            future.completeExceptionally(t);
+         }
+      }
+   }
+
+   /**
+    * The handler of a process spawned in a group, which tells whether the launch failed.  Once the
+    * process has started, it hands the process over to the handler of the request.
+    */
+   private static final class GroupHandler implements NuChannelHandler
+   {
+      private final NuProcessHandler delegate;
+      private volatile NuProcess process;
+      private volatile boolean started;
+      private volatile boolean launchFailed;
+
+      GroupHandler(NuProcessHandler delegate) {
+         this.delegate = delegate;
+      }
+
+      @Override
+      public void onPreStart(NuProcess nuProcess)
+      {
+         process = nuProcess;
+         delegate.onPreStart(nuProcess);
+      }
+
+      @Override
+      public void onStart(NuProcess nuProcess)
+      {
+         started = true;
+         nuProcess.setProcessHandler(delegate);
+         delegate.onStart(nuProcess);
+      }
+
+      @Override
+      public void onExit(int exitCode)
+      {
+         if (!started && exitCode == Integer.MIN_VALUE) {
+            launchFailed = true;
+         }
+         delegate.onExit(exitCode);
+      }
+
+      @Override
+      public void onStdout(ByteBuffer buffer, boolean closed)
+      {
+         delegate.onStdout(buffer, closed);
+      }
+
+      @Override
+      public void onStderr(ByteBuffer buffer, boolean closed)
+      {
+         delegate.onStderr(buffer, closed);
+      }
+
+      @Override
+      public boolean onStdinReady(ByteBuffer buffer)
+      {
+         return delegate.onStdinReady(buffer);
+      }
+
+      @Override
+      public void onChannel(int fd, ByteBuffer buffer, boolean closed)
+      {
+         // Only called when the process has channels, which requires a NuChannelHandler
+         ((NuChannelHandler) delegate).onChannel(fd, buffer, closed);
+      }
+   }
+}
@@ -24,7 +24,7 @@ import java.nio.ByteBuffer;
  * 
  * @author Brett Wooldridge
  */
-public abstract class NuAbstractProcessHandler implements NuProcessHandler
+public abstract class NuAbstractProcessHandler implements NuChannelHandler
 {
    /** {@inheritDoc} */
    @Override
@@ -65,4 +65,12 @@ public abstract class NuAbstractProcessHandler implements NuProcessHandler
    {
       return false;
    }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onChannel(int fd, ByteBuffer buffer, boolean closed)
+   {
+      // Ensure we consume the entire buffer in case it's not used.
+      buffer.position(buffer.limit());
+   }
 }
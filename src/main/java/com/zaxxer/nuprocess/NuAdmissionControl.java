@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.util.concurrent.TimeUnit;
+
+import com.zaxxer.nuprocess.internal.AdmissionControl;
+
+/**
+ * Runtime-wide admission control of process launches, which keeps them within the descriptor and
+ * process limits of the Java process, so that a burst of launches waits or fails up front rather than
+ * with {@code EMFILE} or {@code EAGAIN} from {@code pipe()} or {@code posix_spawn()} halfway through.
+ * <p>
+ * Every launch needs a known number of descriptors in the Java process, the ends of its pipes, and
+ * a process.  The budgets are taken from {@code RLIMIT_NOFILE} and {@code RLIMIT_NPROC} when this
+ * class is first used: the descriptor budget is the soft limit less the descriptors open at that
+ * moment, and both budgets leave a headroom for the rest of the application, 64 unless the
+ * {@code com.zaxxer.nuprocess.admissionHeadroom} system property says otherwise.  Only the processes
+ * started by NuProcess are counted, while {@code RLIMIT_NPROC} counts every process of the user, so
+ * the process budget may need to be lowered with {@link #setBudgets(int, int)}.  The descriptors are
+ * given back as the spawn and the process close them, and the process when it has exited.
+ * <p>
+ * With the {@link Policy#NONE} policy, the default, launches are only counted.  With
+ * {@link Policy#QUEUE}, a launch that does not fit waits in line for running processes to exit, and
+ * with {@link Policy#REJECT}, it fails immediately.  A rejected launch throws a
+ * {@link NuAdmissionException} from {@link NuProcessBuilder#start()}, or completes the future of
+ * {@link NuProcessBuilder#startAsync()} with it, and its handler is told that the process exited with
+ * {@code Integer.MIN_VALUE}.  The exception tells why the launch was rejected, and what it needed of
+ * the budgets and what was in use at the time.  The processes of a {@link NuProcessBuilder#startAll(java.util.List, java.util.List)}
+ * batch are admitted together.  A launch that waits blocks its thread, so processes should not be
+ * started from handler callbacks under the {@link Policy#QUEUE} policy, the event processor thread
+ * would not see the exits that it waits for.
+ * <p>
+ * The initial policy and queue timeout can be set with the {@code com.zaxxer.nuprocess.admissionPolicy}
+ * and {@code com.zaxxer.nuprocess.admissionTimeoutMs} system properties.  Admission control does not
+ * apply on Windows.
+ *
+ * @author Brett Wooldridge
+ */
+public final class NuAdmissionControl
+{
+   private static final int DESCRIPTOR_BUDGET = 0;
+   private static final int DESCRIPTORS_IN_USE = 1;
+   private static final int PROCESS_BUDGET = 2;
+   private static final int PROCESSES_IN_USE = 3;
+   private static final int QUEUE_DEPTH = 4;
+   private static final int ADMITTED = 5;
+   private static final int QUEUED = 6;
+   private static final int REJECTED = 7;
+   private static final int TOTAL_WAIT = 8;
+   private static final int MAX_WAIT = 9;
+
+   /**
+    * What happens to a launch that does not fit in the budgets.
+    */
+   public static enum Policy
+   {
+      /** Launches are counted but never held back. */
+      NONE,
+      /** A launch waits for the resources it needs, in arrival order. */
+      QUEUE,
+      /** A launch fails immediately. */
+      REJECT
+   }
+
+   private NuAdmissionControl() {
+   }
+
+   /**
+    * @return the current policy
+    */
+   public static Policy getPolicy()
+   {
+      return AdmissionControl.getPolicy();
+   }
+
+   /**
+    * Set the policy.  Launches waiting in the queue are admitted if the new policy is
+    * {@link Policy#NONE}, and rejected if it is {@link Policy#REJECT}.
+    *
+    * @param policy the new policy
+    */
+   public static void setPolicy(Policy policy)
+   {
+      setPolicy(policy, 0, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Set the policy, and the maximum time a launch waits in the queue before it is rejected.
+    *
+    * @param policy the new policy
+    * @param queueTimeout the maximum wait of the {@link Policy#QUEUE} policy, 0 to wait as long as needed
+    * @param unit the unit of {@code queueTimeout}
+    */
+   public static void setPolicy(Policy policy, long queueTimeout, TimeUnit unit)
+   {
+      if (policy == null) {
+         throw new NullPointerException("Policy may not be null");
+      }
+      AdmissionControl.setPolicy(policy, queueTimeout, unit);
+   }
+
+   /**
+    * Replace the budgets derived from the resource limits.
+    *
+    * @param descriptors the number of descriptors the running processes may hold in the Java process
+    * @param processes the number of processes that may be running
+    */
+   public static void setBudgets(int descriptors, int processes)
+   {
+      if (descriptors < 0 || processes < 0) {
+         throw new IllegalArgumentException("Budgets may not be negative");
+      }
+      AdmissionControl.setBudgets(descriptors, processes);
+   }
+
+   /**
+    * @return the number of descriptors the running processes may hold
+    */
+   public static int getDescriptorBudget()
+   {
+      return (int) AdmissionControl.snapshot()[DESCRIPTOR_BUDGET];
+   }
+
+   /**
+    * @return the number of descriptors held by running processes and launches in progress
+    */
+   public static int getDescriptorsInUse()
+   {
+      return (int) AdmissionControl.snapshot()[DESCRIPTORS_IN_USE];
+   }
+
+   /**
+    * @return the number of processes that may be running
+    */
+   public static int getProcessBudget()
+   {
+      return (int) AdmissionControl.snapshot()[PROCESS_BUDGET];
+   }
+
+   /**
+    * @return the number of processes running or being launched
+    */
+   public static int getProcessesInUse()
+   {
+      return (int) AdmissionControl.snapshot()[PROCESSES_IN_USE];
+   }
+
+   /**
+    * @return the number of launches waiting in the queue now
+    */
+   public static int getQueueDepth()
+   {
+      return (int) AdmissionControl.snapshot()[QUEUE_DEPTH];
+   }
+
+   /**
+    * @return the number of launches admitted so far, each batch counting once
+    */
+   public static long getAdmittedCount()
+   {
+      return AdmissionControl.snapshot()[ADMITTED];
+   }
+
+   /**
+    * @return the number of launches that had to wait in the queue, whether admitted or rejected in the end
+    */
+   public static long getQueuedCount()
+   {
+      return AdmissionControl.snapshot()[QUEUED];
+   }
+
+   /**
+    * @return the number of launches rejected so far
+    */
+   public static long getRejectedCount()
+   {
+      return AdmissionControl.snapshot()[REJECTED];
+   }
+
+   /**
+    * @param unit the unit of the result
+    * @return the time launches have spent in the queue, in total
+    */
+   public static long getTotalWaitTime(TimeUnit unit)
+   {
+      return unit.convert(AdmissionControl.snapshot()[TOTAL_WAIT], TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @param unit the unit of the result
+    * @return the longest time a launch has spent in the queue
+    */
+   public static long getMaxWaitTime(TimeUnit unit)
+   {
+      return unit.convert(AdmissionControl.snapshot()[MAX_WAIT], TimeUnit.NANOSECONDS);
+   }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+/**
+ * Thrown when {@link NuAdmissionControl} does not admit a launch, so that it can be told apart from
+ * a launch that failed.  It carries what the launch needed, and the state of the budgets when it was
+ * refused.  The handlers of the processes have already been told, with an exit code of
+ * {@code Integer.MIN_VALUE}, when it is thrown.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuAdmissionException extends RuntimeException
+{
+   private static final long serialVersionUID = 1L;
+
+   private final Reason reason;
+   private final int descriptors;
+   private final int processes;
+   private final int descriptorsInUse;
+   private final int descriptorBudget;
+   private final int processesInUse;
+   private final int processBudget;
+
+   /**
+    * Why a launch was not admitted.
+    */
+   public static enum Reason
+   {
+      /** The launch needs more than the whole budget, it could never be admitted. */
+      EXCEEDS_BUDGET("exceeds the whole budget"),
+      /** The launch does not fit in what is left of the budgets, under {@link NuAdmissionControl.Policy#REJECT}. */
+      OVER_BUDGET("is over budget"),
+      /** The launch waited in the queue for longer than the queue timeout. */
+      TIMED_OUT("timed out in the queue"),
+      /** The launching thread was interrupted while waiting in the queue. */
+      INTERRUPTED("was interrupted in the queue");
+
+      private final String description;
+
+      private Reason(String description) {
+         this.description = description;
+      }
+
+      @Override
+      public String toString()
+      {
+         return description;
+      }
+   }
+
+   /**
+    * @param reason why the launch was not admitted
+    * @param descriptors the descriptors the launch needed
+    * @param processes the processes the launch needed
+    * @param descriptorsInUse the descriptors in use when the launch was refused
+    * @param descriptorBudget the descriptor budget
+    * @param processesInUse the processes in use when the launch was refused
+    * @param processBudget the process budget
+    */
+   public NuAdmissionException(Reason reason, int descriptors, int processes, int descriptorsInUse, int descriptorBudget, int processesInUse, int processBudget) {
+      super("Launch of " + processes + " process(es) needing " + descriptors + " descriptor(s) " + reason
+            + ", descriptors in use: " + descriptorsInUse + "/" + descriptorBudget
+            + ", processes in use: " + processesInUse + "/" + processBudget);
+      this.reason = reason;
+      this.descriptors = descriptors;
+      this.processes = processes;
+      this.descriptorsInUse = descriptorsInUse;
+      this.descriptorBudget = descriptorBudget;
+      this.processesInUse = processesInUse;
+      this.processBudget = processBudget;
+   }
+
+   /**
+    * @return why the launch was not admitted
+    */
+   public Reason getReason()
+   {
+      return reason;
+   }
+
+   /**
+    * @return the number of descriptors the launch needed
+    */
+   public int getDescriptorsNeeded()
+   {
+      return descriptors;
+   }
+
+   /**
+    * @return the number of processes the launch needed, more than one for a batch
+    */
+   public int getProcessesNeeded()
+   {
+      return processes;
+   }
+
+   /**
+    * @return the number of descriptors in use when the launch was refused
+    */
+   public int getDescriptorsInUse()
+   {
+      return descriptorsInUse;
+   }
+
+   /**
+    * @return the descriptor budget when the launch was refused
+    */
+   public int getDescriptorBudget()
+   {
+      return descriptorBudget;
+   }
+
+   /**
+    * @return the number of processes in use when the launch was refused
+    */
+   public int getProcessesInUse()
+   {
+      return processesInUse;
+   }
+
+   /**
+    * @return the process budget when the launch was refused
+    */
+   public int getProcessBudget()
+   {
+      return processBudget;
+   }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link NuProcessHandler} that also receives the data written by the child to the extra
+ * output channels declared with {@link NuProcessBuilder#addOutputChannel(int)}.
+ * {@link NuAbstractProcessHandler} implements this interface.
+ *
+ * @author Brett Wooldridge
+ */
+public interface NuChannelHandler extends NuProcessHandler
+{
+   /**
+    * This method is invoked when there is data to process on an output channel or
+    * the end-of-file (EOF) condition has been reached.  In the case of EOF, the
+    * {@code closed} parameter will be {@code true}.
+    * <p>
+    * The buffer follows the same rules as the one passed to
+    * {@link #onStdout(ByteBuffer, boolean)}: you do not own it, and any bytes
+    * left in it upon return are delivered again, ahead of new data, on the
+    * next call for the same channel.
+    *
+    * @param fd the descriptor number of the channel in the child process
+    * @param buffer a {@link ByteBuffer} containing received channel data
+    * @param closed {@code true} if EOF has been reached
+    */
+   void onChannel(int fd, ByteBuffer buffer, boolean closed);
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs a command once for each list of arguments, like {@code xargs -P}, keeping at most a given
+ * number of processes running at a time.
+ * <p>
+ * {@link #run(Iterator, ResultHandler)} takes argument lists from an iterator as slots free up, so
+ * the inputs may be produced lazily and need not fit in memory.  Each process runs the command of
+ * the {@link NuProcessBuilder} followed by its arguments, with the environment, directory and options
+ * of the builder, and with stdin closed unless the builder redirects it.  Processes that can start
+ * together are spawned as a batch with {@link NuProcessBuilder#startAll(List, List)}.
+ * <p>
+ * The stdout and stderr of each process are collected into buffers taken from a pool, and handed
+ * to the {@link ResultHandler} on the thread that called {@code run()}, one result at a time.  The
+ * buffers go back to the pool when the handler returns, so a handler that keeps the output must copy
+ * it.  By default results are delivered in completion order.  With a reorder window, they are
+ * delivered in input order, and a process is only started while it is fewer than {@code window}
+ * inputs ahead of the oldest undelivered result, so that a slow process holds back at most that many
+ * results.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuExecutor
+{
+   private static final int INITIAL_BUFFER_SIZE = 4096;
+
+   private final NuProcessBuilder builder;
+   private final int maxProcesses;
+   private final ConcurrentLinkedQueue<ByteBuffer> bufferPool;
+   private int reorderWindow;
+
+   /**
+    * Receives the result of each process.
+    */
+   public interface ResultHandler
+   {
+      /**
+       * Called on the thread running {@link NuExecutor#run(Iterator, ResultHandler)}.  An exception
+       * thrown from here ends the run, processes already started are left to finish on their own.
+       *
+       * @param result the result, valid until this method returns
+       */
+      void onResult(Result result);
+   }
+
+   /**
+    * @param builder the command and the configuration of the processes, its handler is not used
+    * @param maxProcesses the maximum number of processes running at a time
+    */
+   public NuExecutor(NuProcessBuilder builder, int maxProcesses) {
+      if (maxProcesses < 1) {
+         throw new IllegalArgumentException("At least one process must be allowed to run");
+      }
+
+      this.builder = builder;
+      this.maxProcesses = maxProcesses;
+      this.bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+   }
+
+   /**
+    * Deliver results in input order, holding back at most {@code window} results behind a slow
+    * process.  A window smaller than {@code maxProcesses} also limits the number of running processes.
+    *
+    * @param window the reorder window, or 0 to deliver results in completion order
+    */
+   public void setReorderWindow(int window)
+   {
+      if (window < 0) {
+         throw new IllegalArgumentException("Reorder window may not be negative");
+      }
+      this.reorderWindow = window;
+   }
+
+   /**
+    * Run the command for every list of arguments of the iterator, and return when every result has
+    * been delivered.
+    *
+    * @param arguments the extra arguments of each process
+    * @param handler the handler receiving the results
+    * @throws InterruptedException if the thread was interrupted while waiting for a process, the
+    *    processes already started are left to finish on their own
+    */
+   public void run(Iterator<? extends List<String>> arguments, ResultHandler handler) throws InterruptedException
+   {
+      LinkedBlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+      Result[] pending = (reorderWindow > 0) ? new Result[reorderWindow] : null;
+      long nextIndex = 0;
+      long nextDelivery = 0;
+      int running = 0;
+
+      List<List<String>> batch = new ArrayList<List<String>>();
+      List<ResultCollector> collectors = new ArrayList<ResultCollector>();
+      while (true) {
+         while (running + batch.size() < maxProcesses && arguments.hasNext()
+                && (pending == null || nextIndex - nextDelivery < pending.length)) {
+            List<String> args = arguments.next();
+            batch.add(args);
+            collectors.add(new ResultCollector(new Result(nextIndex++, args), completed));
+         }
+
+         if (!batch.isEmpty()) {
+            startBatch(batch, collectors);
+            running += batch.size();
+            batch.clear();
+            collectors.clear();
+         }
+
+         if (running == 0) {
+            return;
+         }
+
+         Result result = completed.take();
+         running--;
+         if (pending == null) {
+            deliver(result, handler);
+            continue;
+         }
+
+         pending[(int) (result.index % pending.length)] = result;
+         int slot;
+         while (pending[slot = (int) (nextDelivery % pending.length)] != null) {
+            Result next = pending[slot];
+            pending[slot] = null;
+            nextDelivery++;
+            deliver(next, handler);
+         }
+      }
+   }
+
+   /**
+    * The outcome of one process.
+    */
+   public final class Result
+   {
+      private final long index;
+      private final List<String> arguments;
+      private int exitCode;
+      private ByteBuffer stdout;
+      private ByteBuffer stderr;
+
+      Result(long index, List<String> arguments) {
+         this.index = index;
+         this.arguments = arguments;
+      }
+
+      /**
+       * @return the position of the arguments in the input, from 0
+       */
+      public long getIndex()
+      {
+         return index;
+      }
+
+      /**
+       * @return the extra arguments of the process
+       */
+      public List<String> getArguments()
+      {
+         return arguments;
+      }
+
+      /**
+       * @return the exit code of the process, {@code Integer.MIN_VALUE} if it could not be started
+       */
+      public int getExitCode()
+      {
+         return exitCode;
+      }
+
+      /**
+       * @return a read-only view of the output of the process, valid until the handler returns
+       */
+      public ByteBuffer getStdout()
+      {
+         return stdout.asReadOnlyBuffer();
+      }
+
+      /**
+       * @return a read-only view of the error output of the process, valid until the handler returns
+       */
+      public ByteBuffer getStderr()
+      {
+         return stderr.asReadOnlyBuffer();
+      }
+   }
+
+   // ************************************************************************
+   //                             Private methods
+   // ************************************************************************
+
+   private void startBatch(List<List<String>> batch, List<ResultCollector> collectors)
+   {
+      try {
+         builder.startAll(batch, collectors);
+      }
+      catch (IllegalArgumentException e) {
+         throw e;
+      }
+      catch (RuntimeException e) {
+         // A failed spawn has been reported to its collector, but the processes after the one whose
+         // pipes could not be created were not spawned
+         for (ResultCollector collector : collectors) {
+            if (!collector.started) {
+               collector.onExit(Integer.MIN_VALUE);
+            }
+         }
+      }
+   }
+
+   private void deliver(Result result, ResultHandler handler)
+   {
+      result.stdout.flip();
+      result.stderr.flip();
+      try {
+         handler.onResult(result);
+      }
+      finally {
+         recycle(result.stdout);
+         recycle(result.stderr);
+         result.stdout = null;
+         result.stderr = null;
+      }
+   }
+
+   private ByteBuffer takeBuffer()
+   {
+      ByteBuffer buffer = bufferPool.poll();
+      return (buffer != null) ? buffer : ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+   }
+
+   private void recycle(ByteBuffer buffer)
+   {
+      buffer.clear();
+      bufferPool.add(buffer);
+   }
+
+   private ByteBuffer append(ByteBuffer target, ByteBuffer data)
+   {
+      if (target.remaining() < data.remaining()) {
+         int capacity = target.capacity();
+         while (capacity - target.position() < data.remaining()) {
+            capacity *= 2;
+         }
+
+         // The larger buffer is the one that goes back to the pool
+         ByteBuffer grown = ByteBuffer.allocate(capacity);
+         target.flip();
+         grown.put(target);
+         target = grown;
+      }
+
+      target.put(data);
+      return target;
+   }
+
+   private final class ResultCollector extends NuAbstractProcessHandler
+   {
+      private final Result result;
+      private final LinkedBlockingQueue<Result> completed;
+      private volatile boolean started;
+      private boolean exited;
+
+      ResultCollector(Result result, LinkedBlockingQueue<Result> completed) {
+         this.result = result;
+         this.completed = completed;
+         result.stdout = takeBuffer();
+         result.stderr = takeBuffer();
+      }
+
+      @Override
+      public void onPreStart(NuProcess nuProcess)
+      {
+         started = true;
+      }
+
+      @Override
+      public void onStart(NuProcess nuProcess)
+      {
+         // Like xargs, the processes get no input
+         nuProcess.closeStdin();
+      }
+
+      @Override
+      public void onStdout(ByteBuffer buffer, boolean closed)
+      {
+         result.stdout = append(result.stdout, buffer);
+      }
+
+      @Override
+      public void onStderr(ByteBuffer buffer, boolean closed)
+      {
+         result.stderr = append(result.stderr, buffer);
+      }
+
+      @Override
+      public void onExit(int statusCode)
+      {
+         synchronized (this) {
+            if (exited) {
+               return;
+            }
+            exited = true;
+         }
+
+         result.exitCode = statusCode;
+         completed.add(result);
+      }
+   }
+}
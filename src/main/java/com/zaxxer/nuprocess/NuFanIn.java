@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merges the stdout of any number of processes into a single {@link WritableByteChannel}.
+ * <p>
+ * Each process is started with a {@link Handler} obtained from {@link #handler()}.  When the event
+ * processor delivers stdout data, the handler copies it into a staging buffer that belongs to the
+ * event processor thread, stamps it with a sequence number and hands it over, all without taking
+ * a lock.  A single drain thread merges the staging buffers of all event processor threads in sequence
+ * order and writes them to the sink, several at a time when the sink is a {@link GatheringByteChannel}.
+ * The data passes through one copy on its way from the stdout pipe of a process to the sink.
+ * <p>
+ * Each event processor thread stages at most {@value #MAX_STAGED_CHUNKS} chunks.  When a slow sink lets
+ * them pile up, the process that published the last chunk is paused with {@link NuProcess#pauseOutput(int)},
+ * and resumed once the drain thread has written some of them out.  Pausing is not supported on Windows,
+ * where the staging buffers grow with whatever arrives.
+ * <p>
+ * By default, data is forwarded as it arrives, so the output of different processes can be
+ * interleaved at any byte.  With a record delimiter, each process only forwards complete records,
+ * such as lines, and keeps a partial record until the rest of it arrives.  Records are then never
+ * interleaved, and the records of each process stay in the order in which it wrote them.  A record
+ * that does not fit in the stdout buffer of a process ({@link NuProcess#BUFFER_CAPACITY} unless
+ * configured otherwise) is forwarded in pieces.
+ * <p>
+ * Call {@link #close()} once every process has exited, to write out the remaining data.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuFanIn implements Closeable
+{
+   /** The number of chunks an event processor thread stages before its processes are paused. */
+   public static final int MAX_STAGED_CHUNKS = 64;
+
+   private static final int CHUNK_SIZE = NuProcess.BUFFER_CAPACITY;
+   private static final int MAX_GATHER = 64;
+   private static final AtomicInteger drainCount = new AtomicInteger();
+
+   private final WritableByteChannel sink;
+   private final int delimiter;
+   private final AtomicLong sequence;
+   private final CopyOnWriteArrayList<Staging> stagings;
+   private final ThreadLocal<Staging> threadStaging;
+   private final Thread drainThread;
+
+   private volatile boolean closed;
+   private volatile boolean drainWaiting;
+   private volatile IOException failure;
+
+   /**
+    * Create a fan-in that forwards data as it arrives.
+    *
+    * @param sink the channel receiving the merged output, it is not closed by this class
+    */
+   public NuFanIn(WritableByteChannel sink) {
+      this(sink, -1);
+   }
+
+   /**
+    * Create a fan-in that only forwards complete records.
+    *
+    * @param sink the channel receiving the merged output, it is not closed by this class
+    * @param recordDelimiter the byte ending each record, for example {@code '\n'}
+    */
+   public NuFanIn(WritableByteChannel sink, byte recordDelimiter) {
+      this(sink, recordDelimiter & 0xff);
+   }
+
+   private NuFanIn(WritableByteChannel sink, int delimiter) {
+      if (sink == null) {
+         throw new NullPointerException("Sink may not be null");
+      }
+
+      this.sink = sink;
+      this.delimiter = delimiter;
+      this.sequence = new AtomicLong();
+      this.stagings = new CopyOnWriteArrayList<Staging>();
+      this.threadStaging = new ThreadLocal<Staging>() {
+         @Override
+         protected Staging initialValue()
+         {
+            Staging staging = new Staging();
+            stagings.add(staging);
+            return staging;
+         }
+      };
+
+      this.drainThread = new Thread(new Runnable() {
+         @Override
+         public void run()
+         {
+            drain();
+         }
+      }, "NuFanIn" + drainCount.getAndIncrement());
+      drainThread.setDaemon(true);
+      drainThread.start();
+   }
+
+   /**
+    * Create a handler for one process.  Every process needs its own handler.
+    *
+    * @return a new {@link Handler}
+    */
+   public Handler handler()
+   {
+      return new Handler();
+   }
+
+   /**
+    * Write out everything received so far and stop the drain thread.  Data that processes deliver
+    * afterwards is discarded.
+    *
+    * @throws IOException if writing to the sink failed, at any point
+    */
+   @Override
+   public void close() throws IOException
+   {
+      closed = true;
+      LockSupport.unpark(drainThread);
+      try {
+         drainThread.join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while draining");
+      }
+
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   /**
+    * The {@link NuProcessHandler} of a process whose stdout goes to the {@link NuFanIn}.  It can be
+    * extended, for example to handle stderr, as long as {@link #onPreStart(NuProcess)} and
+    * {@link #onStdout(ByteBuffer, boolean)} call the implementation of this class.
+    */
+   public class Handler extends NuAbstractProcessHandler
+   {
+      private volatile NuProcess nuProcess;
+
+      protected Handler() {
+      }
+
+      @Override
+      public void onPreStart(NuProcess nuProcess)
+      {
+         this.nuProcess = nuProcess;
+      }
+
+      @Override
+      public void onStdout(ByteBuffer buffer, boolean closed)
+      {
+         int end = buffer.limit();
+         if (delimiter >= 0 && !closed) {
+            end = lastRecordEnd(buffer);
+         }
+
+         if (end > buffer.position()) {
+            ByteBuffer records = buffer.duplicate();
+            records.limit(end);
+            threadStaging.get().publish(records, nuProcess);
+            buffer.position(end);
+         }
+      }
+
+      private int lastRecordEnd(ByteBuffer buffer)
+      {
+         for (int i = buffer.limit() - 1; i >= buffer.position(); i--) {
+            if ((buffer.get(i) & 0xff) == delimiter) {
+               return i + 1;
+            }
+         }
+
+         // A record larger than the buffer cannot be held back, or the process would stall
+         return (buffer.limit() == buffer.capacity()) ? buffer.limit() : buffer.position();
+      }
+   }
+
+   // ************************************************************************
+   //                              Drain thread
+   // ************************************************************************
+
+   private void drain()
+   {
+      List<Chunk> batch = new ArrayList<Chunk>(MAX_GATHER);
+      long next = 0;
+      while (true) {
+         // Merge the staging queues in sequence order
+         while (batch.size() < MAX_GATHER) {
+            Chunk chunk = takeChunk(next);
+            if (chunk == null) {
+               break;
+            }
+            batch.add(chunk);
+            next++;
+         }
+
+         if (!batch.isEmpty()) {
+            write(batch);
+            batch.clear();
+            continue;
+         }
+
+         if (closed && next == sequence.get()) {
+            return;
+         }
+
+         if (next < sequence.get()) {
+            // Claimed by an event processor thread, which is about to publish it
+            Thread.yield();
+            continue;
+         }
+
+         drainWaiting = true;
+         if (next == sequence.get() && !closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+         }
+         drainWaiting = false;
+      }
+   }
+
+   private Chunk takeChunk(long seq)
+   {
+      for (Staging staging : stagings) {
+         Chunk head = staging.published.peek();
+         if (head != null && head.seq == seq) {
+            return staging.published.poll();
+         }
+      }
+      return null;
+   }
+
+   private void write(List<Chunk> batch)
+   {
+      try {
+         if (failure == null) {
+            if (sink instanceof GatheringByteChannel && batch.size() > 1) {
+               ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+               for (int i = 0; i < buffers.length; i++) {
+                  buffers[i] = batch.get(i).buffer;
+               }
+               while (buffers[buffers.length - 1].hasRemaining()) {
+                  ((GatheringByteChannel) sink).write(buffers);
+               }
+            }
+            else {
+               for (Chunk chunk : batch) {
+                  while (chunk.buffer.hasRemaining()) {
+                     sink.write(chunk.buffer);
+                  }
+               }
+            }
+         }
+      }
+      catch (IOException e) {
+         // Reported by close(), later data is dropped
+         failure = e;
+      }
+      finally {
+         for (Chunk chunk : batch) {
+            chunk.recycle();
+         }
+      }
+   }
+
+   /**
+    * The staging area of one event processor thread.  {@code published} is only added to by that
+    * thread, and {@code free} only by the drain thread.  {@code staged} counts the published chunks
+    * that have not been recycled yet, and {@code paused} holds the processes paused for them.
+    */
+   private final class Staging
+   {
+      final ConcurrentLinkedQueue<Chunk> published = new ConcurrentLinkedQueue<Chunk>();
+      final ConcurrentLinkedQueue<Chunk> free = new ConcurrentLinkedQueue<Chunk>();
+      final AtomicInteger staged = new AtomicInteger();
+      final ConcurrentLinkedQueue<NuProcess> paused = new ConcurrentLinkedQueue<NuProcess>();
+      volatile boolean pausable = true;
+
+      void publish(ByteBuffer data, NuProcess process)
+      {
+         if (closed) {
+            return;
+         }
+
+         while (data.hasRemaining()) {
+            Chunk chunk = free.poll();
+            if (chunk == null) {
+               chunk = new Chunk(this);
+            }
+
+            ByteBuffer slice = data.duplicate();
+            slice.limit(data.position() + Math.min(data.remaining(), CHUNK_SIZE));
+            chunk.buffer.clear();
+            chunk.buffer.put(slice);
+            chunk.buffer.flip();
+            data.position(slice.limit());
+
+            // A thread publishes its chunks in sequence order, so each queue is sorted
+            chunk.seq = sequence.getAndIncrement();
+            published.add(chunk);
+            staged.incrementAndGet();
+         }
+
+         if (drainWaiting) {
+            LockSupport.unpark(drainThread);
+         }
+
+         if (staged.get() >= MAX_STAGED_CHUNKS && process != null && pausable) {
+            try {
+               process.pauseOutput(1);
+               paused.add(process);
+            }
+            catch (UnsupportedOperationException e) {
+               // Windows, the staging area holds whatever arrives
+               pausable = false;
+               return;
+            }
+
+            // The drain thread may have made room before the process was paused
+            if (staged.get() < MAX_STAGED_CHUNKS) {
+               resumePaused();
+            }
+         }
+      }
+
+      /**
+       * Called by the drain thread once a chunk has been written out.
+       */
+      void recycle(Chunk chunk)
+      {
+         free.add(chunk);
+         if (staged.decrementAndGet() < MAX_STAGED_CHUNKS && !paused.isEmpty()) {
+            resumePaused();
+         }
+      }
+
+      private void resumePaused()
+      {
+         NuProcess process;
+         while ((process = paused.poll()) != null) {
+            process.resumeOutput(1);
+         }
+      }
+   }
+
+   private static final class Chunk
+   {
+      final Staging owner;
+      final ByteBuffer buffer;
+      long seq;
+
+      Chunk(Staging owner) {
+         this.owner = owner;
+         this.buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+      }
+
+      void recycle()
+      {
+         owner.recycle(this);
+      }
+   }
+}
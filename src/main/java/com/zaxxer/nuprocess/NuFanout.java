@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.zaxxer.nuprocess.internal.LibC;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+
+/**
+ * Broadcasts one stream of data to the stdin of any number of processes, without copying it
+ * for each of them.
+ * <p>
+ * Data passed to {@link #write(ByteBuffer)} is written once, into a source pipe.  A pump thread
+ * duplicates the content of that pipe into the stdin pipe of every attached process with
+ * {@code tee()}, which only adds references to the same pages, and then discards it from the source
+ * with {@code splice()} to {@code /dev/null}.  Processes are attached with {@link #start(NuProcessBuilder)}
+ * and receive the data written from then on.  {@link #close()} ends the stream, every attached process
+ * then reads end-of-file once it has consumed what was written before.
+ * <p>
+ * A process whose stdin pipe is full is a <em>slow child</em>.  The rest of the current chunk is
+ * kept in memory for it and nothing more is read from the source, so once the source pipe fills up
+ * the writer is held up, and the slow child is handled according to the {@link SlowChildPolicy} of
+ * the fanout.  The capacity of the pipes can be raised with
+ * {@link NuProcessBuilder#setPipeCapacities(int, int, int)} to absorb bursts.  Processes that exit
+ * or close their stdin are detached.
+ * <p>
+ * The stdin of the attached processes is owned by the fanout: {@link NuProcess#writeStdin(ByteBuffer)}
+ * and {@link NuProcessHandler#onStdinReady(ByteBuffer)} are not available for them.  Fanouts are
+ * only supported on Linux.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuFanout implements Closeable
+{
+   private static final int CHUNK_SIZE = NuProcess.BUFFER_CAPACITY;
+   private static final int POLLFD_SIZE = 8;
+   private static final AtomicInteger pumpCount = new AtomicInteger();
+
+   private final SlowChildPolicy policy;
+   private final int sourceRead;
+   private final AtomicInteger sourceWrite;
+   private final int devNull;
+   private final int sourceCapacity;
+   private final Object writeLock;
+   private final Memory writeBuffer;
+
+   // Owned by the pump thread
+   private final ConcurrentLinkedQueue<Child> joining;
+   private final List<Child> children;
+   private final Memory chunk;
+   private Memory pollfds;
+   private int backlogs;
+
+   /**
+    * What to do with an attached process that is not reading its stdin as fast as data is written.
+    */
+   public static enum SlowChildPolicy
+   {
+      /**
+       * Wait for the slow child.  The rest of the current chunk is written to it as it makes room,
+       * and nothing more is read from the source until then, so {@link NuFanout#write(ByteBuffer)}
+       * eventually blocks.  Every process receives every byte.
+       */
+      BLOCK,
+      /**
+       * Skip the data that the slow child has not taken once it starts holding up the writer.  The
+       * slow child misses part of the stream.
+       */
+      DROP,
+      /**
+       * Close the slow child's stdin and stop sending it data once it starts holding up the writer.
+       * It reads end-of-file after what it has already been sent.
+       */
+      DETACH
+   }
+
+   /**
+    * Create a fanout, and start its pump thread.
+    *
+    * @param policy how to handle attached processes that do not keep up
+    */
+   public NuFanout(SlowChildPolicy policy) {
+      if (!System.getProperty("os.name").toLowerCase().contains("linux") || !LibC.has_tee()) {
+         throw new UnsupportedOperationException("NuFanout requires tee() and splice(), which are only available on Linux");
+      }
+      if (policy == null) {
+         throw new NullPointerException("SlowChildPolicy may not be null");
+      }
+
+      this.policy = policy;
+      this.writeLock = new Object();
+      this.writeBuffer = new Memory(CHUNK_SIZE);
+      this.chunk = new Memory(CHUNK_SIZE);
+      this.joining = new ConcurrentLinkedQueue<Child>();
+      this.children = new ArrayList<Child>();
+      this.pollfds = new Memory(POLLFD_SIZE);
+
+      int[] fds = NuPipeline.createPipe("fanout");
+      this.sourceRead = fds[0];
+      this.sourceWrite = new AtomicInteger(fds[1]);
+      setFlags(sourceRead, LibC.O_NONBLOCK);
+      this.sourceCapacity = Math.max(LibC.fcntl(sourceRead, LibC.F_GETPIPE_SZ), CHUNK_SIZE);
+
+      this.devNull = LibC.open("/dev/null", LibC.O_WRONLY | LibC.O_CLOEXEC);
+      if (devNull == -1) {
+         LibC.close(fds[0]);
+         LibC.close(fds[1]);
+         throw new RuntimeException("Unable to open /dev/null, last error: " + Native.getLastError());
+      }
+
+      Thread pump = new Thread(new Runnable() {
+         @Override
+         public void run()
+         {
+            pump();
+         }
+      }, "NuFanout" + pumpCount.getAndIncrement());
+      pump.setDaemon(true);
+      pump.start();
+   }
+
+   /**
+    * Get the policy applied to attached processes that do not keep up.
+    *
+    * @return the {@link SlowChildPolicy} of this fanout
+    */
+   public SlowChildPolicy getPolicy()
+   {
+      return policy;
+   }
+
+   /**
+    * Spawn a process, as {@link NuProcessBuilder#start()} would, with its stdin attached to this
+    * fanout.  The stdin settings of the builder are ignored, except for the stdin pipe capacity.
+    *
+    * @param builder the {@link NuProcessBuilder} describing the process
+    * @return a {@link NuProcess} instance
+    * @throws NuSpawnException as for {@link NuProcessBuilder#start()}
+    */
+   public NuProcess start(NuProcessBuilder builder)
+   {
+      if (sourceWrite.get() == -1) {
+         throw new IllegalStateException("NuFanout has been closed");
+      }
+
+      SpawnOptions options = builder.spawnOptions();
+      int[] fds = NuPipeline.createPipe("fanout");
+      if (options.getStdinPipeCapacity() > 0) {
+         // Best effort, the same as for the pipes created by the process itself
+         LibC.fcntl(fds[1], LibC.F_SETPIPE_SZ, options.getStdinPipeCapacity());
+      }
+      setFlags(fds[1], LibC.O_NONBLOCK);
+
+      options.setStdinFd(fds[0]);
+      NuProcess process;
+      try {
+         process = builder.start(options);
+      }
+      catch (RuntimeException e) {
+         LibC.close(fds[1]);
+         throw e;
+      }
+      finally {
+         // The child has its own copy
+         LibC.close(fds[0]);
+      }
+
+      if (process == null) {
+         LibC.close(fds[1]);
+         return null;
+      }
+
+      joining.add(new Child(fds[1]));
+      return process;
+   }
+
+   /**
+    * Write the remaining bytes of the buffer to every attached process.  This method blocks while
+    * the source pipe is full, which with {@link SlowChildPolicy#BLOCK} includes waiting for the
+    * slowest process.  It may be called from any thread, concurrent writes are not interleaved.
+    *
+    * @param buffer the data to broadcast, its position is advanced to its limit
+    */
+   public void write(ByteBuffer buffer)
+   {
+      synchronized (writeLock) {
+         int fd = sourceWrite.get();
+         if (fd == -1) {
+            throw new IllegalStateException("NuFanout has been closed");
+         }
+
+         while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), CHUNK_SIZE);
+            Pointer pointer;
+            if (buffer.isDirect()) {
+               pointer = Native.getDirectBufferPointer(buffer).share(buffer.position());
+            }
+            else {
+               byte[] bytes = new byte[length];
+               buffer.duplicate().get(bytes);
+               writeBuffer.write(0, bytes, 0, length);
+               pointer = writeBuffer;
+            }
+
+            int wrote = LibC.write(fd, pointer, length);
+            if (wrote < 0) {
+               throw new RuntimeException("Write to the fanout pipe failed, last error: " + Native.getLastError());
+            }
+            buffer.position(buffer.position() + wrote);
+         }
+      }
+   }
+
+   /**
+    * End the stream.  Every attached process reads end-of-file once it has consumed the data
+    * written before this call, or right away if it was detached.
+    */
+   @Override
+   public void close()
+   {
+      synchronized (writeLock) {
+         int fd = sourceWrite.getAndSet(-1);
+         if (fd != -1) {
+            LibC.close(fd);
+         }
+      }
+   }
+
+   // ************************************************************************
+   //                              Pump thread
+   // ************************************************************************
+
+   private void pump()
+   {
+      try {
+         while (true) {
+            Child joined;
+            while ((joined = joining.poll()) != null) {
+               children.add(joined);
+            }
+
+            if (backlogs > 0) {
+               // Nothing new is read from the source until the slow children have taken the current chunk
+               pollChildren();
+               writeBacklogs();
+               if (backlogs > 0 && policy != SlowChildPolicy.BLOCK && isSourceBackedUp()) {
+                  giveUpOnBacklogs();
+               }
+               continue;
+            }
+
+            short revents = pollSource();
+            if (revents == 0) {
+               continue;
+            }
+
+            // Processes started before the data was written receive it
+            while ((joined = joining.poll()) != null) {
+               children.add(joined);
+            }
+
+            IntByReference available = new IntByReference();
+            LibC.ioctl(sourceRead, LibC.FIONREAD, available);
+            if (available.getValue() == 0) {
+               if ((revents & (LibC.POLLHUP | LibC.POLLERR)) != 0) {
+                  break;
+               }
+               continue;
+            }
+
+            broadcast(Math.min(available.getValue(), CHUNK_SIZE));
+         }
+      }
+      finally {
+         for (Child child : children) {
+            child.close();
+         }
+         Child child;
+         while ((child = joining.poll()) != null) {
+            child.close();
+         }
+         LibC.close(sourceRead);
+         LibC.close(devNull);
+      }
+   }
+
+   private void broadcast(int length)
+   {
+      boolean lagging = false;
+      for (Iterator<Child> iterator = children.iterator(); iterator.hasNext();) {
+         Child child = iterator.next();
+         long teed = LibC.tee(sourceRead, child.fd, length, LibC.SPLICE_F_NONBLOCK);
+         if (teed < 0) {
+            if (Native.getLastError() != LibC.EAGAIN) {
+               // The process exited or closed its stdin
+               child.close();
+               iterator.remove();
+               continue;
+            }
+            teed = 0;
+         }
+
+         if (teed < length) {
+            child.backlogStart = (int) teed;
+            lagging = true;
+         }
+      }
+
+      if (!lagging) {
+         // Every child has its own reference to the pages, drop ours without copying them
+         consume(length);
+         return;
+      }
+
+      // Only the slow children need the data in memory, the source is consumed by the same read
+      int read = LibC.read(sourceRead, chunk, length);
+      if (read != length) {
+         throw new RuntimeException("Short read from the fanout pipe, last error: " + Native.getLastError());
+      }
+
+      for (Child child : children) {
+         if (child.backlogStart >= 0) {
+            child.backlogEnd = length;
+            backlogs++;
+         }
+      }
+
+      writeBacklogs();
+   }
+
+   private void consume(int length)
+   {
+      long spliced = LibC.splice(sourceRead, null, devNull, null, length, LibC.SPLICE_F_NONBLOCK);
+      if (spliced < length) {
+         int remaining = length - (int) Math.max(spliced, 0);
+         if (LibC.read(sourceRead, chunk, remaining) != remaining) {
+            throw new RuntimeException("Short read from the fanout pipe, last error: " + Native.getLastError());
+         }
+      }
+   }
+
+   /**
+    * A child is only considered slow once the data waiting for it starts to hold up the writer,
+    * a full pipe on its own is just a burst.
+    */
+   private boolean isSourceBackedUp()
+   {
+      IntByReference available = new IntByReference();
+      LibC.ioctl(sourceRead, LibC.FIONREAD, available);
+      return available.getValue() >= sourceCapacity / 2;
+   }
+
+   private void giveUpOnBacklogs()
+   {
+      for (Iterator<Child> iterator = children.iterator(); iterator.hasNext();) {
+         Child child = iterator.next();
+         if (child.backlogStart >= 0) {
+            child.backlogStart = -1;
+            if (policy == SlowChildPolicy.DETACH) {
+               child.close();
+               iterator.remove();
+            }
+         }
+      }
+      backlogs = 0;
+   }
+
+   private void writeBacklogs()
+   {
+      for (Iterator<Child> iterator = children.iterator(); iterator.hasNext();) {
+         Child child = iterator.next();
+         if (child.backlogStart < 0) {
+            continue;
+         }
+
+         int wrote = LibC.write(child.fd, chunk.share(child.backlogStart), child.backlogEnd - child.backlogStart);
+         if (wrote < 0) {
+            if (Native.getLastError() == LibC.EAGAIN) {
+               continue;
+            }
+            child.close();
+            iterator.remove();
+            backlogs--;
+            continue;
+         }
+
+         child.backlogStart += wrote;
+         if (child.backlogStart == child.backlogEnd) {
+            child.backlogStart = -1;
+            backlogs--;
+         }
+      }
+   }
+
+   private short pollSource()
+   {
+      pollfds.setInt(0, sourceRead);
+      pollfds.setShort(4, LibC.POLLIN);
+      pollfds.setShort(6, (short) 0);
+      if (LibC.poll(pollfds, 1, 250) <= 0) {
+         return 0;
+      }
+      return pollfds.getShort(6);
+   }
+
+   private void pollChildren()
+   {
+      if (pollfds.size() < (long) children.size() * POLLFD_SIZE) {
+         pollfds = new Memory((long) children.size() * POLLFD_SIZE);
+      }
+
+      int count = 0;
+      for (Child child : children) {
+         if (child.backlogStart >= 0) {
+            pollfds.setInt(count * POLLFD_SIZE, child.fd);
+            pollfds.setShort(count * POLLFD_SIZE + 4, LibC.POLLOUT);
+            pollfds.setShort(count * POLLFD_SIZE + 6, (short) 0);
+            count++;
+         }
+      }
+
+      // An error or hangup is reported by the write that follows.  Unless slow children are waited
+      // for indefinitely, wake up regularly to check whether the writer is being held up
+      LibC.poll(pollfds, count, policy == SlowChildPolicy.BLOCK ? 250 : 10);
+   }
+
+   private static void setFlags(int fd, int flags)
+   {
+      LibC.fcntl(fd, LibC.F_SETFL, LibC.fcntl(fd, LibC.F_GETFL) | flags);
+   }
+
+   private static final class Child
+   {
+      final int fd;
+      int backlogStart = -1; // offset in the current chunk of the data still owed to this child
+      int backlogEnd;
+
+      Child(int fd) {
+         this.fd = fd;
+      }
+
+      void close()
+      {
+         LibC.close(fd);
+      }
+   }
+}
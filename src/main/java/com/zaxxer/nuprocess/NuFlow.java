@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+/**
+ * Interfaces for streams with demand-driven flow control, with the same contract as the
+ * {@code java.util.concurrent.Flow} interfaces of Java 9 and the Reactive Streams specification.
+ * They are declared here because NuProcess runs on earlier versions of Java, and a one-line
+ * adapter converts them to either.  See {@link NuFlowHandler} for the process streams.
+ *
+ * @author Brett Wooldridge
+ */
+public final class NuFlow
+{
+   private NuFlow() {
+   }
+
+   /**
+    * A producer of items that are received by a {@link Subscriber}.
+    *
+    * @param <T> the type of the items
+    */
+   public interface Publisher<T>
+   {
+      /**
+       * Add a subscriber.  It receives {@link Subscriber#onSubscribe(Subscription)} first, or
+       * {@link Subscriber#onError(Throwable)} if it cannot be added.
+       *
+       * @param subscriber the subscriber
+       */
+      void subscribe(Subscriber<? super T> subscriber);
+   }
+
+   /**
+    * A receiver of items.  Its methods are called one at a time, in the order
+    * {@code onSubscribe onNext* (onError | onComplete)?}.
+    *
+    * @param <T> the type of the items
+    */
+   public interface Subscriber<T>
+   {
+      /**
+       * Called before any other method.  No item is received until {@link Subscription#request(long)}
+       * is called.
+       *
+       * @param subscription the subscription, to request items or cancel
+       */
+      void onSubscribe(Subscription subscription);
+
+      /**
+       * Receive the next item, never more items than requested.
+       *
+       * @param item the item
+       */
+      void onNext(T item);
+
+      /**
+       * Called when the publisher failed, no other method is called afterwards.
+       *
+       * @param throwable the failure
+       */
+      void onError(Throwable throwable);
+
+      /**
+       * Called when there are no more items, no other method is called afterwards.
+       */
+      void onComplete();
+   }
+
+   /**
+    * The link between a {@link Publisher} and a {@link Subscriber}.  Its methods may be called from
+    * any thread, including from within the methods of the subscriber.
+    */
+   public interface Subscription
+   {
+      /**
+       * Add to the number of items the subscriber is willing to receive.  Requests accumulate, and
+       * a total of {@link Long#MAX_VALUE} or more is unbounded.
+       *
+       * @param n the number of additional items, the subscriber receives
+       *    {@link Subscriber#onError(Throwable)} if it is not positive
+       */
+      void request(long n);
+
+      /**
+       * Stop receiving items.  A few items may still arrive if they were already on their way.
+       */
+      void cancel();
+   }
+}
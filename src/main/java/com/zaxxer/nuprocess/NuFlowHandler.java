@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link NuProcessHandler} that exposes the streams of a process as {@link NuFlow} publishers
+ * and subscriber, so that they can be connected to each other or to any library that speaks
+ * Reactive Streams.
+ * <p>
+ * {@link #stdout()} and {@link #stderr()} publish the output of the process as heap
+ * {@link ByteBuffer}s, one per read from the pipe.  The demand of the subscriber drives the
+ * reading: when it has received everything it requested, the pipe is paused with
+ * {@link NuProcess#pauseOutput(int)}, the child blocks once the pipe is full, and reading resumes
+ * on the next {@link NuFlow.Subscription#request(long)}.  At most one read is held for a
+ * subscriber that does not keep up, and the event processor never waits for it.  Output that
+ * arrives before a subscriber is added is held the same way.  On Windows, where output cannot
+ * be paused, it is held without bound.  Each publisher accepts a single subscriber.
+ * <p>
+ * {@link #stdin()} is a subscriber that writes the items it receives to the stdin of the process.
+ * It requests one item at a time, and only requests the next one once the previous one has been
+ * copied into the stdin pipe, so that a fast publisher never fills the memory of the Java process.
+ * Stdin is closed when the publisher completes or fails.  Items are consumed, their position is
+ * advanced to their limit.
+ * <p>
+ * For example, to pipe the output of one process into another:
+ * <pre>
+ * NuFlowHandler producer = new NuFlowHandler();
+ * NuFlowHandler consumer = new NuFlowHandler();
+ * producer.stdout().subscribe(consumer.stdin());
+ * new NuProcessBuilder(consumer, "gzip").start();
+ * new NuProcessBuilder(producer, "cat", "big.log").start();
+ * </pre>
+ * A subclass that overrides {@link #onStdout(ByteBuffer, boolean)}, {@link #onStderr(ByteBuffer, boolean)},
+ * {@link #onPreStart(NuProcess)}, {@link #onStart(NuProcess)}, {@link #onStdinReady(ByteBuffer)}
+ * or {@link #onExit(int)} must call the implementation of this class.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuFlowHandler extends NuAbstractProcessHandler
+{
+   private final OutputPublisher stdout;
+   private final OutputPublisher stderr;
+   private final StdinSubscriber stdin;
+   private volatile NuProcess nuProcess;
+
+   public NuFlowHandler() {
+      this.stdout = new OutputPublisher(1);
+      this.stderr = new OutputPublisher(2);
+      this.stdin = new StdinSubscriber();
+   }
+
+   /**
+    * @return the publisher of the stdout of the process
+    */
+   public NuFlow.Publisher<ByteBuffer> stdout()
+   {
+      return stdout;
+   }
+
+   /**
+    * @return the publisher of the stderr of the process
+    */
+   public NuFlow.Publisher<ByteBuffer> stderr()
+   {
+      return stderr;
+   }
+
+   /**
+    * @return the subscriber writing to the stdin of the process
+    */
+   public NuFlow.Subscriber<ByteBuffer> stdin()
+   {
+      return stdin;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onPreStart(NuProcess nuProcess)
+   {
+      this.nuProcess = nuProcess;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStart(NuProcess nuProcess)
+   {
+      stdin.start(nuProcess);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStdout(ByteBuffer buffer, boolean closed)
+   {
+      stdout.onData(buffer, closed);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStderr(ByteBuffer buffer, boolean closed)
+   {
+      stderr.onData(buffer, closed);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public boolean onStdinReady(ByteBuffer buffer)
+   {
+      return stdin.fill(buffer);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onExit(int statusCode)
+   {
+      // Nothing reads stdin anymore
+      stdin.cancel();
+
+      // Ends the streams if the process never got its pipes, they are already ended otherwise
+      stdout.onData(null, true);
+      stderr.onData(null, true);
+   }
+
+   // ************************************************************************
+   //                               Publisher
+   // ************************************************************************
+
+   private final class OutputPublisher implements NuFlow.Publisher<ByteBuffer>, NuFlow.Subscription
+   {
+      private final StreamSupport.OutputPause pause;
+      private final AtomicLong demand;
+      private final ConcurrentLinkedQueue<ByteBuffer> pending;
+      private final AtomicInteger drainWip;
+      private final AtomicBoolean subscribed;
+
+      private volatile NuFlow.Subscriber<? super ByteBuffer> subscriber;
+      private volatile boolean done;
+      private volatile boolean cancelled;
+      private boolean terminated;
+
+      OutputPublisher(int fd) {
+         this.pause = new StreamSupport.OutputPause(fd);
+         this.demand = new AtomicLong();
+         this.pending = new ConcurrentLinkedQueue<ByteBuffer>();
+         this.drainWip = new AtomicInteger();
+         this.subscribed = new AtomicBoolean();
+      }
+
+      @Override
+      public void subscribe(NuFlow.Subscriber<? super ByteBuffer> subscriber)
+      {
+         if (subscriber == null) {
+            throw new NullPointerException("Subscriber may not be null");
+         }
+
+         if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new NuFlow.Subscription() {
+               @Override
+               public void request(long n)
+               {
+               }
+
+               @Override
+               public void cancel()
+               {
+               }
+            });
+            subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+            return;
+         }
+
+         subscriber.onSubscribe(this);
+         this.subscriber = subscriber;
+         drain();
+      }
+
+      @Override
+      public void request(long n)
+      {
+         if (n <= 0) {
+            NuFlow.Subscriber<? super ByteBuffer> s = subscriber;
+            cancel();
+            if (s != null) {
+               s.onError(new IllegalArgumentException("Requested " + n + " items, the request must be positive"));
+            }
+            return;
+         }
+
+         long current;
+         long next;
+         do {
+            current = demand.get();
+            next = (current + n < 0) ? Long.MAX_VALUE : current + n;
+         }
+         while (!demand.compareAndSet(current, next));
+
+         drain();
+         resume();
+      }
+
+      @Override
+      public void cancel()
+      {
+         cancelled = true;
+         pending.clear();
+         // The output is read and discarded from now on, so that the child does not block on a full pipe
+         resume();
+      }
+
+      /**
+       * Called on the event processor thread with the data read from the pipe, and by
+       * {@link NuFlowHandler#onExit(int)} with a null buffer.
+       */
+      void onData(ByteBuffer buffer, boolean closed)
+      {
+         if (buffer != null && buffer.hasRemaining()) {
+            if (cancelled) {
+               buffer.position(buffer.limit());
+            }
+            else {
+               byte[] bytes = new byte[buffer.remaining()];
+               buffer.get(bytes);
+               pending.add(ByteBuffer.wrap(bytes));
+            }
+         }
+
+         if (closed) {
+            done = true;
+         }
+
+         drain();
+
+         if (demand.get() == 0 && !done && !cancelled) {
+            pause();
+            // A request that came in meanwhile may have found the pipe not paused yet
+            if (demand.get() > 0 || cancelled) {
+               resume();
+            }
+         }
+      }
+
+      /**
+       * Deliver the pending data while there is demand, on whichever thread gets here first.
+       */
+      private void drain()
+      {
+         if (drainWip.getAndIncrement() != 0) {
+            return;
+         }
+
+         int missed = 1;
+         do {
+            NuFlow.Subscriber<? super ByteBuffer> s = subscriber;
+            if (s != null && !terminated) {
+               if (cancelled) {
+                  pending.clear();
+               }
+               else {
+                  while (demand.get() > 0 && !cancelled) {
+                     ByteBuffer data = pending.poll();
+                     if (data == null) {
+                        break;
+                     }
+
+                     if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                     }
+
+                     try {
+                        s.onNext(data);
+                     }
+                     catch (RuntimeException e) {
+                        // A subscriber may not throw, treat it as gone
+                        cancel();
+                     }
+                  }
+
+                  if (done && pending.isEmpty() && !cancelled) {
+                     terminated = true;
+                     s.onComplete();
+                  }
+               }
+            }
+
+            missed = drainWip.addAndGet(-missed);
+         }
+         while (missed != 0);
+      }
+
+      private void pause()
+      {
+         pause.set(nuProcess, true);
+      }
+
+      private void resume()
+      {
+         pause.set(nuProcess, false);
+      }
+   }
+
+   // ************************************************************************
+   //                               Subscriber
+   // ************************************************************************
+
+   private final class StdinSubscriber extends StreamSupport.StdinFeed implements NuFlow.Subscriber<ByteBuffer>
+   {
+      private volatile NuFlow.Subscription subscription;
+      private volatile ByteBuffer current;
+
+      @Override
+      public void onSubscribe(NuFlow.Subscription subscription)
+      {
+         if (this.subscription != null) {
+            subscription.cancel();
+            return;
+         }
+
+         this.subscription = subscription;
+         subscription.request(1);
+      }
+
+      @Override
+      public void onNext(ByteBuffer item)
+      {
+         current = item;
+         wakeup();
+      }
+
+      @Override
+      public void onError(Throwable throwable)
+      {
+         // The item being written, if any, is dropped
+         current = null;
+         setClosing();
+         wakeup();
+      }
+
+      @Override
+      public void onComplete()
+      {
+         setClosing();
+         wakeup();
+      }
+
+      void cancel()
+      {
+         NuFlow.Subscription s = subscription;
+         if (s != null) {
+            s.cancel();
+         }
+      }
+
+      @Override
+      boolean hasPending()
+      {
+         return current != null;
+      }
+
+      @Override
+      void copyTo(ByteBuffer buffer)
+      {
+         ByteBuffer item = current;
+         if (item == null) {
+            // Dropped by onError() meanwhile
+            return;
+         }
+
+         if (item.remaining() > buffer.remaining()) {
+            ByteBuffer slice = item.duplicate();
+            slice.limit(slice.position() + buffer.remaining());
+            buffer.put(slice);
+            item.position(slice.limit());
+         }
+         else {
+            buffer.put(item);
+         }
+
+         if (!item.hasRemaining()) {
+            current = null;
+            if (!isClosing()) {
+               // The pipe has room again, the next item may arrive on this thread before we return
+               subscription.request(1);
+            }
+         }
+      }
+
+      @Override
+      boolean wakeup()
+      {
+         if (!super.wakeup()) {
+            // Stdin was closed, or the process has exited
+            cancel();
+         }
+         return true;
+      }
+   }
+}
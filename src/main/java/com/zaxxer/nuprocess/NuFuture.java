@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} that runs callbacks when it completes, in the style of Java 8's
+ * {@code CompletableFuture}, which is not available on every platform this library supports.
+ * <p>
+ * Callbacks registered with {@link #whenComplete(Callback)} run on the thread that completes the
+ * future, for the futures returned by NuProcess that is an event processor thread, so they must not
+ * block.  A callback registered after completion runs immediately on the registering thread.  No
+ * thread is needed to wait for the result unless {@link #get()} is called.
+ *
+ * @param <V> the type of the result
+ * @author Brett Wooldridge
+ */
+public class NuFuture<V> implements Future<V>
+{
+   private V result;
+   private Throwable failure;
+   private boolean done;
+   private List<Callback<? super V>> callbacks;
+
+   /**
+    * Receives the outcome of a {@link NuFuture}.
+    *
+    * @param <V> the type of the result
+    */
+   public interface Callback<V>
+   {
+      /**
+       * Called once the future has completed.
+       *
+       * @param result the result, or {@code null} if the future failed
+       * @param failure the exception the future failed with, or {@code null} if it succeeded
+       */
+      void onComplete(V result, Throwable failure);
+   }
+
+   /**
+    * Complete the future with a result, unless it has already completed.
+    *
+    * @param value the result
+    * @return true if this call completed the future
+    */
+   public boolean complete(V value)
+   {
+      return finish(value, null);
+   }
+
+   /**
+    * Complete the future with an exception, unless it has already completed.
+    *
+    * @param exception the cause of the failure
+    * @return true if this call completed the future
+    */
+   public boolean completeExceptionally(Throwable exception)
+   {
+      if (exception == null) {
+         throw new NullPointerException("Exception may not be null");
+      }
+      return finish(null, exception);
+   }
+
+   /**
+    * Register a callback to run when the future completes, or right away if it has.
+    *
+    * @param callback the callback
+    * @return this future
+    */
+   public NuFuture<V> whenComplete(Callback<? super V> callback)
+   {
+      synchronized (this) {
+         if (!done) {
+            if (callbacks == null) {
+               callbacks = new ArrayList<Callback<? super V>>(2);
+            }
+            callbacks.add(callback);
+            return this;
+         }
+      }
+
+      notify(callback);
+      return this;
+   }
+
+   /**
+    * Remove a callback registered with {@link #whenComplete(Callback)}, so that a future which is no
+    * longer of interest is not kept reachable until this one completes.
+    *
+    * @param callback the callback, compared by identity
+    * @return true if the callback was still waiting for completion
+    */
+   public synchronized boolean removeCallback(Callback<? super V> callback)
+   {
+      if (callbacks != null) {
+         for (int i = 0; i < callbacks.size(); i++) {
+            if (callbacks.get(i) == callback) {
+               callbacks.remove(i);
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * @return the number of callbacks waiting for completion
+    */
+   synchronized int getCallbackCount()
+   {
+      return (callbacks != null) ? callbacks.size() : 0;
+   }
+
+   /**
+    * Complete the future with a {@link CancellationException}.  Cancelling the future of an operation
+    * does not stop the operation itself.
+    *
+    * @param mayInterruptIfRunning ignored
+    * @return true if the future is cancelled after this call
+    */
+   @Override
+   public boolean cancel(boolean mayInterruptIfRunning)
+   {
+      finish(null, new CancellationException());
+      return isCancelled();
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public synchronized boolean isCancelled()
+   {
+      return failure instanceof CancellationException;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public synchronized boolean isDone()
+   {
+      return done;
+   }
+
+   /**
+    * Test whether the future completed with an exception, including cancellation.
+    *
+    * @return true if the future failed
+    */
+   public synchronized boolean isCompletedExceptionally()
+   {
+      return failure != null;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public synchronized V get() throws InterruptedException, ExecutionException
+   {
+      while (!done) {
+         wait();
+      }
+      return report();
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+   {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!done) {
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) {
+            throw new TimeoutException();
+         }
+         TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return report();
+   }
+
+   /**
+    * Get the result if the future has completed, without waiting.
+    *
+    * @param valueIfAbsent the value to return if the future has not completed
+    * @return the result, or {@code valueIfAbsent}
+    * @throws ExecutionException if the future failed
+    */
+   public synchronized V getNow(V valueIfAbsent) throws ExecutionException
+   {
+      return done ? report() : valueIfAbsent;
+   }
+
+   private V report() throws ExecutionException
+   {
+      if (failure instanceof CancellationException) {
+         throw (CancellationException) failure;
+      }
+      if (failure != null) {
+         throw new ExecutionException(failure);
+      }
+      return result;
+   }
+
+   private boolean finish(V value, Throwable exception)
+   {
+      List<Callback<? super V>> pending;
+      synchronized (this) {
+         if (done) {
+            return false;
+         }
+
+         result = value;
+         failure = exception;
+         done = true;
+         pending = callbacks;
+         callbacks = null;
+         notifyAll();
+      }
+
+      if (pending != null) {
+         for (Callback<? super V> callback : pending) {
+            notify(callback);
+         }
+      }
+      return true;
+   }
+
+   private void notify(Callback<? super V> callback)
+   {
+      try {
+         callback.onComplete(result, failure);
+      }
+      catch (Exception e) {
+         // Don't let an exception thrown from a callback interrupt the completing thread
+         e.printStackTrace(System.err);
+      }
+   }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.jna.Native;
+import com.zaxxer.nuprocess.internal.LibC;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+
+/**
+ * This class is used to create a pipeline of operating system processes, the equivalent
+ * of the shell's {@code producer | filter | consumer}.
+ * <p>
+ * Each stage is described by a {@link NuProcessBuilder}, including its own {@link NuProcessHandler}.
+ * The stdout of each stage is connected directly to the stdin of the next stage by a pipe that
+ * is created before the stages are spawned, so the data flowing between stages never passes
+ * through the Java process.  As a consequence, only the stdin of the first stage and the
+ * stdout and stderr of the last stage are delivered to handlers.  Like a shell, the stderr of
+ * every other stage is inherited from the Java process, unless that stage was configured with
+ * {@link NuProcessBuilder#redirectErrorStream(boolean)}, in which case it flows down the pipeline
+ * with its stdout, or with {@link NuProcessBuilder#redirectError(NuProcessBuilder.Redirect)}.
+ * <p>
+ * Every stage is a regular {@link NuProcess}, so the exit status of each stage is reported to
+ * its own {@link NuProcessHandler#onExit(int)} method and by its {@link NuProcess#waitFor} method.
+ * <p>
+ * Pipelines are not supported on Windows.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuPipeline
+{
+   // Stands for a pipe end while the stages are checked, before the pipes are created
+   private static final int PIPE_PLACEHOLDER = Integer.MAX_VALUE;
+
+   private final List<NuProcessBuilder> stages;
+
+   /**
+    * Constructs a pipeline from the specified stages.  This constructor makes a copy of the
+    * list of stages.
+    *
+    * @param stages a {@link List} of {@link NuProcessBuilder} instances, in pipeline order
+    */
+   public NuPipeline(List<NuProcessBuilder> stages) {
+      if (stages == null || stages.isEmpty()) {
+         throw new IllegalArgumentException("List of stages may not be null or empty");
+      }
+
+      this.stages = new ArrayList<NuProcessBuilder>(stages);
+   }
+
+   /**
+    * Constructs a pipeline from the specified stages.
+    *
+    * @param stages the {@link NuProcessBuilder} instances, in pipeline order
+    */
+   public NuPipeline(NuProcessBuilder... stages) {
+      this(stages == null ? null : Arrays.asList(stages));
+   }
+
+   /**
+    * Get the {@link List} of stages that were used to construct this {@link NuPipeline}.
+    *
+    * @return a {@link List} of {@link NuProcessBuilder} instances
+    */
+   public List<NuProcessBuilder> stages()
+   {
+      return stages;
+   }
+
+   /**
+    * Spawn every stage of the pipeline.  Like a shell, all stages are spawned even if one of
+    * them fails to launch; such a stage receives {@link NuProcessHandler#onExit(int)} with
+    * {@link Integer#MIN_VALUE} and the stages that were connected to it see the pipe close.
+    * If a stage cannot be launched for another reason, such as a pipe that cannot be created or
+    * a launch rejected by {@link NuAdmissionControl}, the stages after it are not spawned, and
+    * are reported to their handlers as launch failures in the same way.  The stages before it
+    * keep running, the caller may destroy them.
+    *
+    * @return an unmodifiable {@link List} containing the {@link NuProcess} of each stage, in pipeline
+    *    order, with {@code null} elements for stages with an immediately detectable launch failure
+    *    and for the stages that were not spawned
+    * @throws IllegalArgumentException or IllegalStateException if a stage cannot be started as
+    *    configured, before any stage is spawned
+    */
+   public List<NuProcess> start()
+   {
+      if (System.getProperty("os.name").toLowerCase().contains("win")) {
+         throw new UnsupportedOperationException("Pipelines are not supported on Windows");
+      }
+
+      // Every stage is checked, with its stdio connected as in the pipeline, before any is spawned
+      List<SpawnOptions> stageOptions = new ArrayList<SpawnOptions>(stages.size());
+      for (int i = 0; i < stages.size(); i++) {
+         SpawnOptions options = stages.get(i).spawnOptions();
+         if (i < stages.size() - 1) {
+            options.setStdoutFd(PIPE_PLACEHOLDER);
+            if (options.getStderrFd() == SpawnOptions.PIPE) {
+               options.setStderrFd(SpawnOptions.INHERIT);
+            }
+         }
+         if (i > 0) {
+            options.setStdinFd(PIPE_PLACEHOLDER);
+         }
+         stages.get(i).checkStart(options);
+         stageOptions.add(options);
+      }
+
+      List<NuProcess> processes = new ArrayList<NuProcess>(stages.size());
+
+      int upstream = -1;
+      try {
+         for (int i = 0; i < stages.size(); i++) {
+            SpawnOptions options = stageOptions.get(i);
+            int[] downstream = null;
+            try {
+               if (i < stages.size() - 1) {
+                  downstream = createPipe("pipeline");
+                  options.setStdoutFd(downstream[1]);
+               }
+            }
+            catch (RuntimeException e) {
+               // Out of descriptors, this stage and the next ones are given up
+               giveUp(processes, i);
+               break;
+            }
+
+            if (upstream != -1) {
+               options.setStdinFd(upstream);
+            }
+
+            try {
+               processes.add(stages.get(i).start(options));
+            }
+            catch (NuSpawnException e) {
+               // Reported to the handler of the stage, the next stages see the pipe close
+               processes.add(null);
+            }
+            catch (RuntimeException e) {
+               // Reported to the handler of the stage, not admitted or out of descriptors
+               processes.add(null);
+               giveUp(processes, i + 1);
+               break;
+            }
+            finally {
+               // The child has its own copies now, ours would only delay EOF
+               if (upstream != -1) {
+                  LibC.close(upstream);
+                  upstream = -1;
+               }
+               if (downstream != null) {
+                  LibC.close(downstream[1]);
+                  upstream = downstream[0];
+               }
+            }
+         }
+      }
+      finally {
+         if (upstream != -1) {
+            LibC.close(upstream);
+         }
+      }
+
+      return Collections.unmodifiableList(processes);
+   }
+
+   /**
+    * Report the stages from the given one on as launch failures, without spawning them.
+    */
+   private void giveUp(List<NuProcess> processes, int firstStage)
+   {
+      for (int i = firstStage; i < stages.size(); i++) {
+         processes.add(null);
+         stages.get(i).launchFailed();
+      }
+   }
+
+   /**
+    * Create a pipe whose ends are kept out of every other child, the file actions of a spawn dup them
+    * where they belong.  On Linux the ends are close-on-exec from the start, so that a process spawned
+    * concurrently by another thread cannot inherit them.  Mac spawns with
+    * {@code POSIX_SPAWN_CLOEXEC_DEFAULT}, so setting the flag afterwards is enough there.
+    *
+    * @param name what the pipe is for, in the error message
+    * @return the read and write ends
+    */
+   static int[] createPipe(String name)
+   {
+      int[] fds = new int[2];
+      if (LibC.has_pipe2()) {
+         if (LibC.pipe2(fds, LibC.O_CLOEXEC) != 0) {
+            throw new RuntimeException("Create " + name + " pipe2() failed, last error: " + Native.getLastError());
+         }
+         return fds;
+      }
+
+      if (LibC.pipe(fds) != 0) {
+         throw new RuntimeException("Create " + name + " pipe() failed, last error: " + Native.getLastError());
+      }
+
+      for (int fd : fds) {
+         if (LibC.fcntl(fd, LibC.F_SETFD, LibC.fcntl(fd, LibC.F_GETFD) | LibC.FD_CLOEXEC) != 0) {
+            int errno = Native.getLastError();
+            LibC.close(fds[0]);
+            LibC.close(fds[1]);
+            throw new RuntimeException("fcntl on " + name + " pipe failed, last error: " + errno);
+         }
+      }
+      return fds;
+   }
+}
@@ -49,6 +49,17 @@ public interface NuProcess
     */
    int waitFor(long timeout, TimeUnit timeUnit) throws InterruptedException;
 
+   /**
+    * Get a future that is completed by the event processor when the process exits, after the
+    * {@link NuProcessHandler#onExit} callback has returned.  Unlike {@link #waitFor}, reacting to
+    * the exit with {@link NuFuture#whenComplete(NuFuture.Callback)} does not need a waiting thread,
+    * so it scales to any number of processes.  Callbacks run on the event processor thread and must
+    * not block.
+    *
+    * @return the exit future of this process, the same instance on every call
+    */
+   NuFuture<ProcessResult> onExit();
+
    /**
     * Express a desire to write data to the STDIN stream of the process.  Calling this method
     * will result in the {@link NuProcessHandler#onStdinReady} callback method of the process
@@ -92,6 +103,53 @@ public interface NuProcess
     */
    boolean hasPendingWrites();
 
+   /**
+    * Queue data to be written to an extra input channel of the process, declared with
+    * {@link NuProcessBuilder#addInputChannel(int)}.  Like {@link #writeStdin(ByteBuffer)}, this
+    * method returns immediately and the data is written asynchronously as space is available in
+    * the pipe.
+    *
+    * @param fd the descriptor number of the channel in the child process
+    * @param buffer the {@link ByteBuffer} to write to the channel
+    * @throws IllegalArgumentException if no input channel was declared for {@code fd}
+    * @throws IllegalStateException if the channel has already been closed
+    */
+   void writeChannel(int fd, ByteBuffer buffer);
+
+   /**
+    * Close an extra input channel of the process once all data queued with
+    * {@link #writeChannel(int, ByteBuffer)} has been written, after which the child
+    * reads EOF from it.
+    *
+    * @param fd the descriptor number of the channel in the child process
+    * @throws IllegalArgumentException if no input channel was declared for {@code fd}
+    */
+   void closeChannel(int fd);
+
+   /**
+    * Stop reading the stdout or stderr pipe of the process until {@link #resumeOutput(int)} is
+    * called, for flow control.  Data stays in the pipe, and a child that fills it blocks in its
+    * next write, so a slow consumer never makes the Java process buffer more than one read.  The
+    * exit of a process is not reported while the remaining output of a paused pipe is unread.
+    * <p>
+    * This method may be called from any thread, including from {@link NuProcessHandler#onStdout}
+    * or {@link NuProcessHandler#onStderr}, in which case no further data is delivered after the
+    * callback returns.  Pausing output is not supported on Windows.
+    *
+    * @param fd 1 for stdout or 2 for stderr
+    * @throws IllegalArgumentException if {@code fd} is not 1 or 2
+    */
+   void pauseOutput(int fd);
+
+   /**
+    * Resume reading a pipe paused by {@link #pauseOutput(int)}.  It has no effect on a pipe that
+    * is not paused.
+    *
+    * @param fd 1 for stdout or 2 for stderr
+    * @throws IllegalArgumentException if {@code fd} is not 1 or 2
+    */
+   void resumeOutput(int fd);
+
    /**
     * Terminates the process.<br>
     * <br>
@@ -118,6 +176,13 @@ public interface NuProcess
     */
    void destroy(boolean force);
 
+   /**
+    * Get the operating system process id of the process.
+    *
+    * @return the process id, or 0 if the process was not spawned
+    */
+   int getPid();
+
    /**
     * Tests whether or not the process is still running or has exited.
     *
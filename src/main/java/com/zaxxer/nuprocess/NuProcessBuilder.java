@@ -16,13 +16,22 @@
 
 package com.zaxxer.nuprocess;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import com.zaxxer.nuprocess.internal.LibC;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+import com.zaxxer.nuprocess.internal.UnsafeHelper;
+
 /**
  * This class is used to create operating system processes.
  * <p>
@@ -52,7 +61,62 @@ public class NuProcessBuilder
 
    private final List<String> command;
    private final TreeMap<String, String> environment;
+   private final SpawnOptions spawnOptions;
    private NuProcessHandler processListener;
+   private NuSharedInput sharedInput;
+
+   /**
+    * Describes what a standard stream of a subprocess is connected to.
+    *
+    * @see NuProcessBuilder#redirectInput(Redirect)
+    * @see NuProcessBuilder#redirectOutput(Redirect)
+    * @see NuProcessBuilder#redirectError(Redirect)
+    */
+   public static enum Redirect
+   {
+      /**
+       * The stream is connected to the Java process by a pipe and serviced by the {@link NuProcessHandler}.
+       * This is the default for all three streams.
+       */
+      PIPE,
+      /**
+       * The stream is shared with the corresponding stream of the Java process.
+       */
+      INHERIT,
+      /**
+       * The stream is connected to the null device, so the subprocess reads end-of-file immediately
+       * from stdin and anything it writes to stdout or stderr is discarded.
+       */
+      DISCARD,
+      /**
+       * Stdin is read from a file, see {@link NuProcessBuilder#redirectInput(File)} and
+       * {@link NuProcessBuilder#redirectInput(NuSharedInput)}.  This value is only reported by
+       * {@link NuProcessBuilder#redirectInput()}, it cannot be passed to the redirect methods.
+       */
+      FILE
+   }
+
+   /**
+    * Describes how the stdin and stdout pipes of a subprocess are implemented.
+    *
+    * @see NuProcessBuilder#setStdioTransport(StdioTransport)
+    */
+   public static enum StdioTransport
+   {
+      /**
+       * A separate pipe for each of stdin and stdout.  This is the default.
+       */
+      PIPE,
+      /**
+       * A single {@code AF_UNIX} {@code SOCK_STREAM} socket, which the child sees as both its stdin and its stdout.
+       */
+      STREAM_SOCKET,
+      /**
+       * A single {@code AF_UNIX} {@code SOCK_SEQPACKET} socket, which preserves the boundaries of the messages
+       * written in each direction.
+       */
+      SEQPACKET_SOCKET
+   }
 
    static {
       String factoryClassName = null;
@@ -98,6 +162,7 @@ public class NuProcessBuilder
 
       this.environment = new TreeMap<String, String>(environment);
       this.command = new ArrayList<String>(commands);
+      this.spawnOptions = new SpawnOptions();
    }
 
    /**
@@ -114,6 +179,7 @@ public class NuProcessBuilder
 
       this.environment = new TreeMap<String, String>(System.getenv());
       this.command = new ArrayList<String>(commands);
+      this.spawnOptions = new SpawnOptions();
    }
 
    /**
@@ -130,6 +196,7 @@ public class NuProcessBuilder
 
       this.environment = new TreeMap<String, String>(System.getenv());
       this.command = new ArrayList<String>(Arrays.asList(commands));
+      this.spawnOptions = new SpawnOptions();
    }
 
    /**
@@ -206,23 +273,681 @@ public class NuProcessBuilder
       this.processListener = listener;
    }
 
+   /**
+    * Tells whether this process builder merges standard error and standard output.
+    *
+    * @return {@code true} if stderr of subsequently started processes is redirected into their stdout
+    * @see #redirectErrorStream(boolean)
+    */
+   public boolean redirectErrorStream()
+   {
+      return spawnOptions.isRedirectErrorStream();
+   }
+
+   /**
+    * Sets this process builder's {@code redirectErrorStream} property.  If this property is {@code true},
+    * the stderr of subsequently started processes is dup'd onto their stdout pipe when the process is
+    * spawned.  Everything the child writes to either stream is then delivered, in the order it was written,
+    * to {@link NuProcessHandler#onStdout(ByteBuffer, boolean)}, and
+    * {@link NuProcessHandler#onStderr(ByteBuffer, boolean)} receives no data.  On Linux and
+    * MacOS X this also saves the stderr pipe, its buffer, and its event registration for every process.
+    * <p>
+    * The initial value of this property is {@code false}.
+    *
+    * @param redirectErrorStream the new property value
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectErrorStream(boolean redirectErrorStream)
+   {
+      spawnOptions.setRedirectErrorStream(redirectErrorStream);
+      return this;
+   }
+
+   /**
+    * Returns this process builder's standard input destination.
+    *
+    * @return this process builder's standard input destination
+    * @see #redirectInput(Redirect)
+    */
+   public Redirect redirectInput()
+   {
+      return toRedirect(spawnOptions.getStdinFd());
+   }
+
+   /**
+    * Sets this process builder's standard input source.  Unless the source is {@link Redirect#PIPE},
+    * subsequently started processes have no stdin pipe: {@link NuProcess#writeStdin(ByteBuffer)} and
+    * {@link NuProcess#wantWrite()} throw an {@link IllegalStateException}, and
+    * {@link NuProcessHandler#onStdinReady(ByteBuffer)} is never called.
+    *
+    * @param source the new standard input source
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectInput(Redirect source)
+   {
+      spawnOptions.setStdinFd(toFd(source));
+      return this;
+   }
+
+   /**
+    * Sets this process builder's standard input source to a file.  Each subsequently started process
+    * opens the file read-only as its stdin when it is spawned, with its own file offset, so the same
+    * file can be given to any number of processes without any data passing through the Java process.
+    * As with {@link Redirect#DISCARD}, these processes have no stdin pipe.  A file that cannot be opened
+    * is reported as a launch failure.  Not supported on Windows.
+    *
+    * @param file the file to read, a relative path is resolved against the working directory of the
+    *    Java process
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectInput(File file)
+   {
+      spawnOptions.setStdinPath(file.getAbsolutePath());
+      sharedInput = null;
+      return this;
+   }
+
+   /**
+    * Sets this process builder's standard input source to the content of a {@link NuSharedInput}, see
+    * {@link #redirectInput(File)}.  The {@link NuSharedInput} must remain open until the last process
+    * using it has been started.
+    *
+    * @param input the shared input to read
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectInput(NuSharedInput input)
+   {
+      spawnOptions.setStdinPath(input.getPath());
+      sharedInput = input;
+      return this;
+   }
+
+   /**
+    * Returns this process builder's standard output destination.
+    *
+    * @return this process builder's standard output destination
+    * @see #redirectOutput(Redirect)
+    */
+   public Redirect redirectOutput()
+   {
+      return toRedirect(spawnOptions.getStdoutFd());
+   }
+
+   /**
+    * Sets this process builder's standard output destination.  Unless the destination is
+    * {@link Redirect#PIPE}, subsequently started processes have no stdout pipe and
+    * {@link NuProcessHandler#onStdout(ByteBuffer, boolean)} is never called.
+    * <p>
+    * When neither stdout nor stderr is a pipe (or stderr is redirected into a stdout that is not a pipe),
+    * no end-of-file will ever signal that the process has exited.  Such processes are instead polled for
+    * their exit status, see the {@code com.zaxxer.nuprocess.deadPoolPollMs} setting, and consume no file
+    * descriptors or buffers in the Java process beyond their stdin pipe, if any.
+    *
+    * @param destination the new standard output destination
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectOutput(Redirect destination)
+   {
+      spawnOptions.setStdoutFd(toFd(destination));
+      return this;
+   }
+
+   /**
+    * Returns this process builder's standard error destination.
+    *
+    * @return this process builder's standard error destination
+    * @see #redirectError(Redirect)
+    */
+   public Redirect redirectError()
+   {
+      return toRedirect(spawnOptions.getStderrFd());
+   }
+
+   /**
+    * Sets this process builder's standard error destination.  Unless the destination is
+    * {@link Redirect#PIPE}, subsequently started processes have no stderr pipe and
+    * {@link NuProcessHandler#onStderr(ByteBuffer, boolean)} is never called.  This setting is ignored
+    * if {@link #redirectErrorStream(boolean)} is set.
+    *
+    * @param destination the new standard error destination
+    * @return this process builder
+    */
+   public NuProcessBuilder redirectError(Redirect destination)
+   {
+      spawnOptions.setStderrFd(toFd(destination));
+      return this;
+   }
+
+   /**
+    * Returns this process builder's working directory.  Subprocesses subsequently started by this
+    * object's {@link #start()} method will use this as their working directory.  The returned value
+    * may be {@code null}, which means to use the working directory of the current Java process.
+    *
+    * @return this process builder's working directory
+    */
+   public File directory()
+   {
+      return spawnOptions.getDirectory();
+   }
+
+   /**
+    * Sets this process builder's working directory.  Subprocesses subsequently started by this
+    * object's {@link #start()} method will use this as their working directory.  The argument may
+    * be {@code null}, which means to use the working directory of the current Java process.
+    * <p>
+    * The directory is changed by the spawn itself, without an intermediate shell, using
+    * {@code posix_spawn_file_actions_addchdir_np()} on Linux (glibc 2.29 or later) and MacOS X
+    * (10.15 or later).  A directory that does not exist is reported as a launch failure.  Where that
+    * function is missing, starting a process with a directory throws {@link UnsupportedOperationException}
+    * before anything is admitted or spawned.
+    *
+    * @param directory the new working directory
+    * @return this process builder
+    */
+   public NuProcessBuilder directory(File directory)
+   {
+      spawnOptions.setDirectory(directory);
+      return this;
+   }
+
+   /**
+    * Tells whether subsequently started processes are spawned with only the file descriptors that
+    * were configured for them.
+    *
+    * @return {@code true} if inherited file descriptors are closed at spawn
+    * @see #setCloseFds(boolean)
+    */
+   public boolean isCloseFds()
+   {
+      return spawnOptions.isCloseFds();
+   }
+
+   /**
+    * If set to {@code true}, every file descriptor of the Java process that is not explicitly configured
+    * for the child (its stdin, stdout and stderr) is closed in the child before it executes, regardless of
+    * its close-on-exec flag.  Without this, children inherit every descriptor the JVM has open without
+    * close-on-exec, such as sockets, jar files and the pipes of other children, which inflates their file
+    * descriptor tables and can keep those pipes from ever reaching EOF.
+    * <p>
+    * On Linux, this uses {@code posix_spawn_file_actions_addclosefrom_np()} when the C library provides it,
+    * and otherwise closes each descriptor listed in {@code /proc/self/fd}.  On MacOS X processes are always
+    * spawned this way.  This setting has no effect on Windows.  The initial value of this property is
+    * {@code false}.
+    *
+    * @param closeFds {@code true} to close inherited file descriptors at spawn
+    */
+   public void setCloseFds(boolean closeFds)
+   {
+      spawnOptions.setCloseFds(closeFds);
+   }
+
+   /**
+    * Returns how the stdin and stdout of subsequently started processes are connected to the Java process.
+    *
+    * @return the stdio transport
+    * @see #setStdioTransport(StdioTransport)
+    */
+   public StdioTransport getStdioTransport()
+   {
+      switch (spawnOptions.getStdioSocketType()) {
+      case LibC.SOCK_STREAM:
+         return StdioTransport.STREAM_SOCKET;
+      case LibC.SOCK_SEQPACKET:
+         return StdioTransport.SEQPACKET_SOCKET;
+      default:
+         return StdioTransport.PIPE;
+      }
+   }
+
+   /**
+    * Sets how the stdin and stdout of subsequently started processes are connected to the Java process.
+    * With a socket transport, both are backed by one end of an {@code AF_UNIX} {@code socketpair()}: the
+    * child has a single bidirectional descriptor dup'd to 0 and 1 instead of two pipes, and the buffer
+    * sizes can be tuned with {@link #setSocketBufferSizes(int, int)}.  {@link NuProcess#closeStdin()}
+    * shuts down the Java process's sending side of the socket, so the child still reads end-of-file.
+    * Stderr remains a pipe unless {@link #redirectErrorStream(boolean)} is set.
+    * <p>
+    * With {@link StdioTransport#SEQPACKET_SOCKET}, each buffer passed to {@link NuProcess#writeStdin(ByteBuffer)}
+    * or filled by {@link NuProcessHandler#onStdinReady(ByteBuffer)} is sent as one message (buffers larger
+    * than {@link NuProcess#BUFFER_CAPACITY} are split), and each call to
+    * {@link NuProcessHandler#onStdout(ByteBuffer, boolean)} delivers exactly one message written by the child,
+    * as long as the handler consumes the whole buffer.  Messages longer than {@link NuProcess#BUFFER_CAPACITY}
+    * are truncated, and empty messages are not delivered.  {@code SOCK_SEQPACKET} is not available for
+    * {@code AF_UNIX} on MacOS X.
+    * <p>
+    * A socket transport requires stdin and stdout to be {@link Redirect#PIPE}, and is not supported on Windows.
+    * The initial value of this property is {@link StdioTransport#PIPE}.
+    *
+    * @param transport the new stdio transport
+    */
+   public void setStdioTransport(StdioTransport transport)
+   {
+      if (transport == null) {
+         throw new NullPointerException("StdioTransport may not be null");
+      }
+
+      switch (transport) {
+      case STREAM_SOCKET:
+         spawnOptions.setStdioSocketType(LibC.SOCK_STREAM);
+         break;
+      case SEQPACKET_SOCKET:
+         spawnOptions.setStdioSocketType(LibC.SOCK_SEQPACKET);
+         break;
+      default:
+         spawnOptions.setStdioSocketType(0);
+      }
+   }
+
+   /**
+    * Sets the buffer sizes of the stdio socket of subsequently started processes, see
+    * {@link #setStdioTransport(StdioTransport)}.  The sizes apply to the Java process end of the socket,
+    * and are mirrored on the child end, so that {@code sendBufferSize} bounds the data queued towards the
+    * child and {@code receiveBufferSize} the data queued from it.  The kernel may round or cap the values,
+    * see {@code SO_SNDBUF} and {@code SO_RCVBUF} in {@code socket(7)}.  A value of 0, the initial value,
+    * keeps the system default.  This setting has no effect with {@link StdioTransport#PIPE}.
+    *
+    * @param sendBufferSize the size in bytes of the buffer towards the child, or 0
+    * @param receiveBufferSize the size in bytes of the buffer from the child, or 0
+    */
+   public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize)
+   {
+      if (sendBufferSize < 0 || receiveBufferSize < 0) {
+         throw new IllegalArgumentException("Socket buffer sizes must not be negative");
+      }
+
+      spawnOptions.setSocketSendBufferSize(sendBufferSize);
+      spawnOptions.setSocketReceiveBufferSize(receiveBufferSize);
+   }
+
+   /**
+    * Sets the capacity of the stdin, stdout and stderr pipes of subsequently started processes.  Linux pipes
+    * hold 64 KB by default, so a child that writes in bursts blocks as soon as that fills up and the Java
+    * process is woken up for every 64 KB.  A larger stdout or stderr pipe also gets a matching read buffer,
+    * so each wakeup can deliver up to a full pipe to {@link NuProcessHandler#onStdout(ByteBuffer, boolean)}
+    * or {@link NuProcessHandler#onStderr(ByteBuffer, boolean)}, at the cost of that much native memory per
+    * stream while the process runs.
+    * <p>
+    * The capacity is set with {@code fcntl(F_SETPIPE_SZ)}, which rounds it up to a power-of-two number of
+    * pages.  Values above {@code /proc/sys/fs/pipe-max-size} are lowered to it, and if the kernel refuses
+    * the change, for example because the user's pipe quota is exhausted, the pipe keeps its default capacity.
+    * A value of 0, the initial value, keeps the default.  This setting only has an effect on Linux, and only
+    * on streams connected by pipes.
+    *
+    * @param stdinCapacity the capacity in bytes of the stdin pipe, or 0
+    * @param stdoutCapacity the capacity in bytes of the stdout pipe, or 0
+    * @param stderrCapacity the capacity in bytes of the stderr pipe, or 0
+    */
+   public void setPipeCapacities(int stdinCapacity, int stdoutCapacity, int stderrCapacity)
+   {
+      if (stdinCapacity < 0 || stdoutCapacity < 0 || stderrCapacity < 0) {
+         throw new IllegalArgumentException("Pipe capacities must not be negative");
+      }
+
+      spawnOptions.setStdinPipeCapacity(stdinCapacity);
+      spawnOptions.setStdoutPipeCapacity(stdoutCapacity);
+      spawnOptions.setStderrPipeCapacity(stderrCapacity);
+   }
+
+   /**
+    * Declare an extra output channel: a pipe connected to descriptor {@code fd} of subsequently started
+    * processes, from which the child writes and the Java process reads.  Data written to it is delivered
+    * to {@link NuChannelHandler#onChannel(int, ByteBuffer, boolean)}, independently of stdout and stderr,
+    * so the process handler must implement {@link NuChannelHandler} (as {@link NuAbstractProcessHandler}
+    * does).  A process is not considered exited until all of its output channels have reached EOF.
+    * <p>
+    * Extra channels are not supported on Windows.
+    *
+    * @param fd the descriptor number in the child, 3 or greater
+    */
+   public void addOutputChannel(int fd)
+   {
+      spawnOptions.addChannel(fd, false);
+   }
+
+   /**
+    * Pass an open file of the Java process to subsequently started processes as descriptor {@code fd}.
+    * The child gets its own copy of the descriptor, made by a {@code dup2()} at spawn, so it can read or
+    * write the file, pipe or socket directly, without the data passing through the Java process.  For
+    * descriptors 0, 1 and 2 this replaces the corresponding stdin, stdout or stderr pipe; a later
+    * {@link #redirectInput(Redirect)}, {@link #redirectOutput(Redirect)} or {@link #redirectError(Redirect)}
+    * replaces it in turn.
+    * <p>
+    * The {@link FileDescriptor} remains owned by the caller, and must stay open until {@link #start()}
+    * returns.  Closing it afterwards does not affect the child.  Passing descriptors is not supported on
+    * Windows.
+    *
+    * @param fd the descriptor number in the child
+    * @param fileDescriptor the open file to pass, for example {@link FileDescriptor#out} or the
+    *    descriptor of a {@link java.io.FileOutputStream}
+    */
+   public void inheritFd(int fd, FileDescriptor fileDescriptor)
+   {
+      int fildes = UnsafeHelper.getFd(fileDescriptor);
+      if (fildes < 0) {
+         throw new IllegalArgumentException("FileDescriptor is not valid");
+      }
+
+      spawnOptions.inheritFd(fd, fildes);
+   }
+
+   /**
+    * Pass an open channel of the Java process, such as a connected {@link java.nio.channels.SocketChannel},
+    * a {@link java.nio.channels.FileChannel} or one end of a {@link java.nio.channels.Pipe}, to subsequently
+    * started processes as descriptor {@code fd}.  See {@link #inheritFd(int, FileDescriptor)}.
+    *
+    * @param fd the descriptor number in the child
+    * @param channel the open channel to pass
+    */
+   public void inheritFd(int fd, Channel channel)
+   {
+      if (!channel.isOpen()) {
+         throw new IllegalArgumentException("Channel is not open");
+      }
+
+      inheritFd(fd, UnsafeHelper.getFileDescriptor(channel));
+   }
+
+   /**
+    * Declare an extra input channel: a pipe connected to descriptor {@code fd} of subsequently started
+    * processes, from which the child reads.  Data is written to it with
+    * {@link NuProcess#writeChannel(int, ByteBuffer)}, and {@link NuProcess#closeChannel(int)} signals EOF.
+    * <p>
+    * Extra channels are not supported on Windows.
+    *
+    * @param fd the descriptor number in the child, 3 or greater
+    */
+   public void addInputChannel(int fd)
+   {
+      spawnOptions.addChannel(fd, true);
+   }
+
+   /**
+    * Declare a shared memory channel: a ring buffer in a {@code memfd} that subsequently started processes
+    * write to, for output rates where even the copies through a pipe are too costly.  The child writes
+    * directly into memory mapped by the Java process, and the readable regions of the ring are delivered
+    * in place to {@link NuChannelHandler#onChannel(int, ByteBuffer, boolean)}, so the process handler must
+    * implement {@link NuChannelHandler}.  The buffer is a view of the ring and must not be used after the
+    * handler returns; bytes left in it are delivered again, as for a pipe, and the child cannot overwrite
+    * them until they are consumed.
+    * <p>
+    * The child gets three descriptors.  Descriptor {@code fd} is the {@code memfd}, to be mapped shared and
+    * read-write, laid out in native byte order as a 4096 byte header followed by the data area:
+    * <ul>
+    *   <li>offset 0, int: the magic number {@code 0x4e757267}</li>
+    *   <li>offset 4, int: the capacity of the data area, a power of two</li>
+    *   <li>offset 64, long: the head, the total number of bytes written by the child</li>
+    *   <li>offset 128, long: the tail, the total number of bytes consumed by the Java process</li>
+    *   <li>offset 192, int: set to 1 by the child once it has written everything</li>
+    * </ul>
+    * Byte {@code n} of the stream is at {@code 4096 + (n & (capacity - 1))}.  Descriptors {@code fd + 1}
+    * and {@code fd + 2} are non-blocking eventfds.  After storing the data and then the head, or the
+    * closed flag, the child writes the 8 byte value 1 to {@code fd + 1}.  The Java process writes 1 to
+    * {@code fd + 2} whenever it advances the tail; a child that finds the ring full polls {@code fd + 2},
+    * reads it to reset it, and then reads the tail again.
+    * <p>
+    * The stream ends when the child sets the closed flag or exits.  Unlike a pipe it does not tell that
+    * the process has exited, which is still detected through stdout and stderr.  Shared memory channels
+    * are only supported on Linux.
+    *
+    * @param fd the descriptor number of the {@code memfd} in the child, 3 or greater
+    * @param capacity the size of the data area, rounded up to a power of two of at least 4096
+    * @throws UnsupportedOperationException if the platform does not support shared memory channels
+    */
+   public void addSharedMemoryChannel(int fd, int capacity)
+   {
+      if (!System.getProperty("os.name").toLowerCase().contains("linux") || !LibC.has_memfd_create() || !LibC.has_eventfd()) {
+         throw new UnsupportedOperationException("Shared memory channels are only supported on Linux");
+      }
+
+      spawnOptions.addSharedMemoryChannel(fd, capacity);
+   }
+
+   private static int toFd(Redirect redirect)
+   {
+      if (redirect == null) {
+         throw new NullPointerException("Redirect may not be null");
+      }
+
+      switch (redirect) {
+      case INHERIT:
+         return SpawnOptions.INHERIT;
+      case DISCARD:
+         return SpawnOptions.DISCARD;
+      case FILE:
+         throw new IllegalArgumentException("Use redirectInput(File) to read stdin from a file");
+      default:
+         return SpawnOptions.PIPE;
+      }
+   }
+
+   private static Redirect toRedirect(int fd)
+   {
+      if (fd == SpawnOptions.INHERIT) {
+         return Redirect.INHERIT;
+      }
+      else if (fd == SpawnOptions.DISCARD) {
+         return Redirect.DISCARD;
+      }
+      else if (fd == SpawnOptions.FILE) {
+         return Redirect.FILE;
+      }
+      return Redirect.PIPE;
+   }
+
    /**
     * Spawn the child process with the configured commands, environment, and {@link NuProcessHandler}.
+    * A launch failure is reported to the handler as an exit with {@code Integer.MIN_VALUE}.
     *
-    * @return a {@link NuProcess} instance or {@code null} if there is an immediately detectable launch failure
+    * @return a {@link NuProcess} instance
+    * @throws NuSpawnException if the process could not be spawned, with the error number returned by
+    *    {@code posix_spawn()} on Linux and Mac, or by {@code GetLastError()} after {@code CreateProcessW()}
+    *    on Windows
+    * @throws NuAdmissionException if {@link NuAdmissionControl} did not admit the launch
     */
    public NuProcess start()
+   {
+      return start(spawnOptions());
+   }
+
+   /**
+    * Spawn several identical child processes, doing the work they share once.  Every process is
+    * given the {@link NuProcessHandler} of this builder, so it must be able to serve several
+    * processes, see {@link #startAll(List, List)} to give each process its own.
+    *
+    * @param count the number of processes
+    * @return the processes, see {@link #startAll(List, List)}
+    */
+   public List<NuProcess> startAll(int count)
+   {
+      if (count < 0) {
+         throw new IllegalArgumentException("Count may not be negative");
+      }
+
+      List<String> shared = new ArrayList<String>(command);
+      List<List<String>> commands = new ArrayList<List<String>>(count);
+      List<NuProcessHandler> handlers = new ArrayList<NuProcessHandler>(count);
+      for (int i = 0; i < count; i++) {
+         commands.add(shared);
+         handlers.add(processListener);
+      }
+      return startCommands(commands, handlers);
+   }
+
+   /**
+    * Spawn one child process for each list of arguments, running the configured command followed
+    * by those arguments.  Every process is given the {@link NuProcessHandler} of this builder, see
+    * {@link #startAll(int)}.
+    *
+    * @param arguments the extra arguments of each process
+    * @return the processes, see {@link #startAll(List, List)}
+    */
+   public List<NuProcess> startAll(List<? extends List<String>> arguments)
+   {
+      List<NuProcessHandler> handlers = new ArrayList<NuProcessHandler>(arguments.size());
+      for (int i = 0; i < arguments.size(); i++) {
+         handlers.add(processListener);
+      }
+      return startAll(arguments, handlers);
+   }
+
+   /**
+    * Spawn one child process for each list of arguments, running the configured command followed
+    * by those arguments, with its own {@link NuProcessHandler}.
+    * <p>
+    * Compared to as many calls to {@link #start()}, the environment is encoded once, the executable
+    * is looked up once, the platform's spawn lock is taken once, and the processes are spawned back to
+    * back before they are registered with the event processors, in a single pass per event processor.
+    * The handlers are called as by {@link #start()}: {@code onPreStart} just before each spawn, and
+    * {@code onStart} once every process has been spawned and registered.
+    *
+    * @param arguments the extra arguments of each process, which may be empty lists
+    * @param handlers the handler of each process, in the same order
+    * @return the processes, in the same order, a process that failed to launch has exited with
+    *    {@code Integer.MIN_VALUE} as with {@link #start()}
+    * @throws IllegalArgumentException if the lists differ in size or the configuration cannot be started
+    * @throws NuAdmissionException if {@link NuAdmissionControl} did not admit the batch, nothing was started
+    * @throws NuSpawnException if a process could not be spawned, once the others have been started
+    * @throws RuntimeException if the pipes of a process cannot be created, the processes before it are
+    *    started and the others are reported to their handlers as failed
+    */
+   public List<NuProcess> startAll(List<? extends List<String>> arguments, List<? extends NuProcessHandler> handlers)
+   {
+      if (arguments.size() != handlers.size()) {
+         throw new IllegalArgumentException("Expected one handler per process, got " + handlers.size() + " for " + arguments.size() + " processes");
+      }
+
+      List<List<String>> commands = new ArrayList<List<String>>(arguments.size());
+      for (List<String> args : arguments) {
+         List<String> processCommand = new ArrayList<String>(command.size() + args.size());
+         processCommand.addAll(command);
+         processCommand.addAll(args);
+         commands.add(processCommand);
+      }
+      return startCommands(commands, handlers);
+   }
+
+   private List<NuProcess> startCommands(List<List<String>> commands, List<? extends NuProcessHandler> handlers)
+   {
+      SpawnOptions options = spawnOptions();
+      for (NuProcessHandler handler : handlers) {
+         checkStart(options, handler);
+      }
+
+      if (commands.isEmpty()) {
+         return new ArrayList<NuProcess>();
+      }
+
+      return factory.createProcesses(commands, environmentArray(), handlers, options);
+   }
+
+   /**
+    * Spawn the child process on a spawner thread, so that the caller does not wait for the spawn or
+    * for the setup of the pipes.  The command, environment, handler and options are taken as they are
+    * now, later changes to this builder do not affect the launch.  Requests made together with the same
+    * environment and options, from this builder or others, are spawned as one batch, as by
+    * {@link #startAll(List, List)}.
+    * <p>
+    * {@link NuProcessHandler#onPreStart(NuProcess)} and {@link NuProcessHandler#onStart(NuProcess)} are
+    * called on the spawner thread.  Cancelling the future before the spawn prevents it.  The number of
+    * spawner threads is set by the {@code com.zaxxer.nuprocess.spawnerThreads} system property, one by
+    * default.
+    *
+    * @return a future completed with what {@link #start()} would return, or with the exception it would throw
+    * @throws IllegalArgumentException if the configuration cannot be started, as for {@link #start()}
+    */
+   public NuFuture<NuProcess> startAsync()
+   {
+      return startAsync(processListener);
+   }
+
+   /**
+    * Spawn the child process on a spawner thread with the given handler rather than the one of
+    * this builder, see {@link #startAsync()}.
+    */
+   NuFuture<NuProcess> startAsync(NuProcessHandler handler)
+   {
+      SpawnOptions options = spawnOptions();
+      checkStart(options, handler);
+      return AsyncSpawner.submit(factory, new ArrayList<String>(command), environmentArray(), handler, options);
+   }
+
+   /**
+    * Get a copy of the spawn options configured on this builder, which may be adjusted
+    * for a single launch.
+    *
+    * @return a new {@link SpawnOptions} instance
+    */
+   SpawnOptions spawnOptions()
+   {
+      SpawnOptions options = new SpawnOptions(spawnOptions);
+      if (sharedInput != null && options.getStdinFd() == SpawnOptions.FILE) {
+         // Resolved for every launch, so that a closed input fails rather than a reused descriptor number being read
+         options.setStdinPath(sharedInput.getPath());
+      }
+      return options;
+   }
+
+   /**
+    * Spawn the child process with the configured commands, environment, and {@link NuProcessHandler},
+    * using the given per-launch {@link SpawnOptions}.
+    *
+    * @param options the spawn options for this launch
+    * @return a {@link NuProcess} instance
+    * @throws NuSpawnException as for {@link #start()}
+    */
+   NuProcess start(SpawnOptions options)
+   {
+      checkStart(options);
+      return factory.createProcess(command, environmentArray(), processListener, options);
+   }
+
+   /**
+    * Report to the handler of this builder a launch that was given up before its process was created,
+    * as a launch failure.
+    */
+   void launchFailed()
+   {
+      factory.launchFailed(Collections.singletonList(processListener));
+   }
+
+   /**
+    * Check that a process can be started with the given options and the handler of this builder.
+    *
+    * @throws IllegalArgumentException, IllegalStateException or UnsupportedOperationException if it cannot
+    */
+   void checkStart(SpawnOptions options)
+   {
+      checkStart(options, processListener);
+   }
+
+   private void checkStart(SpawnOptions options, NuProcessHandler processListener)
    {
       if (processListener == null) {
          throw new IllegalArgumentException("NuProcessHandler not specified");
       }
 
+      boolean hasOutputChannels = options.getChannels().containsValue(Boolean.FALSE) || !options.getSharedMemoryChannels().isEmpty();
+      if (hasOutputChannels && !(processListener instanceof NuChannelHandler)) {
+         throw new IllegalArgumentException("Output channels require a NuChannelHandler");
+      }
+
+      if (options.getStdioSocketType() != 0 && (options.getStdinFd() != SpawnOptions.PIPE || options.getStdoutFd() != SpawnOptions.PIPE)) {
+         throw new IllegalStateException("A socket stdio transport requires stdin and stdout to be pipes");
+      }
+
+      if (options.getDirectory() != null && !System.getProperty("os.name").toLowerCase().contains("win")
+          && !LibC.has_posix_spawn_file_actions_addchdir_np()) {
+         throw new UnsupportedOperationException("Setting the working directory requires posix_spawn_file_actions_addchdir_np()");
+      }
+   }
+
+   private String[] environmentArray()
+   {
       String[] env = new String[environment.size()];
       int i = 0;
       for (Entry<String, String> entrySet : environment.entrySet()) {
          env[i++] = entrySet.getKey() + "=" + entrySet.getValue();
       }
-
-      return factory.createProcess(command, env, processListener);
+      return env;
    }
 }
@@ -18,6 +18,8 @@ package com.zaxxer.nuprocess;
 
 import java.util.List;
 
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+
 /**
  * <b>This is an internal class.</b>  Instances of this interface create and start processes
  * in a platform-specific fashion.  
@@ -26,5 +28,20 @@ import java.util.List;
  */
 public interface NuProcessFactory
 {
-   NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener);
+   NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener, SpawnOptions options);
+
+   /**
+    * Create and start several processes with the same environment and options, see
+    * {@link NuProcessBuilder#startAll(List, List)}.
+    *
+    * @return the processes, in the order of {@code processListeners}
+    */
+   List<NuProcess> createProcesses(List<List<String>> commands, String[] env, List<? extends NuProcessHandler> processListeners, SpawnOptions options);
+
+   /**
+    * Report launches that were given up before their processes could be created, the way a launch
+    * failure is reported: each handler sees {@code onPreStart} and then {@code onExit} with
+    * {@code Integer.MIN_VALUE}.
+    */
+   void launchFailed(List<? extends NuProcessHandler> processListeners);
 }
@@ -131,7 +131,10 @@ public interface NuProcessHandler
     * invocation of this method (which might be when EOF is reached
     * and {@code closed} is {@code true}).
     * <p>
-    * Users wishing to merge stderr into stdout should simply delegate
+    * Users wishing to merge stderr into stdout should preferably use
+    * {@link NuProcessBuilder#redirectErrorStream(boolean)}, which merges the
+    * streams in the child, preserving the order in which they were written.
+    * Alternatively, users can simply delegate
     * this callback to {@link #onStdout(ByteBuffer, boolean)} when invoked, like so:
     * <pre>
     *    public void onStderr(ByteBuffer buffer, closed) {
@@ -0,0 +1,773 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of long-lived worker processes that each serve one request per line: a request is written
+ * to the stdin of a worker as a line, and the next line the worker writes to stdout is its response.
+ * Requests then cost a round trip through the pipes instead of a spawn.
+ * <p>
+ * A worker is taken from the pool with {@link #checkout(long, TimeUnit)}, used by one thread at a time
+ * with {@link Worker#call(String, long, TimeUnit)} or {@link Worker#submit(String)}, and given back with
+ * {@link #checkin(Worker)}.  The pool keeps between {@code minSize} and {@code maxSize} workers:
+ * <ul>
+ * <li>{@link #warmUp()} starts the minimum number of workers up front, in one batch.</li>
+ * <li>A checkout starts a new worker when none is idle and the pool is below its maximum size, and
+ *     waits for a checkin otherwise.</li>
+ * <li>A worker that was idle for more than {@value #ALIVE_BYPASS_WINDOW_MS}ms is validated by the
+ *     {@link HealthCheck}, if one is set, before it is handed out.</li>
+ * <li>A worker is retired at checkin once it has served {@link #setMaxJobsPerWorker(int) the maximum
+ *     number of requests}, once its resident memory exceeds {@link #setMaxResidentBytes(long) the
+ *     maximum} (Linux only), or if a request is still waiting for its response.</li>
+ * <li>A worker that exits by itself is removed, and replaced in the background if the pool falls
+ *     below its minimum size.  Consecutive crashes delay the replacement exponentially, up to
+ *     {@value #MAX_REPLACE_DELAY_MS}ms.</li>
+ * <li>A worker that fails to launch, or exits before it answered any request, is not replaced in the
+ *     background: the command is assumed to be broken until a worker started by a checkout answers a
+ *     request again.</li>
+ * </ul>
+ * A retired worker has its stdin closed and is expected to exit at EOF.  The {@link NuProcessBuilder}
+ * of the pool supplies the command, environment and options of the workers, its handler is not used.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuProcessPool implements Closeable
+{
+   /** How long a worker can stay idle and be handed out without a health check. */
+   public static final long ALIVE_BYPASS_WINDOW_MS = 500;
+
+   /** The delay before the second consecutive crashed worker is replaced, doubled for each further one. */
+   public static final long MIN_REPLACE_DELAY_MS = 100;
+
+   /** The maximum delay before a crashed worker is replaced. */
+   public static final long MAX_REPLACE_DELAY_MS = 30000;
+
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private static final Timer REPLACE_TIMER = new Timer("NuProcessPoolReplace", true);
+
+   private final NuProcessBuilder builder;
+   private final int minSize;
+   private final int maxSize;
+   private final ReentrantLock lock;
+   private final Condition available;
+   private final ArrayDeque<Worker> idle;
+   private int total;
+   private boolean closed;
+   // Workers that crashed in a row, and whether background replacement is stopped
+   private int crashes;
+   private boolean broken;
+
+   private volatile int maxJobs;
+   private volatile long maxResidentBytes;
+   private volatile HealthCheck healthCheck;
+
+   /**
+    * Validates an idle worker before it is handed out, for example by sending it a no-op request.
+    */
+   public interface HealthCheck
+   {
+      /**
+       * @param worker the worker, which the pool owns during the check
+       * @return true if the worker can be handed out, false to retire it
+       */
+      boolean isHealthy(Worker worker);
+   }
+
+   /**
+    * Create a pool.  No worker is started until {@link #warmUp()} or the first checkout.
+    *
+    * @param builder the builder of the workers, it must not be changed afterwards
+    * @param minSize the number of workers kept alive, idle or not
+    * @param maxSize the maximum number of workers
+    */
+   public NuProcessPool(NuProcessBuilder builder, int minSize, int maxSize) {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+         throw new IllegalArgumentException("Invalid pool sizes, minimum: " + minSize + ", maximum: " + maxSize);
+      }
+
+      this.builder = builder;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.lock = new ReentrantLock();
+      this.available = lock.newCondition();
+      this.idle = new ArrayDeque<Worker>();
+   }
+
+   /**
+    * @param maxJobs the number of requests after which a worker is retired, 0 for no limit (the default)
+    */
+   public void setMaxJobsPerWorker(int maxJobs)
+   {
+      this.maxJobs = maxJobs;
+   }
+
+   /**
+    * Retire workers that grow too large, for example because they leak.  It is only supported on
+    * Linux, where the resident set size is read from {@code /proc}.
+    *
+    * @param maxResidentBytes the resident set size above which a worker is retired at checkin, 0 for
+    *    no limit (the default)
+    */
+   public void setMaxResidentBytes(long maxResidentBytes)
+   {
+      this.maxResidentBytes = maxResidentBytes;
+   }
+
+   /**
+    * @param healthCheck the check of workers that have been idle, or null for none (the default)
+    */
+   public void setHealthCheck(HealthCheck healthCheck)
+   {
+      this.healthCheck = healthCheck;
+   }
+
+   /**
+    * Start workers until the pool has its minimum size, and wait for them to be spawned.
+    *
+    * @throws NuSpawnException if a worker could not be spawned
+    * @throws IllegalStateException if a worker failed to launch otherwise
+    */
+   public void warmUp()
+   {
+      int needed;
+      lock.lock();
+      try {
+         checkOpen();
+         needed = Math.max(0, minSize - total);
+         total += needed;
+      }
+      finally {
+         lock.unlock();
+      }
+
+      if (needed == 0) {
+         return;
+      }
+
+      List<Worker> workers = new ArrayList<Worker>(needed);
+      List<List<String>> arguments = new ArrayList<List<String>>(needed);
+      List<NuProcessHandler> handlers = new ArrayList<NuProcessHandler>(needed);
+      for (int i = 0; i < needed; i++) {
+         Worker worker = new Worker();
+         workers.add(worker);
+         arguments.add(Collections.<String>emptyList());
+         handlers.add(worker.handler);
+      }
+
+      try {
+         builder.startAll(arguments, handlers);
+      }
+      finally {
+         for (Worker worker : workers) {
+            started(worker);
+         }
+      }
+
+      int failed = 0;
+      for (Worker worker : workers) {
+         if (worker.launchFailed || worker.process == null) {
+            failed++;
+         }
+      }
+      if (failed > 0) {
+         throw new IllegalStateException(failed + " of " + needed + " workers failed to start: " + builder.command());
+      }
+   }
+
+   /**
+    * Take a worker from the pool, starting one if none is idle and the pool is below its maximum size.
+    *
+    * @param timeout the maximum time to wait for a worker, 0 to wait indefinitely
+    * @param unit the unit of {@code timeout}
+    * @return a worker, or {@code null} if the timeout elapsed
+    * @throws InterruptedException if the thread was interrupted while waiting
+    * @throws IllegalStateException if the pool is closed
+    */
+   public Worker checkout(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long remaining = (timeout == 0) ? Long.MAX_VALUE : unit.toNanos(timeout);
+      long deadline = System.nanoTime() + remaining;
+      while (true) {
+         Worker worker = null;
+         boolean start = false;
+         lock.lock();
+         try {
+            checkOpen();
+            while (worker == null && !start) {
+               worker = idle.pollFirst();
+               if (worker != null) {
+                  break;
+               }
+
+               if (total < maxSize) {
+                  total++;
+                  start = true;
+                  break;
+               }
+
+               if (remaining <= 0) {
+                  return null;
+               }
+               remaining = available.awaitNanos(remaining);
+               if (timeout == 0) {
+                  remaining = Long.MAX_VALUE;
+               }
+               checkOpen();
+            }
+         }
+         finally {
+            lock.unlock();
+         }
+
+         if (start) {
+            return startWorker();
+         }
+
+         if (isUsable(worker)) {
+            return worker;
+         }
+
+         retire(worker);
+         if (timeout != 0) {
+            remaining = deadline - System.nanoTime();
+         }
+      }
+   }
+
+   /**
+    * Give a worker back to the pool, or retire it if it is due.  The worker must not be used afterwards.
+    *
+    * @param worker a worker obtained from {@link #checkout(long, TimeUnit)}
+    */
+   public void checkin(Worker worker)
+   {
+      boolean recycle = worker.isAwaitingResponse() || !worker.process.isRunning();
+      recycle |= (maxJobs > 0 && worker.jobs >= maxJobs);
+      recycle |= (maxResidentBytes > 0 && residentBytes(worker.process.getPid()) > maxResidentBytes);
+
+      lock.lock();
+      try {
+         if (!worker.retired && !recycle && !closed) {
+            worker.lastUsed = System.currentTimeMillis();
+            idle.addFirst(worker);
+            available.signal();
+            return;
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+
+      retire(worker);
+   }
+
+   /**
+    * @return the number of workers, idle, checked out or being started
+    */
+   public int getSize()
+   {
+      lock.lock();
+      try {
+         return total;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of idle workers
+    */
+   public int getIdleCount()
+   {
+      lock.lock();
+      try {
+         return idle.size();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Retire the idle workers, and the checked out ones as they are checked in.  Checkouts fail from now on.
+    */
+   @Override
+   public void close()
+   {
+      List<Worker> workers;
+      lock.lock();
+      try {
+         closed = true;
+         workers = new ArrayList<Worker>(idle);
+         idle.clear();
+         available.signalAll();
+      }
+      finally {
+         lock.unlock();
+      }
+
+      for (Worker worker : workers) {
+         retire(worker);
+      }
+   }
+
+   // ************************************************************************
+   //                             Private methods
+   // ************************************************************************
+
+   private Worker startWorker()
+   {
+      Worker worker = new Worker();
+      try {
+         List<NuProcessHandler> handlers = Collections.<NuProcessHandler>singletonList(worker.handler);
+         builder.startAll(Collections.singletonList(Collections.<String>emptyList()), handlers);
+      }
+      catch (RuntimeException e) {
+         launchFailed(worker);
+         throw e;
+      }
+
+      lock.lock();
+      try {
+         if (worker.retired) {
+            throw new IllegalStateException("Worker failed to start");
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+      return worker;
+   }
+
+   /**
+    * Start workers in the background until the pool has its minimum size again.
+    */
+   private void replenish()
+   {
+      int needed;
+      lock.lock();
+      try {
+         needed = (closed || broken) ? 0 : Math.max(0, minSize - total);
+         total += needed;
+      }
+      finally {
+         lock.unlock();
+      }
+
+      for (int i = 0; i < needed; i++) {
+         final Worker worker = new Worker();
+         try {
+            builder.startAsync(worker.handler).whenComplete(new NuFuture.Callback<NuProcess>() {
+               @Override
+               public void onComplete(NuProcess result, Throwable failure)
+               {
+                  if (failure != null) {
+                     launchFailed(worker);
+                  }
+                  else {
+                     started(worker);
+                  }
+               }
+            });
+         }
+         catch (RuntimeException e) {
+            launchFailed(worker);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Remove a worker that exited by itself, and replace it after a delay that grows with the number of
+    * consecutive crashes.  A worker that failed to launch or never answered a request is not replaced.
+    */
+   private void crashed(Worker worker, int statusCode)
+   {
+      if (statusCode == Integer.MIN_VALUE) {
+         launchFailed(worker);
+         return;
+      }
+
+      long delay;
+      lock.lock();
+      try {
+         if (!remove(worker)) {
+            return;
+         }
+         if (worker.jobs == 0) {
+            broken = true;
+            return;
+         }
+         crashes++;
+         delay = (crashes == 1) ? 0 : Math.min(MAX_REPLACE_DELAY_MS, MIN_REPLACE_DELAY_MS << Math.min(crashes - 2, 20));
+      }
+      finally {
+         lock.unlock();
+      }
+
+      if (delay == 0) {
+         replenish();
+         return;
+      }
+
+      REPLACE_TIMER.schedule(new TimerTask() {
+         @Override
+         public void run()
+         {
+            replenish();
+         }
+      }, delay);
+   }
+
+   /**
+    * Remove a worker that could not be launched, and stop replacing workers in the background.
+    */
+   private void launchFailed(Worker worker)
+   {
+      worker.launchFailed = true;
+      lock.lock();
+      try {
+         broken = true;
+         remove(worker);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * A worker answered a request, the command works again.
+    */
+   private void answered()
+   {
+      lock.lock();
+      try {
+         crashes = 0;
+         broken = false;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Add a worker that has been spawned to the idle workers, unless it failed to start or the pool is closed.
+    */
+   private void started(Worker worker)
+   {
+      lock.lock();
+      try {
+         if (worker.retired) {
+            return;
+         }
+         if (!closed && worker.process != null) {
+            worker.lastUsed = System.currentTimeMillis();
+            idle.addFirst(worker);
+            available.signal();
+            return;
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+
+      retire(worker);
+   }
+
+   private boolean isUsable(Worker worker)
+   {
+      if (!worker.process.isRunning()) {
+         return false;
+      }
+
+      HealthCheck check = healthCheck;
+      if (check == null || System.currentTimeMillis() - worker.lastUsed <= ALIVE_BYPASS_WINDOW_MS) {
+         return true;
+      }
+
+      try {
+         return check.isHealthy(worker) && !worker.isAwaitingResponse();
+      }
+      catch (Exception e) {
+         return false;
+      }
+   }
+
+   /**
+    * Remove a worker from the pool and close its stdin, then start a replacement if needed.
+    */
+   private void retire(Worker worker)
+   {
+      if (!remove(worker)) {
+         return;
+      }
+
+      NuProcess process = worker.process;
+      if (process != null) {
+         try {
+            process.closeStdin();
+         }
+         catch (RuntimeException e) {
+            // The process has already exited
+         }
+      }
+      replenish();
+   }
+
+   private boolean remove(Worker worker)
+   {
+      lock.lock();
+      try {
+         if (worker.retired) {
+            return false;
+         }
+
+         worker.retired = true;
+         idle.remove(worker);
+         total--;
+         available.signal();
+         return true;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   private void checkOpen()
+   {
+      if (closed) {
+         throw new IllegalStateException("Pool is closed");
+      }
+   }
+
+   private static long residentBytes(int pid)
+   {
+      BufferedReader reader = null;
+      try {
+         reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.startsWith("VmRSS:")) {
+               String[] fields = line.substring(6).trim().split("\\s+");
+               return Long.parseLong(fields[0]) * 1024;
+            }
+         }
+      }
+      catch (Exception e) {
+         // Not Linux, or the process has exited
+      }
+      finally {
+         if (reader != null) {
+            try {
+               reader.close();
+            }
+            catch (IOException e) {
+               // ignored
+            }
+         }
+      }
+      return 0;
+   }
+
+   // ************************************************************************
+   //                                 Worker
+   // ************************************************************************
+
+   /**
+    * A worker process of the pool.  It serves one request at a time, and is used by the thread that
+    * checked it out.
+    */
+   public final class Worker
+   {
+      private final WorkerHandler handler;
+      private volatile NuProcess process;
+      private volatile int jobs;
+      private volatile boolean launchFailed;
+      private volatile boolean answered;
+      private NuFuture<String> pending;
+      private boolean awaitingResponse;
+
+      // Guarded by the pool lock
+      private boolean retired;
+      private long lastUsed;
+
+      Worker() {
+         this.handler = new WorkerHandler(this);
+      }
+
+      /**
+       * @return the process of this worker
+       */
+      public NuProcess getProcess()
+      {
+         return process;
+      }
+
+      /**
+       * @return the number of requests sent to this worker
+       */
+      public int getJobCount()
+      {
+         return jobs;
+      }
+
+      /**
+       * Send a request to the worker.
+       *
+       * @param request the request, without its line terminator
+       * @return a future completed with the response line, without its terminator, or with an
+       *    {@link IOException} if the worker exits first
+       * @throws IllegalStateException if the response to the previous request has not arrived yet
+       */
+      public NuFuture<String> submit(String request)
+      {
+         NuFuture<String> future = new NuFuture<String>();
+         synchronized (this) {
+            if (awaitingResponse) {
+               throw new IllegalStateException("The previous request has not been answered yet");
+            }
+            awaitingResponse = true;
+            pending = future;
+         }
+         jobs++;
+
+         try {
+            process.writeStdin(ByteBuffer.wrap((request + "\n").getBytes(UTF_8)));
+         }
+         catch (IllegalStateException e) {
+            fail(new IOException("Worker stdin is closed"));
+         }
+         return future;
+      }
+
+      /**
+       * Send a request to the worker and wait for its response.  A worker whose response did not
+       * arrive in time is retired at checkin.
+       *
+       * @param request the request, without its line terminator
+       * @param timeout the maximum time to wait, 0 to wait indefinitely
+       * @param unit the unit of {@code timeout}
+       * @return the response line, without its terminator
+       * @throws ExecutionException with an {@link IOException} cause if the worker exited
+       * @throws TimeoutException if the timeout elapsed
+       */
+      public String call(String request, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+      {
+         NuFuture<String> future = submit(request);
+         return (timeout == 0) ? future.get() : future.get(timeout, unit);
+      }
+
+      synchronized boolean isAwaitingResponse()
+      {
+         return awaitingResponse;
+      }
+
+      void respond(String line)
+      {
+         NuFuture<String> future;
+         synchronized (this) {
+            future = pending;
+            pending = null;
+            awaitingResponse = false;
+         }
+
+         // Output that answers no request is dropped
+         if (future != null) {
+            if (!answered) {
+               answered = true;
+               answered();
+            }
+            future.complete(line);
+         }
+      }
+
+      void fail(IOException e)
+      {
+         NuFuture<String> future;
+         synchronized (this) {
+            future = pending;
+            pending = null;
+         }
+
+         if (future != null) {
+            future.completeExceptionally(e);
+         }
+      }
+   }
+
+   private final class WorkerHandler extends NuAbstractProcessHandler
+   {
+      private final Worker worker;
+      private final ByteArrayOutputStream line;
+
+      WorkerHandler(Worker worker) {
+         this.worker = worker;
+         this.line = new ByteArrayOutputStream();
+      }
+
+      @Override
+      public void onPreStart(NuProcess nuProcess)
+      {
+         worker.process = nuProcess;
+      }
+
+      @Override
+      public void onStdout(ByteBuffer buffer, boolean closed)
+      {
+         while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+               String response = new String(line.toByteArray(), UTF_8);
+               line.reset();
+               worker.respond(response);
+            }
+            else {
+               line.write(b);
+            }
+         }
+      }
+
+      @Override
+      public void onExit(int statusCode)
+      {
+         worker.fail(new IOException("Worker exited with code " + statusCode));
+         crashed(worker, statusCode);
+      }
+   }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Static helpers to wait for groups of processes.  They are built on {@link NuProcess#onExit()}: the
+ * event processors complete one shared future for the whole group, so waiting for any number of
+ * processes takes at most the one calling thread.  Once the group future completes, or is cancelled,
+ * its callbacks are removed from the exit futures of the processes, so that waiting repeatedly on
+ * long-running processes does not accumulate callbacks.
+ *
+ * @author Brett Wooldridge
+ */
+public final class NuProcesses
+{
+   private NuProcesses() {
+   }
+
+   /**
+    * Get a future that completes with the first of the processes to exit.  If several have already
+    * exited, it completes with one of them.  Cancel it if it is abandoned before then.
+    *
+    * @param processes the processes, which must not be empty
+    * @return a future of the first process to exit
+    */
+   public static NuFuture<NuProcess> anyOf(Collection<? extends NuProcess> processes)
+   {
+      if (processes.isEmpty()) {
+         throw new IllegalArgumentException("No processes to wait for");
+      }
+
+      final NuFuture<NuProcess> any = new NuFuture<NuProcess>();
+      Registrations registrations = new Registrations(processes.size());
+      for (final NuProcess process : processes) {
+         registrations.add(process, new NuFuture.Callback<ProcessResult>() {
+            @Override
+            public void onComplete(ProcessResult result, Throwable failure)
+            {
+               any.complete(process);
+            }
+         });
+
+         if (any.isDone()) {
+            break;
+         }
+      }
+
+      any.whenComplete(registrations);
+      return any;
+   }
+
+   /**
+    * Get a future that completes once all of the processes have exited, with their results in the
+    * iteration order of the collection.  Cancel it if it is abandoned before then.
+    *
+    * @param processes the processes
+    * @return a future of the results of all processes
+    */
+   public static NuFuture<List<ProcessResult>> allOf(Collection<? extends NuProcess> processes)
+   {
+      final NuFuture<List<ProcessResult>> all = new NuFuture<List<ProcessResult>>();
+      final ProcessResult[] results = new ProcessResult[processes.size()];
+      final AtomicInteger remaining = new AtomicInteger(results.length + 1);
+
+      Registrations registrations = new Registrations(processes.size());
+      int i = 0;
+      for (NuProcess process : processes) {
+         final int index = i++;
+         registrations.add(process, new NuFuture.Callback<ProcessResult>() {
+            @Override
+            public void onComplete(ProcessResult result, Throwable failure)
+            {
+               results[index] = result;
+               if (remaining.decrementAndGet() == 0) {
+                  all.complete(Collections.unmodifiableList(Arrays.asList(results)));
+               }
+            }
+         });
+      }
+
+      // The extra count keeps the future from completing while callbacks are still being registered
+      if (remaining.decrementAndGet() == 0) {
+         all.complete(Collections.unmodifiableList(Arrays.asList(results)));
+      }
+
+      all.whenComplete(registrations);
+      return all;
+   }
+
+   /**
+    * Wait for the first of the processes to exit.
+    *
+    * @param processes the processes, which must not be empty
+    * @param timeout a timeout value, 0 indicates an infinite wait
+    * @param unit the unit of time indicator for the timeout value
+    * @return the first process to exit, or {@code null} if none exited before the timeout
+    * @throws InterruptedException thrown if the thread is interrupted while waiting
+    */
+   public static NuProcess waitForAny(Collection<? extends NuProcess> processes, long timeout, TimeUnit unit) throws InterruptedException
+   {
+      NuFuture<NuProcess> any = anyOf(processes);
+      try {
+         return await(any, timeout, unit);
+      }
+      finally {
+         // Removes the callbacks if the processes are still running
+         any.cancel(false);
+      }
+   }
+
+   /**
+    * Wait for all of the processes to exit.
+    *
+    * @param processes the processes
+    * @param timeout a timeout value, 0 indicates an infinite wait
+    * @param unit the unit of time indicator for the timeout value
+    * @return the results of the processes in the iteration order of the collection, or {@code null}
+    *    if some were still running at the timeout
+    * @throws InterruptedException thrown if the thread is interrupted while waiting
+    */
+   public static List<ProcessResult> waitForAll(Collection<? extends NuProcess> processes, long timeout, TimeUnit unit) throws InterruptedException
+   {
+      NuFuture<List<ProcessResult>> all = allOf(processes);
+      try {
+         List<ProcessResult> results = await(all, timeout, unit);
+         return (results != null) ? new ArrayList<ProcessResult>(results) : null;
+      }
+      finally {
+         // Removes the callbacks if some processes are still running
+         all.cancel(false);
+      }
+   }
+
+   /**
+    * The callbacks a group future registered with the exit futures of its processes, removed from them
+    * when it completes.
+    */
+   private static final class Registrations implements NuFuture.Callback<Object>
+   {
+      private final List<NuFuture<ProcessResult>> exits;
+      private final List<NuFuture.Callback<ProcessResult>> callbacks;
+
+      Registrations(int size) {
+         exits = new ArrayList<NuFuture<ProcessResult>>(size);
+         callbacks = new ArrayList<NuFuture.Callback<ProcessResult>>(size);
+      }
+
+      void add(NuProcess process, NuFuture.Callback<ProcessResult> callback)
+      {
+         NuFuture<ProcessResult> exit = process.onExit();
+         exits.add(exit);
+         callbacks.add(callback);
+         exit.whenComplete(callback);
+      }
+
+      @Override
+      public void onComplete(Object result, Throwable failure)
+      {
+         for (int i = 0; i < exits.size(); i++) {
+            exits.get(i).removeCallback(callbacks.get(i));
+         }
+      }
+   }
+
+   private static <V> V await(NuFuture<V> future, long timeout, TimeUnit unit) throws InterruptedException
+   {
+      try {
+         return (timeout == 0) ? future.get() : future.get(timeout, unit);
+      }
+      catch (TimeoutException e) {
+         return null;
+      }
+      catch (ExecutionException e) {
+         // Exit futures are only ever completed normally
+         throw new RuntimeException(e.getCause());
+      }
+   }
+}
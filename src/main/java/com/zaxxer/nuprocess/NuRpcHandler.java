@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link NuProcessHandler} that sends requests to a process over its stdin and matches the responses
+ * it writes to stdout by correlation id, so that many requests can be outstanding at once and the
+ * process can answer them in any order.
+ * <p>
+ * Each request is tagged with an id that the process must copy into its response.  {@link #send(byte[])}
+ * returns a future of the response payload.  Requests are queued and written to stdin by the event
+ * processor, as many frames per write as fit in the stdin buffer, so a process that keeps up is never
+ * left waiting for the next request.  The number of requests awaiting a response is bounded by
+ * {@code maxInFlight}: a send waits for a response to free a slot first.  A request whose future is
+ * cancelled keeps its slot until its response arrives.  When the process exits, the outstanding
+ * requests fail with an {@link IOException}.
+ * <p>
+ * The frames of the {@link Framing} are the same in both directions.  A negative length header, or a
+ * response longer than {@code maxFrameLength}, is a protocol error: the outstanding requests fail with
+ * an {@link IOException}, the rest of stdout is ignored, and stdin is closed so that the process can
+ * exit.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuRpcHandler extends NuAbstractProcessHandler
+{
+   /**
+    * The default maximum length of a response payload, 16MB.
+    */
+   public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+   private final Framing framing;
+   private final Semaphore slots;
+   private final int maxFrameLength;
+   private final AtomicInteger nextId;
+   private final Map<Integer, NuFuture<byte[]>> inFlight;
+   private final ConcurrentLinkedQueue<ByteBuffer> outgoing;
+   private final ByteArrayOutputStream partial;
+   private final StreamSupport.StdinFeed stdin;
+
+   private volatile boolean exited;
+   private volatile IOException protocolError;
+
+   private int frameId;
+   private int frameLength;
+
+   /**
+    * How requests and responses are delimited on the pipes.
+    */
+   public static enum Framing
+   {
+      /**
+       * A line of text: the decimal id, a space, and the payload, which must not contain a newline.
+       * This suits scripts and line-oriented tools.
+       */
+      LINE,
+      /**
+       * A 4-byte id and a 4-byte payload length, both big-endian, followed by the payload.
+       */
+      LENGTH_PREFIXED
+   }
+
+   /**
+    * @param framing the framing of requests and responses
+    * @param maxInFlight the maximum number of requests awaiting a response
+    */
+   public NuRpcHandler(Framing framing, int maxInFlight) {
+      this(framing, maxInFlight, DEFAULT_MAX_FRAME_LENGTH);
+   }
+
+   /**
+    * @param framing the framing of requests and responses
+    * @param maxInFlight the maximum number of requests awaiting a response
+    * @param maxFrameLength the maximum length of a response payload, or of a response line
+    */
+   public NuRpcHandler(Framing framing, int maxInFlight, int maxFrameLength) {
+      if (maxInFlight < 1) {
+         throw new IllegalArgumentException("At least one request must be allowed in flight");
+      }
+      if (maxFrameLength < 1) {
+         throw new IllegalArgumentException("maxFrameLength must be positive");
+      }
+
+      this.framing = framing;
+      this.slots = new Semaphore(maxInFlight);
+      this.maxFrameLength = maxFrameLength;
+      this.nextId = new AtomicInteger();
+      this.inFlight = new ConcurrentHashMap<Integer, NuFuture<byte[]>>();
+      this.outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+      this.partial = new ByteArrayOutputStream();
+      this.frameId = -1;
+      this.stdin = new StreamSupport.StdinFeed() {
+         @Override
+         boolean hasPending()
+         {
+            return !outgoing.isEmpty();
+         }
+
+         @Override
+         void copyTo(ByteBuffer buffer)
+         {
+            ByteBuffer frame;
+            while (buffer.hasRemaining() && (frame = outgoing.peek()) != null) {
+               if (frame.remaining() > buffer.remaining()) {
+                  ByteBuffer slice = frame.duplicate();
+                  slice.limit(slice.position() + buffer.remaining());
+                  buffer.put(slice);
+                  frame.position(slice.limit());
+               }
+               else {
+                  buffer.put(frame);
+                  outgoing.poll();
+               }
+            }
+         }
+      };
+   }
+
+   /**
+    * Send a request, waiting for a free slot if {@code maxInFlight} requests are outstanding.
+    *
+    * @param payload the payload of the request
+    * @return the future of the response payload
+    * @throws InterruptedException if the thread was interrupted while waiting for a slot
+    * @throws IllegalArgumentException if the framing is {@link Framing#LINE} and the payload contains a newline
+    */
+   public NuFuture<byte[]> send(byte[] payload) throws InterruptedException
+   {
+      checkPayload(payload);
+      slots.acquire();
+      return sendInSlot(payload);
+   }
+
+   /**
+    * Send a request, waiting at most the given time for a free slot.
+    *
+    * @param payload the payload of the request
+    * @param timeout the maximum time to wait for a slot
+    * @param unit the unit of {@code timeout}
+    * @return the future of the response payload, or {@code null} if no slot was freed in time
+    * @throws InterruptedException if the thread was interrupted while waiting for a slot
+    * @throws IllegalArgumentException if the framing is {@link Framing#LINE} and the payload contains a newline
+    */
+   public NuFuture<byte[]> send(byte[] payload, long timeout, TimeUnit unit) throws InterruptedException
+   {
+      checkPayload(payload);
+      if (!slots.tryAcquire(timeout, unit)) {
+         return null;
+      }
+      return sendInSlot(payload);
+   }
+
+   /**
+    * @return the number of requests awaiting a response
+    */
+   public int getInFlightCount()
+   {
+      return inFlight.size();
+   }
+
+   /**
+    * Close stdin once the requests sent so far have been written, so that the process can finish the
+    * outstanding requests and exit.  Later sends fail.
+    */
+   public void shutdown()
+   {
+      stdin.setClosing();
+      // Stdin may be closed already, the outstanding requests fail when the process exits
+      stdin.wakeup();
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStart(NuProcess nuProcess)
+   {
+      stdin.start(nuProcess);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public boolean onStdinReady(ByteBuffer buffer)
+   {
+      return stdin.fill(buffer);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStdout(ByteBuffer buffer, boolean closed)
+   {
+      if (protocolError == null) {
+         if (framing == Framing.LINE) {
+            readLines(buffer);
+         }
+         else {
+            readFrames(buffer);
+         }
+      }
+
+      if (protocolError != null) {
+         buffer.position(buffer.limit());
+      }
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onExit(int statusCode)
+   {
+      exited = true;
+      failAll(new IOException("Process exited with code " + statusCode));
+   }
+
+   // ************************************************************************
+   //                             Private methods
+   // ************************************************************************
+
+   private NuFuture<byte[]> sendInSlot(byte[] payload)
+   {
+      NuFuture<byte[]> future = new NuFuture<byte[]>();
+      IOException failure = getFailure();
+      if (failure != null) {
+         slots.release();
+         future.completeExceptionally(failure);
+         return future;
+      }
+
+      int id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+      inFlight.put(id, future);
+      outgoing.add(encode(id, payload));
+      failure = getFailure();
+      if (failure != null) {
+         // Raced with the exit or a protocol error, which may not have seen this request
+         fail(id, failure);
+         return future;
+      }
+
+      stdin.wakeup();
+      return future;
+   }
+
+   private IOException getFailure()
+   {
+      if (protocolError != null) {
+         return protocolError;
+      }
+      if (exited) {
+         return new IOException("Process has exited");
+      }
+      return stdin.isClosing() ? new IOException("Handler is shut down") : null;
+   }
+
+   private void checkPayload(byte[] payload)
+   {
+      if (framing == Framing.LINE) {
+         for (byte b : payload) {
+            if (b == '\n') {
+               throw new IllegalArgumentException("A LINE payload must not contain a newline");
+            }
+         }
+      }
+   }
+
+   private ByteBuffer encode(int id, byte[] payload)
+   {
+      if (framing == Framing.LINE) {
+         byte[] prefix = (id + " ").getBytes();
+         ByteBuffer frame = ByteBuffer.allocate(prefix.length + payload.length + 1);
+         frame.put(prefix).put(payload).put((byte) '\n');
+         frame.flip();
+         return frame;
+      }
+
+      ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+      frame.putInt(id).putInt(payload.length).put(payload);
+      frame.flip();
+      return frame;
+   }
+
+   private void readLines(ByteBuffer buffer)
+   {
+      while (buffer.hasRemaining()) {
+         int end = buffer.position();
+         while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+         }
+
+         byte[] chunk = new byte[end - buffer.position()];
+         buffer.get(chunk);
+         partial.write(chunk, 0, chunk.length);
+         if (partial.size() > maxFrameLength) {
+            protocolError("Response line longer than " + maxFrameLength + " bytes");
+            return;
+         }
+         if (!buffer.hasRemaining()) {
+            // The rest of the line comes with the next read
+            return;
+         }
+         buffer.get();
+
+         byte[] line = partial.toByteArray();
+         partial.reset();
+         int space = 0;
+         while (space < line.length && line[space] != ' ') {
+            space++;
+         }
+
+         try {
+            int id = Integer.parseInt(new String(line, 0, space));
+            byte[] payload = new byte[Math.max(0, line.length - space - 1)];
+            System.arraycopy(line, Math.min(line.length, space + 1), payload, 0, payload.length);
+            respond(id, payload);
+         }
+         catch (NumberFormatException e) {
+            // Not a response, for example a diagnostic line
+         }
+      }
+   }
+
+   private void readFrames(ByteBuffer buffer)
+   {
+      while (buffer.hasRemaining()) {
+         if (frameId == -1) {
+            // Header, possibly split across reads
+            int needed = 8 - partial.size();
+            int n = Math.min(needed, buffer.remaining());
+            for (int i = 0; i < n; i++) {
+               partial.write(buffer.get());
+            }
+            if (partial.size() < 8) {
+               return;
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(partial.toByteArray());
+            partial.reset();
+            frameId = header.getInt() & Integer.MAX_VALUE;
+            frameLength = header.getInt();
+            if (frameLength < 0 || frameLength > maxFrameLength) {
+               protocolError("Invalid response frame length " + frameLength);
+               return;
+            }
+         }
+
+         int n = Math.min(frameLength - partial.size(), buffer.remaining());
+         if (n > 0) {
+            byte[] chunk = new byte[n];
+            buffer.get(chunk);
+            partial.write(chunk, 0, n);
+         }
+
+         if (partial.size() == frameLength) {
+            byte[] payload = partial.toByteArray();
+            partial.reset();
+            int id = frameId;
+            frameId = -1;
+            respond(id, payload);
+         }
+      }
+   }
+
+   private void respond(int id, byte[] payload)
+   {
+      NuFuture<byte[]> future = inFlight.remove(id);
+      if (future != null) {
+         slots.release();
+         future.complete(payload);
+      }
+   }
+
+   /**
+    * Called on the event processor thread: fail the outstanding requests, ignore the rest of stdout
+    * and close stdin.
+    */
+   private void protocolError(String message)
+   {
+      protocolError = new IOException("Protocol error: " + message);
+      partial.reset();
+      failAll(protocolError);
+
+      stdin.setClosing();
+      stdin.wakeup();
+   }
+
+   private void failAll(IOException e)
+   {
+      for (Integer id : inFlight.keySet()) {
+         fail(id, e);
+      }
+      outgoing.clear();
+   }
+
+   private void fail(int id, IOException e)
+   {
+      NuFuture<byte[]> future = inFlight.remove(id);
+      if (future != null) {
+         slots.release();
+         future.completeExceptionally(e);
+      }
+   }
+}
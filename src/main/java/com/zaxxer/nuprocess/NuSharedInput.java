@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sun.jna.Native;
+import com.zaxxer.nuprocess.internal.LibC;
+
+/**
+ * An immutable block of data that can be given to any number of processes as their stdin,
+ * see {@link NuProcessBuilder#redirectInput(NuSharedInput)}.  The content is written once, when
+ * the instance is created, and each child then reads it as a regular, seekable file from the page
+ * cache, with no copying or event processing by the Java process.  This is much cheaper than
+ * writing the same large input to every child with {@link NuProcess#writeStdin(ByteBuffer)}.
+ * <p>
+ * On Linux the content lives in an anonymous, sealed {@code memfd}, which cannot be modified
+ * after creation, and which children open through {@code /proc/self/fd}.  On other platforms it
+ * is written to a read-only temporary file, which is deleted by {@link #close()}.  Either way, each
+ * child opens its own read-only description of the file, so children do not share a file offset.
+ * <p>
+ * Call {@link #close()} once the last process using it has been started.  Children that are
+ * still reading are not affected.
+ *
+ * @author Brett Wooldridge
+ */
+public final class NuSharedInput implements Closeable
+{
+   private static final boolean IS_LINUX = System.getProperty("os.name").toLowerCase().contains("linux");
+
+   private final long size;
+   private volatile int fd;
+   private volatile File file;
+
+   private NuSharedInput(long size, int fd, File file) {
+      this.size = size;
+      this.fd = fd;
+      this.file = file;
+   }
+
+   /**
+    * Create a shared input holding the remaining bytes of the specified buffer.  The buffer's
+    * position is advanced to its limit.
+    *
+    * @param content the data that processes will read from their stdin
+    * @return a new {@link NuSharedInput}
+    * @throws IOException if the content cannot be stored
+    */
+   public static NuSharedInput create(ByteBuffer content) throws IOException
+   {
+      long size = content.remaining();
+      if (IS_LINUX && LibC.has_memfd_create()) {
+         int fd = LibC.memfd_create("nuprocess-input", LibC.MFD_CLOEXEC | LibC.MFD_ALLOW_SEALING);
+         if (fd == -1) {
+            throw new IOException("memfd_create() failed, last error: " + Native.getLastError());
+         }
+
+         try {
+            write(new File("/proc/self/fd/" + fd), content);
+
+            int rc = LibC.fcntl(fd, LibC.F_ADD_SEALS, LibC.F_SEAL_SHRINK | LibC.F_SEAL_GROW | LibC.F_SEAL_WRITE | LibC.F_SEAL_SEAL);
+            if (rc == -1) {
+               throw new IOException("Sealing the memfd failed, last error: " + Native.getLastError());
+            }
+            return new NuSharedInput(size, fd, null);
+         }
+         catch (IOException e) {
+            LibC.close(fd);
+            throw e;
+         }
+      }
+
+      File file = File.createTempFile("nuprocess-input", null);
+      try {
+         write(file, content);
+         if (!file.setReadOnly()) {
+            throw new IOException("Unable to make " + file + " read-only");
+         }
+         return new NuSharedInput(size, -1, file);
+      }
+      catch (IOException e) {
+         file.delete();
+         throw e;
+      }
+   }
+
+   /**
+    * Get the number of bytes that each process reads from this input.
+    *
+    * @return the size of the content
+    */
+   public long size()
+   {
+      return size;
+   }
+
+   /**
+    * Release the memory or temporary file holding the content.  Processes started afterwards
+    * with this input fail to launch.
+    */
+   @Override
+   public void close()
+   {
+      int fildes = fd;
+      if (fildes != -1) {
+         fd = -1;
+         LibC.close(fildes);
+      }
+
+      File f = file;
+      if (f != null) {
+         file = null;
+         f.delete();
+      }
+   }
+
+   /**
+    * The path that children open as their stdin.  For a {@code memfd} this refers to the descriptor
+    * of the Java process, which the child still holds while the spawn's file actions run.
+    */
+   String getPath()
+   {
+      if (fd != -1) {
+         return "/proc/self/fd/" + fd;
+      }
+      else if (file != null) {
+         return file.getAbsolutePath();
+      }
+      throw new IllegalStateException("NuSharedInput has been closed");
+   }
+
+   private static void write(File target, ByteBuffer content) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(target, "rw");
+      try {
+         FileChannel channel = raf.getChannel();
+         while (content.hasRemaining()) {
+            channel.write(content);
+         }
+      }
+      finally {
+         raf.close();
+      }
+   }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+/**
+ * Thrown when the operating system refuses to spawn a process, for example because the executable
+ * does not exist or is not executable.  The handler of the process has already been told, with an
+ * exit code of {@code Integer.MIN_VALUE}, when it is thrown.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuSpawnException extends RuntimeException
+{
+   private static final long serialVersionUID = 1L;
+
+   private final int errno;
+
+   /**
+    * @param message the detail message
+    * @param errno the error number returned by the spawn call, or by {@code GetLastError()} on Windows
+    */
+   public NuSpawnException(String message, int errno) {
+      super(message);
+      this.errno = errno;
+   }
+
+   /**
+    * @return the error number returned by the spawn call, for example {@code ENOENT} (2) for an
+    *    executable that does not exist, or the {@code GetLastError()} code on Windows, where
+    *    {@code ERROR_FILE_NOT_FOUND} is 2 as well
+    */
+   public int getErrno()
+   {
+      return errno;
+   }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link NuProcessHandler} that exposes the stdio of a process as blocking streams, like
+ * {@link Process#getInputStream()}, {@link Process#getErrorStream()} and {@link Process#getOutputStream()},
+ * without a thread per stream: the pipes are still served by the event processor.
+ * <p>
+ * The event processor and the stream users hand chunks of up to {@link NuProcess#BUFFER_CAPACITY}
+ * bytes to each other through lock-free queues.  A chunk is filled once and passed on by
+ * reference, and is recycled once consumed.  Each stream holds at most {@value #MAX_CHUNKS} chunks:
+ * when an input stream is full, its pipe is paused with {@link NuProcess#pauseOutput(int)} until it is
+ * read, and a write to a full output stream waits until the event processor has written a chunk to
+ * stdin.  A stream that has to wait parks its thread with {@link LockSupport} rather than blocking in a
+ * native call, so waiting costs no more than a parked thread, and a virtual thread on a recent Java
+ * releases its carrier thread meanwhile.  Each stream is meant to be used by one thread at a time.
+ * <p>
+ * A subclass that overrides {@link #onStart(NuProcess)}, {@link #onStdout(ByteBuffer, boolean)},
+ * {@link #onStderr(ByteBuffer, boolean)}, {@link #onStdinReady(ByteBuffer)} or {@link #onExit(int)}
+ * must call the implementation of this class.
+ *
+ * @author Brett Wooldridge
+ */
+public class NuStreamHandler extends NuAbstractProcessHandler
+{
+   /** The number of chunks a stream can hold. */
+   public static final int MAX_CHUNKS = 4;
+
+   private final ChunkInputStream stdout;
+   private final ChunkInputStream stderr;
+   private final ChunkOutputStream stdin;
+   private volatile NuProcess nuProcess;
+
+   public NuStreamHandler() {
+      this.stdout = new ChunkInputStream(1);
+      this.stderr = new ChunkInputStream(2);
+      this.stdin = new ChunkOutputStream();
+   }
+
+   /**
+    * @return the stream of the stdout of the process
+    */
+   public InputStream getInputStream()
+   {
+      return stdout;
+   }
+
+   /**
+    * @return the stream of the stderr of the process
+    */
+   public InputStream getErrorStream()
+   {
+      return stderr;
+   }
+
+   /**
+    * @return the stream to the stdin of the process, which must be closed to close stdin
+    */
+   public OutputStream getOutputStream()
+   {
+      return stdin;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onPreStart(NuProcess nuProcess)
+   {
+      this.nuProcess = nuProcess;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStart(NuProcess nuProcess)
+   {
+      stdin.start(nuProcess);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStdout(ByteBuffer buffer, boolean closed)
+   {
+      stdout.onData(buffer, closed);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onStderr(ByteBuffer buffer, boolean closed)
+   {
+      stderr.onData(buffer, closed);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public boolean onStdinReady(ByteBuffer buffer)
+   {
+      return stdin.fill(buffer);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void onExit(int statusCode)
+   {
+      stdin.broken();
+      // Readers of a process that failed to launch would wait forever, its pipes never reported EOF
+      stdout.onData(null, true);
+      stderr.onData(null, true);
+   }
+
+   private static final class Chunk
+   {
+      final byte[] bytes = new byte[NuProcess.BUFFER_CAPACITY];
+      int position;
+      int limit;
+
+      int remaining()
+      {
+         return limit - position;
+      }
+   }
+
+   // ************************************************************************
+   //                          stdout and stderr
+   // ************************************************************************
+
+   private final class ChunkInputStream extends InputStream
+   {
+      private final StreamSupport.OutputPause pause;
+      private final ConcurrentLinkedQueue<Chunk> ready;
+      private final ConcurrentLinkedQueue<Chunk> free;
+      private final AtomicInteger queued;
+
+      private volatile Thread waiter;
+      private volatile boolean eof;
+      private volatile boolean closed;
+      private Chunk current;
+
+      ChunkInputStream(int fd) {
+         this.pause = new StreamSupport.OutputPause(fd);
+         this.ready = new ConcurrentLinkedQueue<Chunk>();
+         this.free = new ConcurrentLinkedQueue<Chunk>();
+         this.queued = new AtomicInteger();
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+         }
+         if (closed) {
+            throw new IOException("Stream closed");
+         }
+         if (len == 0) {
+            return 0;
+         }
+
+         Chunk chunk = current;
+         while (chunk == null) {
+            // Looked at before polling, the last chunk is queued before the end is flagged
+            boolean ended = eof;
+            chunk = ready.poll();
+            if (chunk == null) {
+               if (ended) {
+                  return -1;
+               }
+               await();
+            }
+         }
+
+         int n = Math.min(len, chunk.remaining());
+         System.arraycopy(chunk.bytes, chunk.position, b, off, n);
+         chunk.position += n;
+         if (chunk.remaining() > 0) {
+            current = chunk;
+         }
+         else {
+            current = null;
+            recycle(chunk);
+         }
+         return n;
+      }
+
+      @Override
+      public int available() throws IOException
+      {
+         Chunk chunk = current;
+         if (chunk == null) {
+            chunk = ready.peek();
+         }
+         return (chunk == null) ? 0 : chunk.remaining();
+      }
+
+      /**
+       * Discard the rest of the output.  The process keeps running, its output is read and dropped.
+       */
+      @Override
+      public void close()
+      {
+         closed = true;
+         current = null;
+         Chunk chunk;
+         while ((chunk = ready.poll()) != null) {
+            recycle(chunk);
+         }
+         setPaused(false);
+      }
+
+      /**
+       * Called on the event processor thread with the data read from the pipe, and by
+       * {@link NuStreamHandler#onExit(int)} with a null buffer.
+       */
+      void onData(ByteBuffer buffer, boolean closed)
+      {
+         if (buffer != null) {
+            if (this.closed) {
+               buffer.position(buffer.limit());
+            }
+
+            // The whole buffer is taken, which can go one read past the limit
+            while (buffer.hasRemaining()) {
+               Chunk chunk = free.poll();
+               if (chunk == null) {
+                  chunk = new Chunk();
+               }
+               chunk.position = 0;
+               chunk.limit = Math.min(buffer.remaining(), chunk.bytes.length);
+               buffer.get(chunk.bytes, 0, chunk.limit);
+               ready.add(chunk);
+               queued.incrementAndGet();
+            }
+         }
+
+         if (closed) {
+            eof = true;
+         }
+         LockSupport.unpark(waiter);
+
+         if (queued.get() >= MAX_CHUNKS && !eof && !this.closed) {
+            setPaused(true);
+            // The reader may have made room before the pipe was paused
+            if (queued.get() < MAX_CHUNKS || this.closed) {
+               setPaused(false);
+            }
+         }
+      }
+
+      private void recycle(Chunk chunk)
+      {
+         free.add(chunk);
+         if (queued.decrementAndGet() == MAX_CHUNKS - 1) {
+            setPaused(false);
+         }
+      }
+
+      private void await() throws IOException
+      {
+         waiter = Thread.currentThread();
+         try {
+            if (ready.isEmpty() && !eof) {
+               LockSupport.park(this);
+            }
+         }
+         finally {
+            waiter = null;
+         }
+
+         if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for output");
+         }
+      }
+
+      private void setPaused(boolean paused)
+      {
+         pause.set(nuProcess, paused);
+      }
+   }
+
+   // ************************************************************************
+   //                                 stdin
+   // ************************************************************************
+
+   private final class ChunkOutputStream extends OutputStream
+   {
+      private final ConcurrentLinkedQueue<Chunk> ready;
+      private final ConcurrentLinkedQueue<Chunk> free;
+      private final AtomicInteger queued;
+      private final StreamSupport.StdinFeed feed;
+
+      private volatile Thread waiter;
+      private volatile boolean broken;
+      private Chunk current;
+
+      ChunkOutputStream() {
+         this.ready = new ConcurrentLinkedQueue<Chunk>();
+         this.free = new ConcurrentLinkedQueue<Chunk>();
+         this.queued = new AtomicInteger();
+         this.feed = new StreamSupport.StdinFeed() {
+            @Override
+            boolean hasPending()
+            {
+               return !ready.isEmpty();
+            }
+
+            @Override
+            void copyTo(ByteBuffer buffer)
+            {
+               Chunk chunk = ready.peek();
+               int n = Math.min(buffer.remaining(), chunk.remaining());
+               buffer.put(chunk.bytes, chunk.position, n);
+               chunk.position += n;
+               if (chunk.remaining() == 0) {
+                  ready.poll();
+                  free.add(chunk);
+                  queued.decrementAndGet();
+                  LockSupport.unpark(waiter);
+               }
+            }
+         };
+      }
+
+      @Override
+      public void write(int b) throws IOException
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+         }
+
+         while (len > 0) {
+            checkOpen();
+            if (current == null) {
+               current = free.poll();
+               if (current == null) {
+                  current = new Chunk();
+               }
+               current.position = 0;
+               current.limit = 0;
+            }
+
+            int n = Math.min(len, current.bytes.length - current.limit);
+            System.arraycopy(b, off, current.bytes, current.limit, n);
+            current.limit += n;
+            off += n;
+            len -= n;
+            if (current.limit == current.bytes.length) {
+               submit();
+            }
+         }
+      }
+
+      /**
+       * Hand the data written so far to the event processor, without waiting for it to reach the pipe.
+       */
+      @Override
+      public void flush() throws IOException
+      {
+         checkOpen();
+         if (current != null && current.limit > 0) {
+            submit();
+         }
+      }
+
+      /**
+       * Close stdin once the data written so far has been written to the pipe.
+       */
+      @Override
+      public void close() throws IOException
+      {
+         if (feed.isClosing() || broken) {
+            return;
+         }
+
+         flush();
+         feed.setClosing();
+         wakeup();
+      }
+
+      void start(NuProcess process)
+      {
+         if (!feed.start(process)) {
+            // Reported to the writer by its next call
+            broken = true;
+         }
+      }
+
+      void broken()
+      {
+         broken = true;
+         LockSupport.unpark(waiter);
+      }
+
+      boolean fill(ByteBuffer buffer)
+      {
+         return feed.fill(buffer);
+      }
+
+      private void submit() throws IOException
+      {
+         while (queued.get() >= MAX_CHUNKS) {
+            checkOpen();
+            waiter = Thread.currentThread();
+            try {
+               if (queued.get() >= MAX_CHUNKS && !broken) {
+                  LockSupport.park(this);
+               }
+            }
+            finally {
+               waiter = null;
+            }
+
+            if (Thread.interrupted()) {
+               throw new InterruptedIOException("Interrupted while waiting for room in stdin");
+            }
+         }
+
+         ready.add(current);
+         queued.incrementAndGet();
+         current = null;
+         wakeup();
+      }
+
+      private void wakeup() throws IOException
+      {
+         if (!feed.wakeup()) {
+            broken = true;
+            throw new IOException("Stdin of the process is closed");
+         }
+      }
+
+      private void checkOpen() throws IOException
+      {
+         if (feed.isClosing()) {
+            throw new IOException("Stream closed");
+         }
+         if (broken) {
+            throw new IOException("Process has exited");
+         }
+      }
+   }
+}
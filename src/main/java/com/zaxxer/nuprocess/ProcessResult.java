@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How and when a process ended, the result of {@link NuProcess#onExit()}.
+ *
+ * @author Brett Wooldridge
+ */
+public final class ProcessResult
+{
+   private final int pid;
+   private final int exitCode;
+   private final int signal;
+   private final long startTimeMillis;
+   private final long elapsedNanos;
+
+   /**
+    * @param pid the process id
+    * @param exitCode the exit code, as passed to {@link NuProcessHandler#onExit(int)}
+    * @param signal the signal that terminated the process, or 0
+    * @param startTimeMillis when the process was started, in milliseconds since the epoch
+    * @param elapsedNanos the time from the start of the process until its exit was detected
+    */
+   public ProcessResult(int pid, int exitCode, int signal, long startTimeMillis, long elapsedNanos) {
+      this.pid = pid;
+      this.exitCode = exitCode;
+      this.signal = signal;
+      this.startTimeMillis = startTimeMillis;
+      this.elapsedNanos = elapsedNanos;
+   }
+
+   /**
+    * @return the process id, or 0 if it is not known
+    */
+   public int getPid()
+   {
+      return pid;
+   }
+
+   /**
+    * Get the exit code of the process, the same value that is passed to
+    * {@link NuProcessHandler#onExit(int)}.  For a process terminated by a signal this is the signal
+    * number, as it always has been, see {@link #getSignal()} to tell the two apart.
+    *
+    * @return the exit code
+    */
+   public int getExitCode()
+   {
+      return exitCode;
+   }
+
+   /**
+    * @return the number of the signal that terminated the process, or 0 if it exited normally or
+    *    the platform has no signals
+    */
+   public int getSignal()
+   {
+      return signal;
+   }
+
+   /**
+    * @return true if the process was terminated by a signal
+    */
+   public boolean isSignaled()
+   {
+      return signal != 0;
+   }
+
+   /**
+    * @return when the process was started, in milliseconds since the epoch
+    */
+   public long getStartTimeMillis()
+   {
+      return startTimeMillis;
+   }
+
+   /**
+    * Get the time from the start of the process until its exit was detected by the event processor.
+    *
+    * @param unit the unit of the result
+    * @return the run time of the process
+    */
+   public long getElapsed(TimeUnit unit)
+   {
+      return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ProcessResult[pid=" + pid + ", exitCode=" + exitCode + ", signal=" + signal + ", elapsed="
+         + getElapsed(TimeUnit.MILLISECONDS) + "ms]";
+   }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The plumbing that {@link NuFlowHandler}, {@link NuStreamHandler} and {@link NuRpcHandler} share
+ * between the event processor and the threads using their streams.
+ *
+ * @author Brett Wooldridge
+ */
+final class StreamSupport
+{
+   private StreamSupport() {
+   }
+
+   /**
+    * Pauses and resumes the reading of one output pipe of a process, for flow control.  On Windows,
+    * where output cannot be paused, it does nothing and the stream holds whatever arrives.
+    */
+   static final class OutputPause
+   {
+      private final int fd;
+      private volatile boolean pausable;
+
+      /**
+       * @param fd 1 for stdout or 2 for stderr
+       */
+      OutputPause(int fd) {
+         this.fd = fd;
+         this.pausable = true;
+      }
+
+      /**
+       * @param process the process, or {@code null} before it is known
+       * @param paused true to pause the pipe, false to resume it
+       */
+      void set(NuProcess process, boolean paused)
+      {
+         if (process == null || !pausable) {
+            return;
+         }
+
+         try {
+            if (paused) {
+               process.pauseOutput(fd);
+            }
+            else {
+               process.resumeOutput(fd);
+            }
+         }
+         catch (UnsupportedOperationException e) {
+            pausable = false;
+         }
+      }
+   }
+
+   /**
+    * Writes data queued by other threads to the stdin of a process, then closes stdin once it is
+    * flagged as closing and the queue is empty.  {@link #fill(ByteBuffer)} serves
+    * {@link NuProcessHandler#onStdinReady(ByteBuffer)}, and write interest is only requested once the
+    * process has started.
+    */
+   abstract static class StdinFeed
+   {
+      private volatile NuProcess nuProcess;
+      private volatile boolean started;
+      private volatile boolean closing;
+
+      /**
+       * @return true if data is queued for stdin
+       */
+      abstract boolean hasPending();
+
+      /**
+       * Copy as much of the queued data as fits into the buffer, and consume it.  Called on the event
+       * processor thread, only after {@link #hasPending()} returned true.
+       *
+       * @param buffer the stdin buffer, not flipped yet
+       */
+      abstract void copyTo(ByteBuffer buffer);
+
+      /**
+       * Called from {@link NuProcessHandler#onStart(NuProcess)}, write interest is requested from now on.
+       *
+       * @return false if stdin of the process is already closed
+       */
+      boolean start(NuProcess process)
+      {
+         nuProcess = process;
+         started = true;
+         return (hasPending() || closing) ? wakeup() : true;
+      }
+
+      /**
+       * Close stdin once the data queued so far has been written.  The caller queues its last data
+       * before, and calls {@link #wakeup()} after.
+       */
+      void setClosing()
+      {
+         closing = true;
+      }
+
+      boolean isClosing()
+      {
+         return closing;
+      }
+
+      /**
+       * Request write interest, if the process has started.
+       *
+       * @return false if stdin of the process is closed, or the process has exited
+       */
+      boolean wakeup()
+      {
+         NuProcess process = nuProcess;
+         if (!started || process == null) {
+            return true;
+         }
+
+         try {
+            process.wantWrite();
+            return true;
+         }
+         catch (IllegalStateException e) {
+            return false;
+         }
+      }
+
+      /**
+       * Called on the event processor thread when there is room in the stdin pipe, and only after
+       * everything copied by the previous call has been written to it.
+       *
+       * @param buffer the stdin buffer, which is left flipped even when nothing was copied
+       * @return true to be called again
+       */
+      boolean fill(ByteBuffer buffer)
+      {
+         // Looked at before the queue, the last data is queued before closing is flagged
+         boolean isClosing = closing;
+         if (!hasPending()) {
+            buffer.flip();
+            if (isClosing) {
+               // In a call of its own, closing stdin drops what this call would have copied
+               nuProcess.closeStdin();
+            }
+            return false;
+         }
+
+         copyTo(buffer);
+         buffer.flip();
+
+         // One more call after the last data, to close stdin
+         return hasPending() || isClosing;
+      }
+   }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess.internal;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.jna.Native;
+import com.zaxxer.nuprocess.NuAdmissionControl.Policy;
+import com.zaxxer.nuprocess.NuAdmissionException;
+import com.zaxxer.nuprocess.NuAdmissionException.Reason;
+
+/**
+ * <b>This is an internal class.</b>  The state of {@link com.zaxxer.nuprocess.NuAdmissionControl}: the
+ * descriptor and process budgets, what the running processes hold of them, and the launches waiting
+ * for their share.  Waiting launches are admitted in arrival order, so that a large batch is not
+ * overtaken forever by single launches.
+ *
+ * @author Brett Wooldridge
+ */
+public final class AdmissionControl
+{
+   private static final int DEFAULT_HEADROOM = 64;
+   private static final String OS_NAME = System.getProperty("os.name").toLowerCase();
+
+   private static final ReentrantLock lock = new ReentrantLock();
+   private static final Condition released = lock.newCondition();
+
+   private static volatile Policy policy;
+   private static long queueTimeoutNanos;
+   private static int descriptorBudget;
+   private static int processBudget;
+
+   private static int descriptorsInUse;
+   private static int processesInUse;
+   private static long nextTicket;
+   private static long servingTicket;
+   private static final Set<Long> leftQueue = new HashSet<Long>();
+   private static int queueDepth;
+
+   private static long admittedCount;
+   private static long queuedCount;
+   private static long rejectedCount;
+   private static long totalWaitNanos;
+   private static long maxWaitNanos;
+
+   static {
+      String name = System.getProperty("com.zaxxer.nuprocess.admissionPolicy", Policy.NONE.name());
+      policy = Policy.valueOf(name.toUpperCase());
+      queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("com.zaxxer.nuprocess.admissionTimeoutMs", 0));
+
+      // The descriptors open now belong to the JVM, the headroom is left for those it opens later
+      int headroom = Integer.getInteger("com.zaxxer.nuprocess.admissionHeadroom", DEFAULT_HEADROOM);
+      if (OS_NAME.contains("win")) {
+         descriptorBudget = Integer.MAX_VALUE;
+         processBudget = Integer.MAX_VALUE;
+      }
+      else {
+         descriptorBudget = budget(limit(LibC.RLIMIT_NOFILE), openDescriptors() + headroom);
+         processBudget = budget(limit(LibC.RLIMIT_NPROC), headroom);
+      }
+   }
+
+   private AdmissionControl() {
+   }
+
+   /**
+    * Take the descriptors and processes needed by a launch, waiting or failing as the policy says.
+    * The resources are counted under any policy, so that the usage is known when a policy is set.
+    *
+    * @param descriptors the descriptors the launch opens in the Java process
+    * @param processes the number of processes of the launch
+    * @throws NuAdmissionException if the launch is rejected
+    */
+   public static void acquire(int descriptors, int processes)
+   {
+      lock.lock();
+      try {
+         Policy current = policy;
+         if (current == Policy.NONE) {
+            take(descriptors, processes);
+            return;
+         }
+
+         if (descriptors > descriptorBudget || processes > processBudget) {
+            throw reject(descriptors, processes, Reason.EXCEEDS_BUDGET);
+         }
+
+         if (queueDepth == 0 && fits(descriptors, processes)) {
+            take(descriptors, processes);
+            return;
+         }
+
+         if (current == Policy.REJECT) {
+            throw reject(descriptors, processes, Reason.OVER_BUDGET);
+         }
+
+         waitFor(descriptors, processes);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Give back resources taken by {@link #acquire(int, int)}.
+    *
+    * @param descriptors the number of descriptors closed
+    * @param processes the number of processes that have exited
+    */
+   public static void release(int descriptors, int processes)
+   {
+      if (descriptors == 0 && processes == 0) {
+         return;
+      }
+
+      lock.lock();
+      try {
+         descriptorsInUse -= descriptors;
+         processesInUse -= processes;
+         released.signalAll();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   public static Policy getPolicy()
+   {
+      return policy;
+   }
+
+   public static void setPolicy(Policy newPolicy, long timeout, TimeUnit unit)
+   {
+      lock.lock();
+      try {
+         policy = newPolicy;
+         queueTimeoutNanos = unit.toNanos(timeout);
+         released.signalAll();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   public static void setBudgets(int descriptors, int processes)
+   {
+      lock.lock();
+      try {
+         descriptorBudget = descriptors;
+         processBudget = processes;
+         released.signalAll();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Get a consistent snapshot of the counters.
+    *
+    * @return descriptor budget, descriptors in use, process budget, processes in use, queue depth,
+    *    admitted, queued, rejected, total wait nanoseconds and maximum wait nanoseconds
+    */
+   public static long[] snapshot()
+   {
+      lock.lock();
+      try {
+         return new long[] { descriptorBudget, descriptorsInUse, processBudget, processesInUse, queueDepth,
+                             admittedCount, queuedCount, rejectedCount, totalWaitNanos, maxWaitNanos };
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Count the descriptors the Java process opens to launch a process with the given options:
+    * {@code [0]} while it is spawned, and {@code [1]} from then until it exits.
+    *
+    * @param options the spawn options
+    * @return the two counts
+    */
+   public static int[] descriptorsNeeded(SpawnOptions options)
+   {
+      int ends = 0;
+      int kept = 0;
+      if (options.getStdioSocketType() != 0) {
+         // The socket pair and the copy of our end, the child's end is closed after the spawn
+         ends += 3;
+         kept += 2;
+      }
+      else {
+         int pipes = 0;
+         if (options.getStdinFd() == SpawnOptions.PIPE) {
+            pipes++;
+         }
+         if (options.getStdoutFd() == SpawnOptions.PIPE) {
+            pipes++;
+         }
+         ends += 2 * pipes;
+         kept += pipes;
+      }
+
+      if (options.getStderrFd() == SpawnOptions.PIPE && !options.isRedirectErrorStream()) {
+         ends += 2;
+         kept += 1;
+      }
+
+      ends += 2 * options.getChannels().size();
+      kept += options.getChannels().size();
+
+      // The memfd and both eventfds of a ring are dup'd into the child, none is closed after the spawn
+      ends += 3 * options.getSharedMemoryChannels().size();
+      kept += 3 * options.getSharedMemoryChannels().size();
+
+      return new int[] { ends, kept };
+   }
+
+   // ************************************************************************
+   //                             Private methods
+   // ************************************************************************
+
+   private static void waitFor(int descriptors, int processes)
+   {
+      long ticket = nextTicket++;
+      queueDepth++;
+      queuedCount++;
+      long start = System.nanoTime();
+      long deadline = start + queueTimeoutNanos;
+      try {
+         while (ticket != servingTicket || !fits(descriptors, processes)) {
+            if (policy == Policy.NONE) {
+               break;
+            }
+            else if (policy == Policy.REJECT) {
+               throw reject(descriptors, processes, Reason.OVER_BUDGET);
+            }
+
+            if (queueTimeoutNanos == 0) {
+               released.awaitUninterruptibly();
+            }
+            else {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  throw reject(descriptors, processes, Reason.TIMED_OUT);
+               }
+               released.awaitNanos(remaining);
+            }
+         }
+
+         take(descriptors, processes);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw reject(descriptors, processes, Reason.INTERRUPTED);
+      }
+      finally {
+         // Admitted or not, the next launch in line may go.  One that left out of turn is passed over
+         leftQueue.add(ticket);
+         while (leftQueue.remove(servingTicket)) {
+            servingTicket++;
+         }
+         queueDepth--;
+         long waited = System.nanoTime() - start;
+         totalWaitNanos += waited;
+         maxWaitNanos = Math.max(maxWaitNanos, waited);
+         released.signalAll();
+      }
+   }
+
+   private static boolean fits(int descriptors, int processes)
+   {
+      return descriptorsInUse + descriptors <= descriptorBudget && processesInUse + processes <= processBudget;
+   }
+
+   private static void take(int descriptors, int processes)
+   {
+      descriptorsInUse += descriptors;
+      processesInUse += processes;
+      admittedCount++;
+   }
+
+   private static NuAdmissionException reject(int descriptors, int processes, Reason reason)
+   {
+      rejectedCount++;
+      return new NuAdmissionException(reason, descriptors, processes, descriptorsInUse, descriptorBudget, processesInUse, processBudget);
+   }
+
+   private static long limit(int resource)
+   {
+      long[] rlim = new long[2];
+      if (LibC.getrlimit(resource, rlim) != 0) {
+         System.err.println("getrlimit() failed, last error: " + Native.getLastError());
+         return Long.MAX_VALUE;
+      }
+      return (rlim[0] < 0) ? Long.MAX_VALUE : rlim[0];
+   }
+
+   private static int budget(long limit, int reserved)
+   {
+      if (limit >= Integer.MAX_VALUE) {
+         return Integer.MAX_VALUE;
+      }
+      return (int) Math.max(0, limit - reserved);
+   }
+
+   private static int openDescriptors()
+   {
+      String[] fds = new File(OS_NAME.contains("mac") ? "/dev/fd" : "/proc/self/fd").list();
+      return (fds != null) ? fds.length : 0;
+   }
+}
@@ -21,12 +21,22 @@ import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.StringArray;
 import com.sun.jna.ptr.IntByReference;
+import com.zaxxer.nuprocess.NuChannelHandler;
+import com.zaxxer.nuprocess.NuFuture;
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessHandler;
+import com.zaxxer.nuprocess.NuSpawnException;
+import com.zaxxer.nuprocess.ProcessResult;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
@@ -43,6 +53,7 @@ public abstract class BasePosixProcess implements NuProcess
    protected static final boolean IS_LINUX = System.getProperty("os.name").toLowerCase().contains("linux");
    private static final boolean LINUX_USE_VFORK = Boolean.parseBoolean(System.getProperty("com.zaxxer.nuprocess.linuxUseVfork", "true"));
    private static final boolean IS_SOFTEXIT_DETECTION;
+   private static final int PIPE_MAX_SIZE = readPipeMaxSize();
 
    protected static IEventProcessor<? extends BasePosixProcess>[] processors;
    protected static int processorRoundRobin;
@@ -54,6 +65,9 @@ public abstract class BasePosixProcess implements NuProcess
    protected volatile boolean isRunning;
    protected AtomicInteger exitCode;
    protected CountDownLatch exitPending;
+   private final NuFuture<ProcessResult> exitFuture;
+   private long startTimeMillis;
+   private long startNanos;
 
    protected AtomicBoolean userWantsWrite;
 
@@ -64,6 +78,8 @@ public abstract class BasePosixProcess implements NuProcess
    protected Pointer outBufferPointer;
    protected Pointer errBufferPointer;
    protected Pointer inBufferPointer;
+   private int outBufferCapacity;
+   private int errBufferCapacity;
 
    // ******* Stdin/Stdout/Stderr pipe handles
    protected AtomicInteger stdin;
@@ -75,6 +91,15 @@ public abstract class BasePosixProcess implements NuProcess
 
    protected boolean outClosed;
    protected boolean errClosed;
+   private volatile boolean outPaused;
+   private volatile boolean errPaused;
+   private boolean hasOutputPipe;
+   private int stdioSocketType; // non-zero when stdin and stdout share a socketpair()
+
+   // ******* Extra pipes at child descriptors 3 and up
+   private static final ChildChannel[] NO_CHANNELS = new ChildChannel[0];
+   protected ChildChannel[] channels;
+   private List<Integer> extraWidows; // child ends of channels, and relocated copies of dup2() sources
 
    private ConcurrentLinkedQueue<ByteBuffer> pendingWrites;
    private int remainingWrite;
@@ -82,6 +107,11 @@ public abstract class BasePosixProcess implements NuProcess
 
    private Pointer posix_spawn_file_actions;
 
+   // ******* Admission control, what this process holds of the budgets
+   private int admittedDescriptors;
+   private int admittedProcesses;
+   private int keptDescriptors;
+
    static {
       IS_SOFTEXIT_DETECTION = Boolean.valueOf(System.getProperty("com.zaxxer.nuprocess.softExitDetection", "true"));
 
@@ -119,11 +149,18 @@ public abstract class BasePosixProcess implements NuProcess
       this.userWantsWrite = new AtomicBoolean();
       this.exitCode = new AtomicInteger();
       this.exitPending = new CountDownLatch(1);
+      this.exitFuture = new NuFuture<ProcessResult>();
       this.stdin = new AtomicInteger(-1);
       this.stdout = new AtomicInteger(-1);
       this.stderr = new AtomicInteger(-1);
+      this.stdinWidow = -1;
+      this.stdoutWidow = -1;
+      this.stderrWidow = -1;
       this.outClosed = true;
       this.errClosed = true;
+      this.outBufferCapacity = BUFFER_CAPACITY;
+      this.errBufferCapacity = BUFFER_CAPACITY;
+      this.channels = NO_CHANNELS;
    }
 
    // ************************************************************************
@@ -151,6 +188,27 @@ public abstract class BasePosixProcess implements NuProcess
       return exitCode.get();
    }
 
+   /** {@inheritDoc} */
+   @Override
+   public NuFuture<ProcessResult> onExit()
+   {
+      return exitFuture;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void pauseOutput(int fd)
+   {
+      setOutputPaused(fd, true);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void resumeOutput(int fd)
+   {
+      setOutputPaused(fd, false);
+   }
+
    /** {@inheritDoc} */
    @Override
    public void destroy(boolean force)
@@ -178,12 +236,13 @@ public abstract class BasePosixProcess implements NuProcess
    @Override
    public void closeStdin()
    {
+      // Taken once, so that concurrent callers cannot both deregister and close it
       int fd = stdin.getAndSet(-1);
       if (fd != -1) {
          if (myProcessor != null) {
-            myProcessor.closeStdin(this);
+            myProcessor.closeStdin(this, fd);
          }
-         LibC.close(fd);
+         closeStdinFd(fd);
       }
    }
 
@@ -208,6 +267,31 @@ public abstract class BasePosixProcess implements NuProcess
       return !pendingWrites.isEmpty();
    }
 
+   /** {@inheritDoc} */
+   @Override
+   public void writeChannel(int fd, ByteBuffer buffer)
+   {
+      ChildChannel channel = getInputChannel(fd);
+      if (channel.isCloseRequested() || channel.getFd().get() == -1) {
+         throw new IllegalStateException("closeChannel() method has already been called.");
+      }
+
+      channel.queueWrite(buffer);
+      myProcessor.queueChannelWrite(this, channel);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void closeChannel(int fd)
+   {
+      ChildChannel channel = getInputChannel(fd);
+      if (!channel.isCloseRequested() && channel.getFd().get() != -1) {
+         // Closed by the event processor once the queued data has been written
+         channel.requestClose();
+         myProcessor.queueChannelWrite(this, channel);
+      }
+   }
+
    /** {@inheritDoc} */
    @Override
    public void setProcessHandler(NuProcessHandler processHandler)
@@ -219,104 +303,171 @@ public abstract class BasePosixProcess implements NuProcess
    //                             Public methods
    // ************************************************************************
 
-   public NuProcess start(List<String> command, String[] environment)
+   public NuProcess start(List<String> command, String[] environment, SpawnOptions options)
    {
-      callPreStart();
-      
-      String[] commands = command.toArray(new String[0]);
+      List<BasePosixProcess> processes = new ArrayList<BasePosixProcess>(1);
+      processes.add(this);
+      List<List<String>> commands = new ArrayList<List<String>>(1);
+      commands.add(command);
+      startAll(processes, commands, environment, options);
+      return (myProcessor != null) ? this : null;
+   }
 
-      Pointer posix_spawn_file_actions = createPipes();
+   /**
+    * Take the share of the admission control budgets that the processes need, waiting for it if the
+    * policy queues launches.  The factories call it before they take their spawn lock, so that a launch
+    * waiting for its share does not hold back the launches that fit.  What a process holds is given back
+    * when it fails to spawn or exits.
+    *
+    * @param processes the processes about to be started with {@link #startAll}
+    * @param options the options of every process
+    * @throws com.zaxxer.nuprocess.NuAdmissionException if admission is rejected or timed out, after the processes have been
+    *    reported to their handlers as an exit with {@code Integer.MIN_VALUE}
+    */
+   public static void admitAll(List<? extends BasePosixProcess> processes, SpawnOptions options)
+   {
+      int[] descriptors = AdmissionControl.descriptorsNeeded(options);
+      try {
+         AdmissionControl.acquire(processes.size() * descriptors[0], processes.size());
+      }
+      catch (RuntimeException re) {
+         launchFailed(processes);
+         throw re;
+      }
 
-      Pointer posix_spawnattr = null;
-      if (IS_LINUX) {
-         long peer = Native.malloc(340);
-         posix_spawnattr = new Pointer(peer);
+      for (BasePosixProcess process : processes) {
+         process.admittedDescriptors = descriptors[0];
+         process.admittedProcesses = 1;
+         process.keptDescriptors = descriptors[1];
       }
-      else {
-         posix_spawnattr = new Memory(Pointer.SIZE);
+   }
+
+   /**
+    * Report processes that will not be started to their handlers, as an exit with
+    * {@code Integer.MIN_VALUE} after {@link NuProcessHandler#onPreStart(NuProcess)}.
+    *
+    * @param processes the processes given up
+    */
+   public static void launchFailed(List<? extends BasePosixProcess> processes)
+   {
+      for (BasePosixProcess process : processes) {
+         process.callPreStart();
+         process.onExit(Integer.MIN_VALUE);
       }
+   }
 
+   /**
+    * Start several processes with the same environment and options, doing the work they share once:
+    * the spawn attributes, the encoding of the environment, the encoding of each distinct command list
+    * instance and the lookup of each distinct executable.  The processes are spawned back to back, then
+    * registered with their event processors, then told that they have started.  A process that fails to
+    * start is reported to its handler as an exit with {@code Integer.MIN_VALUE}, as by {@link #start}.
+    * If posix_spawn() fails for a process, the others are still spawned, and the first
+    * {@link NuSpawnException} is thrown once they have been started.  If the pipes of a process cannot
+    * be created, it and the processes after it are reported the same way, and the exception is thrown
+    * once the processes before it have been started.
+    *
+    * @param processes the processes to start
+    * @param commands the command of each process, the same list instance may be used for several processes
+    * @param environment the environment of every process
+    * @param options the options of every process
+    * @throws NuSpawnException if posix_spawn() failed for a process
+    */
+   public static void startAll(List<? extends BasePosixProcess> processes, List<List<String>> commands, String[] environment, SpawnOptions options)
+   {
+      Pointer posix_spawnattr;
       try {
-         int rc = LibC.posix_spawnattr_init(posix_spawnattr);
-         checkReturnCode(rc, "Internal call to posix_spawnattr_init() failed");
+         posix_spawnattr = createSpawnAttributes();
+      }
+      catch (RuntimeException re) {
+         launchFailed(processes);
+         throw re;
+      }
 
-         short flags = 0;
-         if (IS_LINUX && LINUX_USE_VFORK) {
-            flags = 0x40; // POSIX_SPAWN_USEVFORK
-         }
-         else if (IS_MAC) {
-            // Start the spawned process in suspended mode
-            flags = LibC.POSIX_SPAWN_START_SUSPENDED | LibC.POSIX_SPAWN_CLOEXEC_DEFAULT;
-         }
-         LibC.posix_spawnattr_setflags(posix_spawnattr, flags);
+      try {
+         StringArray envp = new StringArray(environment);
+         Map<String, String> executables = new HashMap<String, String>();
+         List<String> lastCommand = null;
+         String[] argv = null;
+         StringArray argvArray = null;
+
+         List<BasePosixProcess> spawned = new ArrayList<BasePosixProcess>(processes.size());
+         RuntimeException pipeFailure = null;
+         NuSpawnException spawnFailure = null;
+         for (int i = 0; i < processes.size(); i++) {
+            BasePosixProcess process = processes.get(i);
+            if (pipeFailure != null) {
+               process.callPreStart();
+               process.onExit(Integer.MIN_VALUE);
+               continue;
+            }
 
-         IntByReference restrict_pid = new IntByReference();
-         rc = LibC.posix_spawnp(restrict_pid, commands[0], posix_spawn_file_actions, posix_spawnattr, new StringArray(commands), new StringArray(environment));
+            List<String> command = commands.get(i);
+            if (command != lastCommand) {
+               lastCommand = command;
+               argv = command.toArray(new String[0]);
+               argvArray = new StringArray(argv);
+            }
 
-         pid = restrict_pid.getValue();
+            // Commands found in the cache skip the $PATH search
+            String executable;
+            if (executables.containsKey(argv[0])) {
+               executable = executables.get(argv[0]);
+            }
+            else {
+               executable = ExecutableCache.resolve(argv[0], options);
+               executables.put(argv[0], executable);
+            }
 
-         // This is necessary on Linux because spawn failures are not reflected in the rc, and this will reap
-         // any zombies due to launch failure
-         if (IS_LINUX) {
-            IntByReference ret = new IntByReference();
-            rc = LibC.waitpid(pid, ret, LibC.WNOHANG);
-
-            if (rc != 0) {
-               int status = ret.getValue();
-               if (WIFEXITED(status)) {
-                  status = WEXITSTATUS(status);
-                  if (status == 127) {
-                     onExit(Integer.MIN_VALUE);
-                  }
-                  else {
-                     onExit(status);
-                  }
-               }
-               else if (WIFSIGNALED(status)) {
-                  onExit(WTERMSIG(status));
+            try {
+               process.spawn(argv[0], argvArray, envp, executable, posix_spawnattr, options);
+               spawned.add(process);
+            }
+            catch (NuSpawnException se) {
+               // Already reported to its handler, the other processes are still spawned
+               if (spawnFailure == null) {
+                  spawnFailure = se;
                }
-
-               return null;
+            }
+            catch (RuntimeException re) {
+               // Out of descriptors most likely, the processes spawned so far are still started
+               pipeFailure = re;
+               process.onExit(Integer.MIN_VALUE);
             }
          }
 
-         checkReturnCode(rc, "Invocation of posix_spawn() failed");
+         registerAll(spawned);
 
-         afterStart();
+         for (BasePosixProcess process : spawned) {
+            if (process.myProcessor == null) {
+               continue;
+            }
 
-         registerProcess();
+            process.callStart();
 
-         callStart();
+            if (IS_MAC) {
+               // Signal the spawned process to continue (unsuspend)
+               LibC.kill(process.pid, LibC.SIGCONT);
+            }
+         }
 
-         if (IS_MAC) {
-            // Signal the spawned process to continue (unsuspend)
-            LibC.kill(pid, LibC.SIGCONT);
+         if (pipeFailure != null) {
+            throw pipeFailure;
+         }
+         if (spawnFailure != null) {
+            throw spawnFailure;
          }
-      }
-      catch (RuntimeException re) {
-         // TODO remove from event processor pid map?
-         re.printStackTrace(System.err);
-         onExit(Integer.MIN_VALUE);
-         return null;
       }
       finally {
          LibC.posix_spawnattr_destroy(posix_spawnattr);
-         LibC.posix_spawn_file_actions_destroy(posix_spawn_file_actions);
-
-         // After we've spawned, close the unused ends of our pipes (that were dup'd into the child process space)
-         LibC.close(stdinWidow);
-         LibC.close(stdoutWidow);
-         LibC.close(stderrWidow);
-
          if (IS_LINUX) {
-            Native.free(Pointer.nativeValue(posix_spawn_file_actions));
             Native.free(Pointer.nativeValue(posix_spawnattr));
          }
       }
-
-      return this;
    }
 
+   /** {@inheritDoc} */
+   @Override
    public int getPid()
    {
       return pid;
@@ -337,12 +488,43 @@ public abstract class BasePosixProcess implements NuProcess
       return stderr;
    }
 
+   /**
+    * @return true if the process has at least one output pipe (stdout, stderr or an output channel)
+    *    whose EOF signals that it has exited
+    */
+   public boolean hasOutputPipe()
+   {
+      return hasOutputPipe;
+   }
+
+   /**
+    * @param fd 1 for stdout or 2 for stderr
+    * @return true if reading the pipe is paused by {@link #pauseOutput(int)}
+    */
+   public boolean isOutputPaused(int fd)
+   {
+      return (fd == 1) ? outPaused : errPaused;
+   }
+
    public boolean isSoftExit()
    {
-      return (IS_SOFTEXIT_DETECTION && outClosed && errClosed);
+      // A process without output pipes never sees an EOF, its exit can only be detected by polling
+      return (IS_SOFTEXIT_DETECTION && hasOutputPipe && outClosed && errClosed && outputChannelsClosed());
    }
 
    public void onExit(int statusCode)
+   {
+      onExit(statusCode, 0);
+   }
+
+   /**
+    * Called by the event processor when the process has exited.
+    *
+    * @param statusCode the exit code passed to the handler, which is the signal number for a process
+    *    terminated by a signal
+    * @param signal the signal that terminated the process, or 0
+    */
+   public void onExit(int statusCode, int signal)
    {
       if (exitPending.getCount() == 0) {
          // TODO: handle SIGCHLD
@@ -353,6 +535,7 @@ public abstract class BasePosixProcess implements NuProcess
          closeStdin();
          close(stdout);
          close(stderr);
+         closeChannels();
 
          isRunning = false;
          exitCode.set(statusCode);
@@ -367,6 +550,12 @@ public abstract class BasePosixProcess implements NuProcess
            processHandler.onStderr(errBuffer, true);
          }
 
+         for (ChildChannel channel : channels) {
+            if (!channel.isInput()) {
+               readChannel(channel, -1);
+            }
+         }
+
          if (statusCode != Integer.MAX_VALUE - 1) {
             processHandler.onExit(statusCode);
          }
@@ -375,20 +564,34 @@ public abstract class BasePosixProcess implements NuProcess
          // Don't let an exception thrown from the user's handler interrupt us
       }
       finally {
+         // Before waitFor() returns, so that the process is no longer counted when it does
+         releaseAdmission(0, 0);
     	 exitPending.countDown();
 
          Native.free(Pointer.nativeValue(outBufferPointer));
          Native.free(Pointer.nativeValue(errBufferPointer));
          Native.free(Pointer.nativeValue(inBufferPointer));
+         for (ChildChannel channel : channels) {
+            channel.free();
+         }
 
          processHandler = null;
+
+         exitFuture.complete(new ProcessResult(pid, statusCode, signal, startTimeMillis, System.nanoTime() - startNanos));
       }
    }
 
-   public void readStdout(int availability)
+   /**
+    * Read what is available from stdout and hand it to the user's handler.
+    *
+    * @param availability the number of bytes available, or -1 at EOF
+    * @return true if any data was read, so that a caller draining the pipe at EOF knows to read again
+    */
+   public boolean readStdout(int availability)
    {
+      boolean didRead = false;
       if (outClosed || availability == 0) {
-         return;
+         return didRead;
       }
 
       try {
@@ -396,10 +599,7 @@ public abstract class BasePosixProcess implements NuProcess
             outClosed = true;
             outBuffer.flip();
             processHandler.onStdout(outBuffer, true);
-            return;
-         }
-         else if (availability == 0) {
-            return;
+            return didRead;
          }
 
          int read = LibC.read(
@@ -411,7 +611,12 @@ public abstract class BasePosixProcess implements NuProcess
             throw new RuntimeException("Unexpected eof");
             // EOF?
          }
+         else if (read == 0) {
+            // EOF, delivered by the caller
+            return didRead;
+         }
 
+         didRead = true;
          outBuffer.limit(outBuffer.position() + read);
          outBuffer.position(0);
          processHandler.onStdout(outBuffer, false);
@@ -427,12 +632,20 @@ public abstract class BasePosixProcess implements NuProcess
          // eventually run out of capacity.
          throw new RuntimeException("stdout buffer has no bytes remaining");
       }
+      return didRead;
    }
 
-   public void readStderr(int availability)
+   /**
+    * Read what is available from stderr and hand it to the user's handler.
+    *
+    * @param availability the number of bytes available, or -1 at EOF
+    * @return true if any data was read
+    */
+   public boolean readStderr(int availability)
    {
+      boolean didRead = false;
       if (errClosed || availability == 0) {
-         return;
+         return didRead;
       }
 
       try {
@@ -440,7 +653,7 @@ public abstract class BasePosixProcess implements NuProcess
             errClosed = true;
             errBuffer.flip();
             processHandler.onStderr(errBuffer, true);
-            return;
+            return didRead;
          }
 
          int read = LibC.read(
@@ -452,7 +665,11 @@ public abstract class BasePosixProcess implements NuProcess
             errClosed = true;
             throw new RuntimeException("Unexpected eof");
          }
+         else if (read == 0) {
+            return didRead;
+         }
 
+         didRead = true;
          errBuffer.limit(errBuffer.position() + read);
          errBuffer.position(0);
          processHandler.onStderr(errBuffer, false);
@@ -468,6 +685,7 @@ public abstract class BasePosixProcess implements NuProcess
          // eventually run out of capacity.
          throw new RuntimeException("stderr buffer has no bytes remaining");
       }
+      return didRead;
    }
 
    public boolean writeStdin(int availability)
@@ -480,10 +698,16 @@ public abstract class BasePosixProcess implements NuProcess
       if (remainingWrite > 0) {
          int wrote = 0;
          do {
-            wrote = LibC.write(fd, inBufferPointer.share(writeOffset), Math.min(remainingWrite, availability));
+            // A SOCK_SEQPACKET message is never split to fit the reported room
+            int length = (stdioSocketType == LibC.SOCK_SEQPACKET) ? remainingWrite : Math.min(remainingWrite, availability);
+            wrote = LibC.write(fd, inBufferPointer.share(writeOffset), length);
             if (wrote < 0) {
                int errno = Native.getLastError();
                if (errno == 11 /*EAGAIN on MacOS*/|| errno == 35 /*EAGAIN on Linux*/) {
+                  if (stdioSocketType == LibC.SOCK_SEQPACKET) {
+                     // A message is sent whole or not at all, wait for room rather than splitting it
+                     return true;
+                  }
                   availability /= 4;
                   continue;
                }
@@ -534,8 +758,11 @@ public abstract class BasePosixProcess implements NuProcess
 
       try {
          inBuffer.clear();
-         boolean wantMore = processHandler.onStdinReady(inBuffer);
-         userWantsWrite.set(wantMore);
+         // Cleared first, so that a wantWrite() from the handler, or from another thread meanwhile, is not lost
+         userWantsWrite.set(false);
+         if (processHandler.onStdinReady(inBuffer)) {
+            userWantsWrite.set(true);
+         }
          remainingWrite = inBuffer.remaining();
 
          return true;
@@ -546,47 +773,299 @@ public abstract class BasePosixProcess implements NuProcess
       }
    }
 
+   public ChildChannel[] getChannels()
+   {
+      return channels;
+   }
+
+   /**
+    * Find the extra channel whose Java process end is the specified descriptor.
+    *
+    * @param fildes a descriptor of the Java process
+    * @return the channel, or null if the descriptor is not one of our channels
+    */
+   public ChildChannel getChannel(int fildes)
+   {
+      for (ChildChannel channel : channels) {
+         if (channel.getFd().get() == fildes) {
+            return channel;
+         }
+      }
+      return null;
+   }
+
+   public void readChannel(ChildChannel channel, int availability)
+   {
+      boolean more;
+      do {
+         more = false;
+         try {
+            ByteBuffer buffer = channel.read(availability);
+            if (buffer == null) {
+               return;
+            }
+
+            try {
+               ((NuChannelHandler) processHandler).onChannel(channel.getChildFd(), buffer, channel.isClosed());
+            }
+            catch (Exception e) {
+               // Don't let an exception thrown from the user's handler interrupt us
+               e.printStackTrace(System.err);
+            }
+         }
+         finally {
+            more = channel.afterRead();
+         }
+      }
+      while (more);
+   }
+
+   /**
+    * Write queued data to an input channel.
+    *
+    * @param channel the input channel
+    * @return true if data remains to be written once the pipe has room again
+    */
+   public boolean writeChannel(ChildChannel channel)
+   {
+      return channel.write();
+   }
+
    // ************************************************************************
    //                             Private methods
    // ************************************************************************
 
+   private void setOutputPaused(int fd, boolean paused)
+   {
+      AtomicInteger pipe;
+      if (fd == 1) {
+         pipe = stdout;
+      }
+      else if (fd == 2) {
+         pipe = stderr;
+      }
+      else {
+         throw new IllegalArgumentException("Only stdout (1) and stderr (2) can be paused");
+      }
+
+      // Serialized, so that the event processor ends up watching the pipe if and only if it is not paused
+      synchronized (pipe) {
+         if (isOutputPaused(fd) == paused) {
+            return;
+         }
+
+         if (fd == 1) {
+            outPaused = paused;
+         }
+         else {
+            errPaused = paused;
+         }
+
+         int fildes = pipe.get();
+         if (fildes != -1 && myProcessor != null) {
+            myProcessor.setReadInterest(this, fildes, !paused);
+         }
+      }
+   }
+
+   private ChildChannel getInputChannel(int fd)
+   {
+      for (ChildChannel channel : channels) {
+         if (channel.getChildFd() == fd && channel.isInput()) {
+            return channel;
+         }
+      }
+      throw new IllegalArgumentException("No input channel declared for fd " + fd);
+   }
+
+   private boolean outputChannelsClosed()
+   {
+      for (ChildChannel channel : channels) {
+         if (!channel.isInput() && !channel.isSharedMemory() && !channel.isClosed()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void closeChannels()
+   {
+      for (ChildChannel channel : channels) {
+         int fildes = channel.getFd().getAndSet(-1);
+         if (fildes != -1) {
+            LibC.close(fildes);
+         }
+      }
+   }
+
    private void afterStart()
    {
-      outClosed = false;
-      errClosed = false;
+      // Streams that are not piped to us are considered closed from the start
+      outClosed = (stdout.get() == -1);
+      errClosed = (stderr.get() == -1);
+      hasOutputPipe = !outClosed || !errClosed || !outputChannelsClosed();
       isRunning = true;
 
       pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
 
-      long peer = Native.malloc(BUFFER_CAPACITY);
-      outBuffer = UnsafeHelper.wrapNativeMemory(peer, BUFFER_CAPACITY);
-      outBufferPointer = new Pointer(peer);
+      long peer;
+      if (!outClosed) {
+         peer = Native.malloc(outBufferCapacity);
+         outBuffer = UnsafeHelper.wrapNativeMemory(peer, outBufferCapacity);
+         outBufferPointer = new Pointer(peer);
+      }
+
+      if (!errClosed) {
+         peer = Native.malloc(errBufferCapacity);
+         errBuffer = UnsafeHelper.wrapNativeMemory(peer, errBufferCapacity);
+         errBufferPointer = new Pointer(peer);
+      }
+
+      if (stdin.get() != -1) {
+         peer = Native.malloc(BUFFER_CAPACITY);
+         inBuffer = UnsafeHelper.wrapNativeMemory(peer, BUFFER_CAPACITY);
+         inBufferPointer = new Pointer(peer);
+      }
+
+      for (ChildChannel channel : channels) {
+         channel.allocate();
+      }
+   }
+
+   private static Pointer createSpawnAttributes()
+   {
+      Pointer posix_spawnattr = null;
+      if (IS_LINUX) {
+         long peer = Native.malloc(340);
+         posix_spawnattr = new Pointer(peer);
+      }
+      else {
+         posix_spawnattr = new Memory(Pointer.SIZE);
+      }
+
+      int rc = LibC.posix_spawnattr_init(posix_spawnattr);
+      if (rc != 0) {
+         if (IS_LINUX) {
+            Native.free(Pointer.nativeValue(posix_spawnattr));
+         }
+         throw new RuntimeException("Internal call to posix_spawnattr_init() failed, return code: " + rc + ", last error: " + Native.getLastError());
+      }
+
+      short flags = 0;
+      if (IS_LINUX && LINUX_USE_VFORK) {
+         flags = 0x40; // POSIX_SPAWN_USEVFORK
+      }
+      else if (IS_MAC) {
+         // Start the spawned process in suspended mode
+         flags = LibC.POSIX_SPAWN_START_SUSPENDED | LibC.POSIX_SPAWN_CLOEXEC_DEFAULT;
+      }
+      LibC.posix_spawnattr_setflags(posix_spawnattr, flags);
+      return posix_spawnattr;
+   }
+
+   /**
+    * Create the pipes of this process and spawn it.
+    *
+    * @throws NuSpawnException if posix_spawn() failed, once the process has been reported as exited
+    * @throws RuntimeException if the pipes could not be created
+    */
+   private void spawn(String program, StringArray argv, StringArray envp, String executable, Pointer posix_spawnattr, SpawnOptions options)
+   {
+      callPreStart();
+
+      startTimeMillis = System.currentTimeMillis();
+      startNanos = System.nanoTime();
+
+      Pointer posix_spawn_file_actions = createPipes(options);
+      try {
+         int rc;
+         IntByReference restrict_pid = new IntByReference();
+         if (executable != null) {
+            rc = LibC.posix_spawn(restrict_pid, executable, posix_spawn_file_actions, posix_spawnattr, argv, envp);
+         }
+         else {
+            rc = LibC.posix_spawnp(restrict_pid, program, posix_spawn_file_actions, posix_spawnattr, argv, envp);
+         }
+
+         if (rc != 0) {
+            // Exec failures in the child (ENOENT, EACCES, ...) are returned here as well, glibc waits
+            // for the exec in a CLONE_VFORK child since 2.24, so there is no process left to reap
+            throw new NuSpawnException("Invocation of posix_spawn() failed for " + program + ", return code: " + rc + " (" + LibC.strerror(rc) + ")", rc);
+         }
 
-      peer = Native.malloc(BUFFER_CAPACITY);
-      errBuffer = UnsafeHelper.wrapNativeMemory(peer, BUFFER_CAPACITY);
-      errBufferPointer = new Pointer(peer);
+         pid = restrict_pid.getValue();
 
-      peer = Native.malloc(BUFFER_CAPACITY);
-      inBuffer = UnsafeHelper.wrapNativeMemory(peer, BUFFER_CAPACITY);
-      inBufferPointer = new Pointer(peer);
+         afterStart();
+      }
+      catch (RuntimeException re) {
+         onExit(Integer.MIN_VALUE);
+         throw re;
+      }
+      finally {
+         LibC.posix_spawn_file_actions_destroy(posix_spawn_file_actions);
+
+         // After we've spawned, close the unused ends of our pipes (that were dup'd into the child process space)
+         closeWidows();
+         releaseAdmission(keptDescriptors, admittedProcesses);
+
+         if (IS_LINUX) {
+            Native.free(Pointer.nativeValue(posix_spawn_file_actions));
+         }
+      }
    }
 
+   /**
+    * Hand spawned processes to the event processors, round-robin, with a single pass over the
+    * processes of each event processor.  A process that cannot be registered is reported as exited.
+    */
    @SuppressWarnings("unchecked")
-   private void registerProcess()
+   private static void registerAll(List<BasePosixProcess> spawned)
    {
-      int mySlot = 0;
+      if (spawned.isEmpty()) {
+         return;
+      }
+
+      int firstSlot;
       synchronized (processors) {
-         mySlot = processorRoundRobin;
-         processorRoundRobin = (processorRoundRobin + 1) % processors.length;
+         firstSlot = processorRoundRobin;
+         processorRoundRobin = (processorRoundRobin + spawned.size()) % processors.length;
       }
 
-      myProcessor = (IEventProcessor<? super BasePosixProcess>) processors[mySlot];
-      myProcessor.registerProcess(this);
+      for (int slot = 0; slot < processors.length && slot < spawned.size(); slot++) {
+         int mySlot = (firstSlot + slot) % processors.length;
+         IEventProcessor<? super BasePosixProcess> processor = (IEventProcessor<? super BasePosixProcess>) processors[mySlot];
+         for (int i = slot; i < spawned.size(); i += processors.length) {
+            BasePosixProcess process = spawned.get(i);
+            try {
+               process.myProcessor = processor;
+               processor.registerProcess(process);
+            }
+            catch (RuntimeException re) {
+               re.printStackTrace(System.err);
+               process.myProcessor = null;
+               process.onExit(Integer.MIN_VALUE);
+            }
+         }
 
-      if (myProcessor.checkAndSetRunning()) {
-         CyclicBarrier spawnBarrier = myProcessor.getSpawnBarrier();
+         try {
+            startProcessor(processor, mySlot);
+         }
+         catch (RuntimeException re) {
+            re.printStackTrace(System.err);
+            for (int i = slot; i < spawned.size(); i += processors.length) {
+               spawned.get(i).myProcessor = null;
+               spawned.get(i).onExit(Integer.MIN_VALUE);
+            }
+         }
+      }
+   }
 
-         Thread t = new Thread(myProcessor, (IS_LINUX ? "ProcessEpoll" : "ProcessKqueue") + mySlot);
+   private static void startProcessor(IEventProcessor<?> processor, int slot)
+   {
+      if (processor.checkAndSetRunning()) {
+         CyclicBarrier spawnBarrier = processor.getSpawnBarrier();
+
+         Thread t = new Thread(processor, (IS_LINUX ? "ProcessEpoll" : "ProcessKqueue") + slot);
          t.setDaemon(true);
          t.start();
 
@@ -621,19 +1100,34 @@ public abstract class BasePosixProcess implements NuProcess
 
    private void close(AtomicInteger stdX)
    {
-      int fd = stdX.getAndSet(-1);
-      if (fd != -1) {
-         LibC.close(fd);
+      // Under the lock of setOutputPaused(), which must not act on the descriptor number once it can be reused
+      synchronized (stdX) {
+         int fd = stdX.getAndSet(-1);
+         if (fd != -1) {
+            LibC.close(fd);
+         }
+      }
+   }
+
+   /**
+    * Close our end of the stdin pipe.  A stdio socket stays open through the stdout descriptor, so
+    * its sending side is shut down first for the child to see EOF.
+    */
+   protected void closeStdinFd(int fd)
+   {
+      if (stdioSocketType != 0) {
+         LibC.shutdown(fd, LibC.SHUT_WR);
       }
+      LibC.close(fd);
    }
 
-   private Pointer createPipes()
+   private Pointer createPipes(SpawnOptions options)
    {
       int rc = 0;
 
-      int[] in = new int[2];
-      int[] out = new int[2];
-      int[] err = new int[2];
+      int[] in = null;
+      int[] out = null;
+      int[] err = null;
 
       posix_spawn_file_actions = null;
       if (IS_LINUX) {
@@ -645,55 +1139,145 @@ public abstract class BasePosixProcess implements NuProcess
       }
 
       try {
-         rc = LibC.pipe(in);
-         checkReturnCode(rc, "Create stdin pipe() failed");
-         rc = LibC.pipe(out);
-         checkReturnCode(rc, "Create stdout pipe() failed");
+         stdioSocketType = options.getStdioSocketType();
+         if (stdioSocketType != 0) {
+            // One socket serves as both stdin and stdout of the child.  Our end is dup'd so that each
+            // direction keeps its own descriptor, and event registration, in the Java process
+            int[] sv = new int[2];
+            rc = LibC.socketpair(LibC.AF_UNIX, stdioSocketType, 0, sv);
+            checkReturnCode(rc, "Create stdio socketpair() failed");
+            in = new int[] { sv[1], sv[0] };
+
+            int copy = LibC.fcntl(sv[0], LibC.F_DUPFD_CLOEXEC, 0);
+            if (copy == -1) {
+               throw new RuntimeException("fcntl F_DUPFD_CLOEXEC on stdio socket failed, last error: " + Native.getLastError());
+            }
+            out = new int[] { copy, sv[1] };
+
+            setSocketBufferSize(sv[0], LibC.SO_SNDBUF, options.getSocketSendBufferSize());
+            setSocketBufferSize(sv[0], LibC.SO_RCVBUF, options.getSocketReceiveBufferSize());
+            setSocketBufferSize(sv[1], LibC.SO_RCVBUF, options.getSocketSendBufferSize());
+            setSocketBufferSize(sv[1], LibC.SO_SNDBUF, options.getSocketReceiveBufferSize());
+         }
+
+         if (in == null && options.getStdinFd() == SpawnOptions.PIPE) {
+            in = new int[2];
+            rc = LibC.pipe(in);
+            checkReturnCode(rc, "Create stdin pipe() failed");
+         }
+
+         if (out == null && options.getStdoutFd() == SpawnOptions.PIPE) {
+            out = new int[2];
+            rc = LibC.pipe(out);
+            checkReturnCode(rc, "Create stdout pipe() failed");
+         }
 
-         rc = LibC.pipe(err);
-         checkReturnCode(rc, "Create stderr pipe() failed");
+         if (options.getStderrFd() == SpawnOptions.PIPE && !options.isRedirectErrorStream()) {
+            err = new int[2];
+            rc = LibC.pipe(err);
+            checkReturnCode(rc, "Create stderr pipe() failed");
+         }
+
+         if (stdioSocketType == 0) {
+            if (in != null) {
+               setPipeCapacity(in[1], options.getStdinPipeCapacity());
+            }
+            if (out != null) {
+               // Size the read buffer to take a full pipe in one read
+               outBufferCapacity = Math.max(BUFFER_CAPACITY, setPipeCapacity(out[0], options.getStdoutPipeCapacity()));
+            }
+         }
+         if (err != null) {
+            errBufferCapacity = Math.max(BUFFER_CAPACITY, setPipeCapacity(err[0], options.getStderrPipeCapacity()));
+         }
 
          // Create spawn file actions
          rc = LibC.posix_spawn_file_actions_init(posix_spawn_file_actions);
          checkReturnCode(rc, "Internal call to posix_spawn_file_actions_init() failed");
 
-         // Dup the reading end of the pipe into the sub-process, and close our end
-         rc = LibC.posix_spawn_file_actions_adddup2(posix_spawn_file_actions, in[0], 0);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_adddup2() failed");
+         if (in != null) {
+            // Dup the reading end of the pipe into the sub-process, and close our end
+            prepareWidowFd(in[0]);
+            addDup2(in[0], 0);
+            addClose(in[1]);
 
-         rc = LibC.posix_spawn_file_actions_addclose(posix_spawn_file_actions, in[1]);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addclose() failed");
+            stdin.set(in[1]);
+            stdinWidow = in[0];
+         }
+         else if (options.getStdinFd() >= 0) {
+            addDup2(relocate(options.getStdinFd(), options.getMaxChildFd()), 0);
+         }
+         else if (options.getStdinFd() == SpawnOptions.DISCARD) {
+            addOpen(0, "/dev/null", LibC.O_RDONLY);
+         }
+         else if (options.getStdinFd() == SpawnOptions.FILE) {
+            // A file description of its own, so children reading the same file do not share an offset
+            addOpen(0, options.getStdinPath(), LibC.O_RDONLY);
+         }
 
-         stdin.set(in[1]);
-         stdinWidow = in[0];
+         if (out != null) {
+            // Dup the writing end of the pipe into the sub-process, and close our end
+            prepareWidowFd(out[1]);
+            addDup2(out[1], 1);
+            addClose(out[0]);
 
-         // Dup the writing end of the pipe into the sub-process, and close our end
-         rc = LibC.posix_spawn_file_actions_adddup2(posix_spawn_file_actions, out[1], 1);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_adddup2() failed");
+            stdout.set(out[0]);
+            stdoutWidow = (out[1] != stdinWidow) ? out[1] : -1; // a stdio socket has a single widow
+         }
+         else if (options.getStdoutFd() >= 0) {
+            addDup2(relocate(options.getStdoutFd(), options.getMaxChildFd()), 1);
+         }
+         else if (options.getStdoutFd() == SpawnOptions.DISCARD) {
+            addOpen(1, "/dev/null", LibC.O_WRONLY);
+         }
 
-         rc = LibC.posix_spawn_file_actions_addclose(posix_spawn_file_actions, out[0]);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addclose() failed");
+         if (options.isRedirectErrorStream()) {
+            // File actions run in order, so this dups whatever stdout ended up connected to
+            addDup2(1, 2);
+         }
+         else if (err != null) {
+            // Dup the writing end of the pipe into the sub-process, and close our end
+            prepareWidowFd(err[1]);
+            addDup2(err[1], 2);
+            addClose(err[0]);
+
+            stderr.set(err[0]);
+            stderrWidow = err[1];
+         }
+         else if (options.getStderrFd() >= 0) {
+            addDup2(relocate(options.getStderrFd(), options.getMaxChildFd()), 2);
+         }
+         else if (options.getStderrFd() == SpawnOptions.DISCARD) {
+            addOpen(2, "/dev/null", LibC.O_WRONLY);
+         }
 
-         stdout.set(out[0]);
-         stdoutWidow = out[1];
+         createChannels(options);
 
-         // Dup the writing end of the pipe into the sub-process, and close our end
-         rc = LibC.posix_spawn_file_actions_adddup2(posix_spawn_file_actions, err[1], 2);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_adddup2() failed");
+         for (Map.Entry<Integer, Integer> entry : options.getInheritedFds().entrySet()) {
+            addDup2(relocate(entry.getValue(), options.getMaxChildFd()), entry.getKey());
+         }
 
-         rc = LibC.posix_spawn_file_actions_addclose(posix_spawn_file_actions, err[0]);
-         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addclose() failed");
+         if (options.isCloseFds()) {
+            // Runs after the dups above, so only their targets survive
+            addCloseOthers(options);
+         }
 
-         stderr.set(err[0]);
-         stderrWidow = err[1];
+         if (options.getDirectory() != null) {
+            addChdir(options.getDirectory().getPath());
+         }
 
          if (IS_LINUX || IS_MAC) {
-            rc = LibC.fcntl(in[1], LibC.F_SETFL, LibC.fcntl(in[1], LibC.F_GETFL) | LibC.O_NONBLOCK);
-            checkReturnCode(rc, "fnctl on stdin handle failed");
-            rc = LibC.fcntl(out[0], LibC.F_SETFL, LibC.fcntl(out[0], LibC.F_GETFL) | LibC.O_NONBLOCK);
-            checkReturnCode(rc, "fnctl on stdout handle failed");
-            rc = LibC.fcntl(err[0], LibC.F_SETFL, LibC.fcntl(err[0], LibC.F_GETFL) | LibC.O_NONBLOCK);
-            checkReturnCode(rc, "fnctl on stderr handle failed");
+            // Our ends are non-blocking, and close-on-exec so that other children (e.g. the next
+            // stage of a pipeline) do not inherit them and hold the pipes open
+            if (in != null) {
+               prepareParentFd(in[1], "stdin");
+            }
+            if (out != null) {
+               prepareParentFd(out[0], "stdout");
+            }
+            if (err != null) {
+               prepareParentFd(err[0], "stderr");
+            }
          }
 
          return posix_spawn_file_actions;
@@ -703,10 +1287,261 @@ public abstract class BasePosixProcess implements NuProcess
 
          LibC.posix_spawn_file_actions_destroy(posix_spawn_file_actions);
          initFailureCleanup(in, out, err);
+         closeChannels();
+         for (ChildChannel channel : channels) {
+            channel.free();
+         }
+         closeExtraWidows();
+
+         // Closed above, the onExit() that reports the failure must not close them again
+         stdin.set(-1);
+         stdout.set(-1);
+         stderr.set(-1);
+         stdinWidow = -1;
+         stdoutWidow = -1;
+         stderrWidow = -1;
+         channels = NO_CHANNELS;
          throw e;
       }
    }
 
+   private void prepareParentFd(int fildes, String name)
+   {
+      int rc = LibC.fcntl(fildes, LibC.F_SETFL, LibC.fcntl(fildes, LibC.F_GETFL) | LibC.O_NONBLOCK);
+      checkReturnCode(rc, "fnctl on " + name + " handle failed");
+      rc = LibC.fcntl(fildes, LibC.F_SETFD, LibC.fcntl(fildes, LibC.F_GETFD) | LibC.FD_CLOEXEC);
+      checkReturnCode(rc, "fnctl on " + name + " handle failed");
+   }
+
+   private void prepareWidowFd(int fildes)
+   {
+      // The dup2() in the child clears close-on-exec on the copy, the original is not left behind in the child
+      int rc = LibC.fcntl(fildes, LibC.F_SETFD, LibC.fcntl(fildes, LibC.F_GETFD) | LibC.FD_CLOEXEC);
+      checkReturnCode(rc, "fnctl on pipe handle failed");
+   }
+
+   private void addDup2(int fildes, int newfildes)
+   {
+      int rc = LibC.posix_spawn_file_actions_adddup2(posix_spawn_file_actions, fildes, newfildes);
+      checkReturnCode(rc, "Internal call to posix_spawn_file_actions_adddup2() failed");
+   }
+
+   private void addClose(int fildes)
+   {
+      int rc = LibC.posix_spawn_file_actions_addclose(posix_spawn_file_actions, fildes);
+      checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addclose() failed");
+   }
+
+   private void createChannels(SpawnOptions options)
+   {
+      Map<Integer, Boolean> declared = options.getChannels();
+      Map<Integer, Integer> rings = options.getSharedMemoryChannels();
+      if (declared.isEmpty() && rings.isEmpty()) {
+         return;
+      }
+
+      int maxChildFd = options.getMaxChildFd();
+      List<ChildChannel> created = new ArrayList<ChildChannel>();
+      try {
+         for (Map.Entry<Integer, Boolean> entry : declared.entrySet()) {
+            ChildChannel channel = new ChildChannel(entry.getKey(), entry.getValue());
+
+            int[] fds = new int[2];
+            int rc = LibC.pipe(fds);
+            checkReturnCode(rc, "Create channel " + channel.getChildFd() + " pipe() failed");
+            created.add(channel);
+
+            int widow = channel.isInput() ? fds[0] : fds[1];
+            channel.getFd().set(channel.isInput() ? fds[1] : fds[0]);
+            addExtraWidow(widow);
+
+            prepareParentFd(channel.getFd().get(), "channel " + channel.getChildFd());
+            prepareWidowFd(widow);
+            widow = relocate(widow, maxChildFd);
+
+            addDup2(widow, channel.getChildFd());
+         }
+
+         for (Map.Entry<Integer, Integer> entry : rings.entrySet()) {
+            SharedRing ring = new SharedRing(entry.getValue());
+            ChildChannel channel = new ChildChannel(entry.getKey(), ring);
+            created.add(channel);
+
+            // Both sides use the same memfd and eventfds, ours are already non-blocking and close-on-exec
+            addDup2(relocate(ring.getMemfd(), maxChildFd), entry.getKey());
+            addDup2(relocate(ring.getDataFd(), maxChildFd), entry.getKey() + 1);
+            addDup2(relocate(ring.getSpaceFd(), maxChildFd), entry.getKey() + 2);
+         }
+      }
+      finally {
+         channels = created.toArray(new ChildChannel[created.size()]);
+      }
+   }
+
+   /**
+    * A source descriptor numbered at or below the highest target could be overwritten by an earlier
+    * dup2() in the child before its own dup2() runs, so dup it above every target first.  The copy
+    * is close-on-exec and is closed in the Java process after the spawn.
+    */
+   private int relocate(int fildes, int maxChildFd)
+   {
+      if (fildes > maxChildFd) {
+         return fildes;
+      }
+
+      int moved = LibC.fcntl(fildes, LibC.F_DUPFD_CLOEXEC, maxChildFd + 1);
+      if (moved == -1) {
+         throw new RuntimeException("fcntl F_DUPFD_CLOEXEC on descriptor " + fildes + " failed, last error: " + Native.getLastError());
+      }
+
+      addExtraWidow(moved);
+      return moved;
+   }
+
+   /**
+    * Change the capacity of a pipe.  This is a tuning hint, a pipe the kernel refuses to resize
+    * (the per-user pipe quota, or a non-Linux system) keeps its default capacity.
+    *
+    * @return the new capacity of the pipe, or 0 if it was not changed
+    */
+   private static int setPipeCapacity(int fildes, int capacity)
+   {
+      if (capacity <= 0 || !IS_LINUX) {
+         return 0;
+      }
+
+      int size = LibC.fcntl(fildes, LibC.F_SETPIPE_SZ, Math.min(capacity, PIPE_MAX_SIZE));
+      return Math.max(size, 0);
+   }
+
+   private static int readPipeMaxSize()
+   {
+      try {
+         BufferedReader reader = new BufferedReader(new FileReader("/proc/sys/fs/pipe-max-size"));
+         try {
+            return Integer.parseInt(reader.readLine().trim());
+         }
+         finally {
+            reader.close();
+         }
+      }
+      catch (Exception e) {
+         return 1048576; // the kernel's default
+      }
+   }
+
+   private void setSocketBufferSize(int fildes, int optname, int size)
+   {
+      if (size > 0) {
+         int rc = LibC.setsockopt(fildes, LibC.SOL_SOCKET, optname, new IntByReference(size), 4);
+         checkReturnCode(rc, "setsockopt() on stdio socket failed");
+      }
+   }
+
+   private void addExtraWidow(int fildes)
+   {
+      if (extraWidows == null) {
+         extraWidows = new ArrayList<Integer>();
+      }
+      extraWidows.add(fildes);
+   }
+
+   private void addCloseOthers(SpawnOptions options)
+   {
+      if (IS_MAC) {
+         // Already covered by POSIX_SPAWN_CLOEXEC_DEFAULT
+         return;
+      }
+
+      Set<Integer> keep = new HashSet<Integer>(options.getChannels().keySet());
+      keep.addAll(options.getInheritedFds().keySet());
+      for (int fildes : options.getSharedMemoryChannels().keySet()) {
+         for (int i = 0; i < SpawnOptions.SHARED_MEMORY_FDS; i++) {
+            keep.add(fildes + i);
+         }
+      }
+      int lowfildes = options.getMaxChildFd() + 1;
+
+      // Close the gaps between the configured descriptors one by one, glibc ignores EBADF for these
+      for (int fildes = 3; fildes < lowfildes; fildes++) {
+         if (!keep.contains(fildes)) {
+            addClose(fildes);
+         }
+      }
+
+      if (LibC.has_posix_spawn_file_actions_addclosefrom_np()) {
+         int rc = LibC.posix_spawn_file_actions_addclosefrom_np(posix_spawn_file_actions, lowfildes);
+         checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addclosefrom_np() failed");
+         return;
+      }
+
+      // Older C libraries, close whatever is open right now (closing an fd that is gone by then is harmless)
+      String[] fds = new File("/proc/self/fd").list();
+      if (fds == null) {
+         throw new RuntimeException("Unable to list open file descriptors in /proc/self/fd");
+      }
+
+      for (String fd : fds) {
+         int fildes = Integer.parseInt(fd);
+         if (fildes >= lowfildes) {
+            addClose(fildes);
+         }
+      }
+   }
+
+   private void addOpen(int fildes, String path, int oflag)
+   {
+      // Opened by the child itself, so the Java process never holds a descriptor for it
+      int rc = LibC.posix_spawn_file_actions_addopen(posix_spawn_file_actions, fildes, path, oflag, 0);
+      checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addopen() failed");
+   }
+
+   private void addChdir(String directory)
+   {
+      if (!LibC.has_posix_spawn_file_actions_addchdir_np()) {
+         throw new UnsupportedOperationException("Setting the working directory requires posix_spawn_file_actions_addchdir_np()");
+      }
+
+      int rc = LibC.posix_spawn_file_actions_addchdir_np(posix_spawn_file_actions, directory);
+      checkReturnCode(rc, "Internal call to posix_spawn_file_actions_addchdir_np() failed");
+   }
+
+   /**
+    * Give back to the admission control what this process holds beyond the given amounts.
+    */
+   private void releaseAdmission(int descriptors, int processes)
+   {
+      if (admittedDescriptors > descriptors || admittedProcesses > processes) {
+         AdmissionControl.release(Math.max(0, admittedDescriptors - descriptors), Math.max(0, admittedProcesses - processes));
+         admittedDescriptors = Math.min(admittedDescriptors, descriptors);
+         admittedProcesses = Math.min(admittedProcesses, processes);
+      }
+   }
+
+   private void closeWidows()
+   {
+      if (stdinWidow != -1) {
+         LibC.close(stdinWidow);
+      }
+      if (stdoutWidow != -1) {
+         LibC.close(stdoutWidow);
+      }
+      if (stderrWidow != -1) {
+         LibC.close(stderrWidow);
+      }
+      closeExtraWidows();
+   }
+
+   private void closeExtraWidows()
+   {
+      if (extraWidows != null) {
+         for (int widow : extraWidows) {
+            LibC.close(widow);
+         }
+         extraWidows = null;
+      }
+   }
+
    private void initFailureCleanup(int[] in, int[] out, int[] err)
    {
       Set<Integer> unique = new HashSet<Integer>();
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess.internal;
+
+import static com.zaxxer.nuprocess.NuProcess.BUFFER_CAPACITY;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * <b>This is an internal class.</b>  A pipe between the Java process and a child file
+ * descriptor other than stdin, stdout and stderr.  An output channel is read by the event
+ * processor and delivered to {@link com.zaxxer.nuprocess.NuChannelHandler#onChannel}, an
+ * input channel is fed from the buffers queued by
+ * {@link com.zaxxer.nuprocess.NuProcess#writeChannel(int, ByteBuffer)}.
+ * <p>
+ * A shared memory channel is an output channel backed by a {@link SharedRing} instead of a pipe.
+ * Its descriptor is the eventfd the child signals, and the regions of the ring are delivered to
+ * the handler in place.
+ *
+ * @author Brett Wooldridge
+ */
+public final class ChildChannel
+{
+   private final int childFd;
+   private final boolean input;
+   private final AtomicInteger fd;
+   private final SharedRing ring;
+
+   private ByteBuffer buffer;
+   private Pointer bufferPointer;
+   private boolean closed;
+   private volatile boolean closeRequested;
+   private boolean broken;
+
+   private final ConcurrentLinkedQueue<ByteBuffer> pendingWrites;
+   private int remainingWrite;
+   private int writeOffset;
+
+   ChildChannel(int childFd, boolean input) {
+      this.childFd = childFd;
+      this.input = input;
+      this.fd = new AtomicInteger(-1);
+      this.ring = null;
+      this.pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+   }
+
+   ChildChannel(int childFd, SharedRing ring) {
+      this.childFd = childFd;
+      this.input = false;
+      this.fd = new AtomicInteger(ring.getDataFd());
+      this.ring = ring;
+      this.pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+   }
+
+   /**
+    * @return the descriptor number of this channel in the child
+    */
+   public int getChildFd()
+   {
+      return childFd;
+   }
+
+   /**
+    * @return true if the child reads from this channel, false if it writes to it
+    */
+   public boolean isInput()
+   {
+      return input;
+   }
+
+   /**
+    * @return true if this is a shared memory channel, which never reports a hangup, so its EOF does
+    *    not tell that the process has exited
+    */
+   public boolean isSharedMemory()
+   {
+      return ring != null;
+   }
+
+   /**
+    * @return the Java process end of the pipe, or -1 once it has been closed
+    */
+   public AtomicInteger getFd()
+   {
+      return fd;
+   }
+
+   boolean isClosed()
+   {
+      return closed;
+   }
+
+   void allocate()
+   {
+      if (ring != null) {
+         closed = false;
+         return;
+      }
+
+      long peer = Native.malloc(BUFFER_CAPACITY);
+      buffer = UnsafeHelper.wrapNativeMemory(peer, BUFFER_CAPACITY);
+      bufferPointer = new Pointer(peer);
+      if (input) {
+         buffer.flip();
+      }
+      closed = false;
+   }
+
+   void free()
+   {
+      if (ring != null) {
+         ring.free();
+      }
+
+      if (bufferPointer != null) {
+         Native.free(Pointer.nativeValue(bufferPointer));
+         bufferPointer = null;
+         buffer = null;
+      }
+   }
+
+   /**
+    * Close the Java process end of the channel.  Event processors must deregister the descriptor
+    * before calling this, since its number may be reused as soon as it is closed.
+    */
+   public void close()
+   {
+      closed = true;
+      int fildes = fd.getAndSet(-1);
+      if (fildes != -1) {
+         LibC.close(fildes);
+      }
+   }
+
+   void queueWrite(ByteBuffer byteBuffer)
+   {
+      pendingWrites.add(byteBuffer);
+   }
+
+   void requestClose()
+   {
+      closeRequested = true;
+   }
+
+   boolean isCloseRequested()
+   {
+      return closeRequested;
+   }
+
+   /**
+    * @return true if an input channel should be closed, either because everything queued before
+    *    {@link com.zaxxer.nuprocess.NuProcess#closeChannel(int)} has been written, or because the
+    *    child closed its end
+    */
+   public boolean shouldClose()
+   {
+      return broken || (closeRequested && remainingWrite == 0 && pendingWrites.isEmpty());
+   }
+
+   /**
+    * Read what is available from an output channel.
+    *
+    * @param availability the number of bytes available, or -1 at EOF
+    * @return the buffer to hand to the user's handler, or null if there is nothing to deliver
+    */
+   ByteBuffer read(int availability)
+   {
+      if (ring != null) {
+         if (closed) {
+            return null;
+         }
+
+         ByteBuffer region = ring.read(availability < 0);
+         closed = ring.reachedEnd();
+         return region;
+      }
+
+      if (closed || availability == 0 || buffer == null) {
+         return null;
+      }
+
+      if (availability < 0) {
+         closed = true;
+         buffer.flip();
+         return buffer;
+      }
+
+      int read = LibC.read(fd.get(), bufferPointer.share(buffer.position()), Math.min(availability, buffer.remaining()));
+      if (read == -1) {
+         closed = true;
+         throw new RuntimeException("Unexpected eof");
+      }
+
+      buffer.limit(buffer.position() + read);
+      buffer.position(0);
+      return buffer;
+   }
+
+   /**
+    * Called after the user's handler has consumed what it wanted from the buffer returned by
+    * {@link #read(int)}.
+    *
+    * @return true if more data can be read right away, which is only the case for the part of a
+    *    shared memory ring after a wrap
+    */
+   boolean afterRead()
+   {
+      if (ring != null) {
+         return ring.afterRead();
+      }
+
+      if (!closed && buffer != null) {
+         buffer.compact();
+         if (!buffer.hasRemaining()) {
+            // Same contract as onStdout(), the handler must consume data or it will run out of capacity
+            throw new RuntimeException("channel " + childFd + " buffer has no bytes remaining");
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Write as much of the queued data to an input channel as the pipe accepts.
+    *
+    * @return true if data remains to be written once the pipe has room again
+    */
+   boolean write()
+   {
+      int fildes = fd.get();
+      if (fildes == -1 || broken) {
+         return false;
+      }
+
+      while (true) {
+         if (remainingWrite > 0) {
+            int wrote = LibC.write(fildes, bufferPointer.share(writeOffset), remainingWrite);
+            if (wrote < 0) {
+               int errno = Native.getLastError();
+               if (errno == 11 /*EAGAIN on Linux*/ || errno == 35 /*EAGAIN on MacOS*/) {
+                  return true;
+               }
+
+               // The child closed its end
+               broken = true;
+               return false;
+            }
+
+            remainingWrite -= wrote;
+            writeOffset += wrote;
+            if (remainingWrite > 0) {
+               continue;
+            }
+         }
+
+         ByteBuffer byteBuffer = pendingWrites.peek();
+         if (byteBuffer == null) {
+            return false;
+         }
+
+         // copy the next buffer, or as much as fits, into our native buffer
+         buffer.clear();
+         if (byteBuffer.remaining() > BUFFER_CAPACITY) {
+            ByteBuffer slice = byteBuffer.slice();
+            slice.limit(BUFFER_CAPACITY);
+            buffer.put(slice);
+            byteBuffer.position(byteBuffer.position() + BUFFER_CAPACITY);
+         }
+         else {
+            buffer.put(byteBuffer);
+            pendingWrites.poll();
+         }
+
+         remainingWrite = buffer.position();
+         writeOffset = 0;
+      }
+   }
+}
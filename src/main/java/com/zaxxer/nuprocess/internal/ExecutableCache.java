@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <b>This is an internal class.</b>  Resolves command names against {@code $PATH} the way
+ * {@code posix_spawnp()} would, and remembers the result so that subsequent launches can use
+ * {@code posix_spawn()} with an absolute path instead of having the child try {@code execve()}
+ * in every directory of the path.
+ * <p>
+ * Entries are keyed by command name and {@code $PATH}, and are discarded when they are older than
+ * {@code com.zaxxer.nuprocess.executableCacheTtlMs} or when the modification time of the resolved
+ * file changes.  On Linux, setting {@code com.zaxxer.nuprocess.executableCacheFd} additionally
+ * keeps an {@code O_PATH} descriptor open to each cached binary, and children are executed through
+ * {@code /proc/self/fd}, which skips the path walk entirely and pins the exact file that was resolved.
+ * Descriptors of discarded entries are closed during {@link #resolve}, which relies on Linux
+ * launches being serialized by the process factory.
+ *
+ * @author Brett Wooldridge
+ */
+public final class ExecutableCache
+{
+   private static final ExecutableCache INSTANCE;
+
+   private final long ttlMs;
+   private final boolean useFd;
+   private final Map<String, Entry> cache;
+
+   static {
+      boolean useFd = System.getProperty("os.name").toLowerCase().contains("linux")
+                      && Boolean.getBoolean("com.zaxxer.nuprocess.executableCacheFd")
+                      && new File("/proc/self/fd").isDirectory();
+      INSTANCE = new ExecutableCache(Long.getLong("com.zaxxer.nuprocess.executableCacheTtlMs", 5000), useFd);
+   }
+
+   /**
+    * @param ttlMs the maximum age of an entry, 0 to disable the cache
+    * @param useFd true to keep an {@code O_PATH} descriptor open to each cached binary
+    */
+   ExecutableCache(long ttlMs, boolean useFd) {
+      this.ttlMs = ttlMs;
+      this.useFd = useFd;
+      this.cache = new HashMap<String, Entry>();
+   }
+
+   /**
+    * Get the path to pass to {@code posix_spawn()} for the specified command.
+    *
+    * @param command the command as given by the user, {@code argv[0]}
+    * @param options the options of the launch; a descriptor-relative path is not used if the child
+    *    closes its inherited descriptors before executing, or if a channel or inherited descriptor
+    *    could be dup2()'d over the cached descriptor
+    * @return an absolute path, or {@code null} if the command should be left to {@code posix_spawnp()}
+    */
+   public static String resolve(String command, SpawnOptions options)
+   {
+      String path = System.getenv("PATH");
+      if (path == null) {
+         path = "/bin:/usr/bin"; // the default used by the C library
+      }
+
+      return INSTANCE.resolve(command, path, options, System.currentTimeMillis());
+   }
+
+   /**
+    * Resolve a command against the given search path, see {@link #resolve(String, SpawnOptions)}.
+    */
+   String resolve(String command, String path, SpawnOptions options, long now)
+   {
+      if (ttlMs <= 0 || command.indexOf('/') != -1 || command.length() == 0) {
+         return null;
+      }
+
+      boolean allowFd = !options.isCloseFds() && !options.hasExtraFds();
+      String key = command + '\0' + path;
+
+      synchronized (cache) {
+         Entry entry = cache.get(key);
+         if (entry != null && (now - entry.resolvedAt >= ttlMs || new File(entry.path).lastModified() != entry.lastModified)) {
+            cache.remove(key);
+            entry.close();
+            entry = null;
+         }
+
+         if (entry == null) {
+            entry = lookup(command, path, now);
+            if (entry == null) {
+               return null;
+            }
+            cache.put(key, entry);
+         }
+
+         return (allowFd && entry.fdPath != null) ? entry.fdPath : entry.path;
+      }
+   }
+
+   /**
+    * Discard every entry and close its descriptor.
+    */
+   void clear()
+   {
+      synchronized (cache) {
+         for (Entry entry : cache.values()) {
+            entry.close();
+         }
+         cache.clear();
+      }
+   }
+
+   private Entry lookup(String command, String path, long now)
+   {
+      for (String dir : path.split(":", -1)) {
+         // Empty and relative entries depend on the working directory of the child, leave the search to
+         // posix_spawnp() from there on.  An empty entry would also be read as "/" by new File("", command)
+         if (dir.isEmpty() || !new File(dir).isAbsolute()) {
+            return null;
+         }
+
+         File file = new File(dir, command);
+         if (!file.isFile() || !file.canExecute()) {
+            continue;
+         }
+
+         Entry entry = new Entry(file.getPath(), file.lastModified(), now);
+         if (useFd && isElf(file)) {
+            // Scripts are excluded, their interpreter would be handed a path that is closed by then
+            int fd = LibC.open(entry.path, LibC.O_PATH | LibC.O_CLOEXEC);
+            if (fd != -1) {
+               entry.fd = fd;
+               entry.fdPath = "/proc/self/fd/" + fd;
+            }
+         }
+         return entry;
+      }
+
+      return null;
+   }
+
+   private static boolean isElf(File file)
+   {
+      byte[] magic = new byte[4];
+      try {
+         FileInputStream is = new FileInputStream(file);
+         try {
+            return is.read(magic) == 4 && magic[0] == 0x7f && magic[1] == 'E' && magic[2] == 'L' && magic[3] == 'F';
+         }
+         finally {
+            is.close();
+         }
+      }
+      catch (IOException e) {
+         return false;
+      }
+   }
+
+   private static final class Entry
+   {
+      final String path;
+      final long lastModified;
+      final long resolvedAt;
+      int fd = -1;
+      String fdPath;
+
+      Entry(String path, long lastModified, long resolvedAt) {
+         this.path = path;
+         this.lastModified = lastModified;
+         this.resolvedAt = resolvedAt;
+      }
+
+      void close()
+      {
+         if (fd != -1) {
+            LibC.close(fd);
+            fd = -1;
+         }
+      }
+   }
+}
@@ -55,11 +55,32 @@ public interface IEventProcessor<T extends BasePosixProcess> extends Runnable
    void queueWrite(T process);
 
    /**
-    * Close the process's STDIN pipe.
+    * Express that the client has queued data for, or requested the close of, an extra
+    * input channel of the process.
+    *
+    * @param process the process that owns the channel
+    * @param channel the input channel
+    */
+   void queueChannelWrite(T process, ChildChannel channel);
+
+   /**
+    * Start or stop watching a stdout or stderr pipe of the process for data, see
+    * {@link com.zaxxer.nuprocess.NuProcess#pauseOutput(int)}.
+    *
+    * @param process the process that owns the pipe
+    * @param fildes the Java process end of the pipe
+    * @param enabled true to deliver data read from the pipe, false to leave it in the pipe
+    */
+   void setReadInterest(T process, int fildes, boolean enabled);
+
+   /**
+    * Close the process's STDIN pipe.  Called before the descriptor is closed, which the process has
+    * already cleared, so that the descriptor number cannot be reused in the meantime.
     *
     * @param process the process whose STDIN pipe should be closed
+    * @param fildes the Java process end of the STDIN pipe
     */
-   void closeStdin(T process);
+   void closeStdin(T process, int fildes);
 
    /**
     * Called by the event-loop to process asynchronous I/O events.
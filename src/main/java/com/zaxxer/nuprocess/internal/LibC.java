@@ -17,6 +17,7 @@
 package com.zaxxer.nuprocess.internal;
 
 import com.sun.jna.Callback;
+import com.sun.jna.Function;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLibrary;
 import com.sun.jna.Pointer;
@@ -31,9 +32,21 @@ public class LibC
       if (System.getProperty("os.name").toLowerCase().contains("mac")
               || System.getProperty("os.name").toLowerCase().contains("freebsd")) {
          O_NONBLOCK = 0x0004; // MacOS X, Freebsd
+         F_DUPFD_CLOEXEC = System.getProperty("os.name").toLowerCase().contains("mac") ? 67 : 17;
+         SOL_SOCKET = 0xffff;
+         SO_SNDBUF = 0x1001;
+         SO_RCVBUF = 0x1002;
+         RLIMIT_NPROC = 7;
+         RLIMIT_NOFILE = 8;
       }
       else {
          O_NONBLOCK = 2048; // Linux
+         F_DUPFD_CLOEXEC = 1030;
+         SOL_SOCKET = 1;
+         SO_SNDBUF = 7;
+         SO_RCVBUF = 8;
+         RLIMIT_NPROC = 6;
+         RLIMIT_NOFILE = 7;
       }
    }
 
@@ -43,14 +56,38 @@ public class LibC
 
    public static native int fcntl(int fildes, int cmd, long argO);
 
+   public static native int open(String path, int oflag);
+
    public static native int close(int fildes);
 
    public static native int write(int fildes, Pointer buf, int nbyte);
 
    public static native int read(int fildes, Pointer buf, int nbyte);
 
+   public static native int socketpair(int domain, int type, int protocol, int[] sv);
+
+   public static native int setsockopt(int sockfd, int level, int optname, IntByReference optval, int optlen);
+
+   public static native int shutdown(int sockfd, int how);
+
+   public static native int ioctl(int fildes, long request, IntByReference arg);
+
+   public static native int poll(Pointer fds, long nfds, int timeout);
+
+   public static native int ftruncate(int fildes, long length);
+
+   public static native Pointer mmap(Pointer addr, long length, int prot, int flags, int fildes, long offset);
+
+   public static native int munmap(Pointer addr, long length);
+
    public static native int getpid();
 
+   /**
+    * @param resource the resource, {@link #RLIMIT_NOFILE} or {@link #RLIMIT_NPROC}
+    * @param rlim receives struct rlimit, { rlim_t rlim_cur; rlim_t rlim_max; } with a 64-bit rlim_t
+    */
+   public static native int getrlimit(int resource, long[] rlim);
+
    public static native int kill(int pid, int sig);
 
    public static native int waitpid(int pid, IntByReference status, int options);
@@ -71,18 +108,176 @@ public class LibC
 
    public static native int posix_spawn_file_actions_adddup2(Pointer actions, int fildes, int newfildes);
 
+   public static native int posix_spawn_file_actions_addopen(Pointer actions, int fildes, String path, int oflag, int mode);
+
+   public static native int posix_spawn(IntByReference restrict_pid, String restrict_path, Pointer file_actions,
+                                        Pointer /*const posix_spawnattr_t*/restrict_attrp, StringArray /*String[]*/argv, Pointer /*String[]*/envp);
+
    public static native int posix_spawnp(IntByReference restrict_pid, String restrict_path, Pointer file_actions,
                                          Pointer /*const posix_spawnattr_t*/restrict_attrp, StringArray /*String[]*/argv, Pointer /*String[]*/envp);
 
    public static native Pointer signal(int signal, Pointer func);
 
+   public static native String strerror(int errnum);
+
+   // Functions that only exist on some platforms or libc versions are looked up individually,
+   // since register() would fail on the whole class if any of them were missing
+
+   private static final Function ADDCLOSEFROM_NP = optionalFunction("posix_spawn_file_actions_addclosefrom_np");
+
+   public static boolean has_posix_spawn_file_actions_addclosefrom_np()
+   {
+      return ADDCLOSEFROM_NP != null;
+   }
+
+   public static int posix_spawn_file_actions_addclosefrom_np(Pointer actions, int lowfiledes)
+   {
+      return ADDCLOSEFROM_NP.invokeInt(new Object[] { actions, lowfiledes });
+   }
+
+   private static final Function ADDCHDIR_NP = optionalFunction("posix_spawn_file_actions_addchdir_np");
+
+   public static boolean has_posix_spawn_file_actions_addchdir_np()
+   {
+      return ADDCHDIR_NP != null;
+   }
+
+   public static int posix_spawn_file_actions_addchdir_np(Pointer actions, String path)
+   {
+      return ADDCHDIR_NP.invokeInt(new Object[] { actions, path });
+   }
+
+   // Only used on Linux, where O_CLOEXEC has the value defined below
+   private static final Function PIPE2 = System.getProperty("os.name").toLowerCase().contains("linux") ? optionalFunction("pipe2") : null;
+
+   public static boolean has_pipe2()
+   {
+      return PIPE2 != null;
+   }
+
+   public static int pipe2(int[] fildes, int flags)
+   {
+      return PIPE2.invokeInt(new Object[] { fildes, flags });
+   }
+
+   private static final Function MEMFD_CREATE = optionalFunction("memfd_create");
+
+   public static boolean has_memfd_create()
+   {
+      return MEMFD_CREATE != null;
+   }
+
+   public static int memfd_create(String name, int flags)
+   {
+      return MEMFD_CREATE.invokeInt(new Object[] { name, flags });
+   }
+
+   private static final Function EVENTFD = optionalFunction("eventfd");
+
+   public static boolean has_eventfd()
+   {
+      return EVENTFD != null;
+   }
+
+   public static int eventfd(int initval, int flags)
+   {
+      return EVENTFD.invokeInt(new Object[] { initval, flags });
+   }
+
+   private static final Function TEE = optionalFunction("tee");
+   private static final Function SPLICE = optionalFunction("splice");
+
+   public static boolean has_tee()
+   {
+      return TEE != null && SPLICE != null;
+   }
+
+   public static long tee(int fd_in, int fd_out, long len, int flags)
+   {
+      return TEE.invokeLong(new Object[] { fd_in, fd_out, len, flags });
+   }
+
+   public static long splice(int fd_in, Pointer off_in, int fd_out, Pointer off_out, long len, int flags)
+   {
+      return SPLICE.invokeLong(new Object[] { fd_in, off_in, fd_out, off_out, len, flags });
+   }
+
+   private static Function optionalFunction(String name)
+   {
+      try {
+         return NativeLibrary.getProcess().getFunction(name);
+      }
+      catch (UnsatisfiedLinkError e) {
+         return null;
+      }
+   }
+
+   public static final int F_GETFD = 1;
+   public static final int F_SETFD = 2;
    public static final int F_GETFL = 3;
    public static final int F_SETFL = 4;
+   public static final int F_DUPFD_CLOEXEC;
 
+   public static final int FD_CLOEXEC = 1;
+
+   public static final int O_RDONLY = 0;
+   public static final int O_WRONLY = 1;
    public static final int O_NONBLOCK;
 
+   // Linux only, from /usr/include/asm-generic/fcntl.h
+   public static final int O_CLOEXEC = 02000000;
+   public static final int O_PATH = 010000000;
+
+   // Linux only, from /usr/include/linux/fcntl.h
+   public static final int F_SETPIPE_SZ = 1031;
+   public static final int F_GETPIPE_SZ = 1032;
+   public static final int F_ADD_SEALS = 1033;
+   public static final int F_SEAL_SEAL = 0x0001;
+   public static final int F_SEAL_SHRINK = 0x0002;
+   public static final int F_SEAL_GROW = 0x0004;
+   public static final int F_SEAL_WRITE = 0x0008;
+
+   // Linux only, from /usr/include/asm-generic/ioctls.h and /usr/include/linux/fcntl.h
+   public static final int FIONREAD = 0x541B;
+   public static final int SPLICE_F_NONBLOCK = 0x02;
+
+   // Linux only, from /usr/include/linux/memfd.h
+   public static final int MFD_CLOEXEC = 0x0001;
+   public static final int MFD_ALLOW_SEALING = 0x0002;
+
+   // Linux only, from /usr/include/sys/eventfd.h
+   public static final int EFD_CLOEXEC = 02000000;
+   public static final int EFD_NONBLOCK = 04000;
+
+   // from /usr/include/sys/mman.h
+   public static final int PROT_READ = 0x1;
+   public static final int PROT_WRITE = 0x2;
+   public static final int MAP_SHARED = 0x1;
+   public static final Pointer MAP_FAILED = Pointer.createConstant(-1);
+
+   // from /usr/include/sys/socket.h
+   public static final int AF_UNIX = 1;
+   public static final int SOCK_STREAM = 1;
+   public static final int SOCK_SEQPACKET = 5;
+   public static final int SHUT_WR = 1;
+   public static final int SOL_SOCKET;
+   public static final int SO_SNDBUF;
+   public static final int SO_RCVBUF;
+
    // from /usr/include/asm-generic/errno-base.h
    public static final int ECHILD = 10; /* No child processes */
+   public static final int EAGAIN = 11; /* Try again, Linux only */
+   public static final int EPIPE = 32; /* Broken pipe */
+
+   // from /usr/include/sys/poll.h, struct pollfd is { int fd; short events; short revents; }
+   public static final short POLLIN = 0x0001;
+   public static final short POLLOUT = 0x0004;
+   public static final short POLLERR = 0x0008;
+   public static final short POLLHUP = 0x0010;
+
+   // from /usr/include/sys/resource.h, RLIM_INFINITY is all ones on Linux and 2^63 - 1 on MacOS
+   public static final int RLIMIT_NPROC;
+   public static final int RLIMIT_NOFILE;
 
    // from /usr/include/sys/wait.h
    public static final int WNOHANG = 0x00000001;
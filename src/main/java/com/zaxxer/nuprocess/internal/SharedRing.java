@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess.internal;
+
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * <b>This is an internal class.</b>  The Java process side of a single-producer, single-consumer
+ * byte ring in a {@code memfd} that a child writes to, see
+ * {@link com.zaxxer.nuprocess.NuProcessBuilder#addSharedMemoryChannel(int, int)} for the protocol.
+ * The child is the producer and owns the head index, the event processor is the consumer and owns
+ * the tail index.
+ *
+ * @author Brett Wooldridge
+ */
+@SuppressWarnings("restriction")
+final class SharedRing
+{
+   static final int MAGIC = 0x4e757267;
+   static final int MAGIC_OFFSET = 0;
+   static final int CAPACITY_OFFSET = 4;
+   static final int HEAD_OFFSET = 64;
+   static final int TAIL_OFFSET = 128;
+   static final int CLOSED_OFFSET = 192;
+   static final int HEADER_SIZE = 4096;
+
+   private static final int MIN_CAPACITY = 4096;
+   private static final int MAX_CAPACITY = 1 << 30;
+   private static final Unsafe UNSAFE = UnsafeHelper.getUnsafe();
+
+   private final int capacity;
+   private final long size;
+   private final Memory counter;
+   private int memfd;
+   private int dataFd;
+   private int spaceFd;
+   private Pointer mapping;
+   private long address;
+   private ByteBuffer data;
+
+   private long tail;
+   private long head;
+   private int regionStart;
+   private ByteBuffer region;
+   private boolean reachedEnd;
+
+   SharedRing(int requestedCapacity) {
+      int cap = MIN_CAPACITY;
+      while (cap < requestedCapacity && cap < MAX_CAPACITY) {
+         cap <<= 1;
+      }
+      this.capacity = cap;
+      this.size = HEADER_SIZE + (long) cap;
+      this.counter = new Memory(8);
+      this.memfd = -1;
+      this.dataFd = -1;
+      this.spaceFd = -1;
+
+      try {
+         memfd = LibC.memfd_create("nuprocess-ring", LibC.MFD_CLOEXEC);
+         checkReturnCode(memfd, "memfd_create() for shared memory channel failed");
+         checkReturnCode(LibC.ftruncate(memfd, size), "ftruncate() of shared memory channel failed");
+
+         Pointer p = LibC.mmap(null, size, LibC.PROT_READ | LibC.PROT_WRITE, LibC.MAP_SHARED, memfd, 0);
+         if (p == null || Pointer.nativeValue(p) == Pointer.nativeValue(LibC.MAP_FAILED)) {
+            throw new RuntimeException("mmap() of shared memory channel failed, last error: " + Native.getLastError());
+         }
+         mapping = p;
+         address = Pointer.nativeValue(p);
+
+         dataFd = LibC.eventfd(0, LibC.EFD_CLOEXEC | LibC.EFD_NONBLOCK);
+         checkReturnCode(dataFd, "eventfd() for shared memory channel failed");
+         spaceFd = LibC.eventfd(0, LibC.EFD_CLOEXEC | LibC.EFD_NONBLOCK);
+         checkReturnCode(spaceFd, "eventfd() for shared memory channel failed");
+      }
+      catch (RuntimeException e) {
+         LibC.close(dataFd);
+         dataFd = -1;
+         free();
+         throw e;
+      }
+
+      // A new memfd is zero filled, so the indices and the closed flag start at 0
+      mapping.setInt(MAGIC_OFFSET, MAGIC);
+      mapping.setInt(CAPACITY_OFFSET, capacity);
+      data = UnsafeHelper.wrapNativeMemory(address + HEADER_SIZE, capacity);
+   }
+
+   int getMemfd()
+   {
+      return memfd;
+   }
+
+   /**
+    * @return the eventfd the child signals when it has advanced the head or closed the ring, it is owned
+    *    by the {@link ChildChannel} from the moment the ring is created
+    */
+   int getDataFd()
+   {
+      return dataFd;
+   }
+
+   int getSpaceFd()
+   {
+      return spaceFd;
+   }
+
+   /**
+    * Get the readable region at the tail of the ring, which is contiguous up to the end of the data
+    * area.  The bytes after a wrap are returned by the next call.
+    *
+    * @param exited true if the child has exited, so that everything left in the ring is the end of the stream
+    * @return a view of the region, or null if there is nothing to deliver
+    */
+   ByteBuffer read(boolean exited)
+   {
+      if (!exited) {
+         // Reset the eventfd before looking at the head, a signal that arrives afterwards wakes us again
+         LibC.read(dataFd, counter, 8);
+      }
+
+      boolean closed = exited || UNSAFE.getIntVolatile(null, address + CLOSED_OFFSET) != 0;
+      head = UNSAFE.getLongVolatile(null, address + HEAD_OFFSET);
+      long available = head - tail;
+      if (available < 0 || available > capacity) {
+         throw new RuntimeException("Shared memory channel is corrupt, head: " + head + ", tail: " + tail);
+      }
+
+      regionStart = (int) (tail & (capacity - 1));
+      int length = (int) Math.min(available, capacity - regionStart);
+      reachedEnd = closed && length == available;
+      if (length == 0 && !reachedEnd) {
+         return null;
+      }
+
+      region = data.duplicate();
+      region.limit(regionStart + length);
+      region.position(regionStart);
+      return region;
+   }
+
+   /**
+    * @return true if the region returned by the last {@link #read(boolean)} ends the stream
+    */
+   boolean reachedEnd()
+   {
+      return reachedEnd;
+   }
+
+   /**
+    * Advance the tail past the bytes the handler consumed from the region returned by
+    * {@link #read(boolean)}, and wake the child if it waits for space.
+    *
+    * @return true if the region was consumed and more data follows it after the wrap
+    */
+   boolean afterRead()
+   {
+      if (region == null) {
+         return false;
+      }
+
+      int consumed = region.position() - regionStart;
+      boolean wrapped = !region.hasRemaining() && region.limit() == capacity;
+      region = null;
+      if (consumed == 0) {
+         return false;
+      }
+
+      tail += consumed;
+      UNSAFE.putOrderedLong(null, address + TAIL_OFFSET, tail);
+      if (!reachedEnd) {
+         counter.setLong(0, 1);
+         LibC.write(spaceFd, counter, 8);
+      }
+      return wrapped && head != tail;
+   }
+
+   /**
+    * Unmap the ring and close the memfd and the space eventfd.  The child keeps its own mapping.
+    */
+   void free()
+   {
+      if (mapping != null) {
+         LibC.munmap(mapping, size);
+         mapping = null;
+         data = null;
+      }
+
+      if (memfd != -1) {
+         LibC.close(memfd);
+         memfd = -1;
+      }
+
+      if (spaceFd != -1) {
+         LibC.close(spaceFd);
+         spaceFd = -1;
+      }
+   }
+
+   private static void checkReturnCode(int rc, String failureMessage)
+   {
+      if (rc == -1) {
+         throw new RuntimeException(failureMessage + ", return code: " + rc + ", last error: " + Native.getLastError());
+      }
+   }
+}
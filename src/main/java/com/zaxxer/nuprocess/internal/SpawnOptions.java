@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess.internal;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <b>This is an internal class.</b>  A snapshot of the spawn-time settings of a
+ * {@link com.zaxxer.nuprocess.NuProcessBuilder}, handed to the platform
+ * {@link com.zaxxer.nuprocess.NuProcessFactory} when a process is started.
+ * <p>
+ * Each of the standard streams is described by a file descriptor value.  A value of
+ * {@link #PIPE} (the default) means a pipe is created between the Java process and
+ * the child and serviced by the event processor, {@link #INHERIT} means the child
+ * shares the stream of the Java process, {@link #DISCARD} connects the stream to
+ * {@code /dev/null}, {@link #FILE} (stdin only) opens {@link #getStdinPath()} in the
+ * child, and any non-negative value is an existing descriptor which is dup'd into the
+ * child.  Descriptors passed in this way remain owned by the caller.
+ *
+ * @author Brett Wooldridge
+ */
+public final class SpawnOptions
+{
+   public static final int PIPE = -1;
+   public static final int INHERIT = -2;
+   public static final int DISCARD = -3;
+   public static final int FILE = -4;
+
+   /** The number of child descriptors used by a shared memory channel: the memfd and two eventfds */
+   public static final int SHARED_MEMORY_FDS = 3;
+
+   private int stdinFd;
+   private String stdinPath;
+   private int stdoutFd;
+   private int stderrFd;
+   private boolean redirectErrorStream;
+   private boolean closeFds;
+   private File directory;
+   private int stdioSocketType;
+   private int socketSendBufferSize;
+   private int socketReceiveBufferSize;
+   private int stdinPipeCapacity;
+   private int stdoutPipeCapacity;
+   private int stderrPipeCapacity;
+   private final TreeMap<Integer, Boolean> channels;
+   private final TreeMap<Integer, Integer> inheritedFds;
+   private final TreeMap<Integer, Integer> sharedMemoryChannels;
+
+   public SpawnOptions() {
+      this.stdinFd = PIPE;
+      this.stdoutFd = PIPE;
+      this.stderrFd = PIPE;
+      this.channels = new TreeMap<Integer, Boolean>();
+      this.inheritedFds = new TreeMap<Integer, Integer>();
+      this.sharedMemoryChannels = new TreeMap<Integer, Integer>();
+   }
+
+   public SpawnOptions(SpawnOptions other) {
+      this.stdinFd = other.stdinFd;
+      this.stdinPath = other.stdinPath;
+      this.stdoutFd = other.stdoutFd;
+      this.stderrFd = other.stderrFd;
+      this.redirectErrorStream = other.redirectErrorStream;
+      this.closeFds = other.closeFds;
+      this.directory = other.directory;
+      this.stdioSocketType = other.stdioSocketType;
+      this.socketSendBufferSize = other.socketSendBufferSize;
+      this.socketReceiveBufferSize = other.socketReceiveBufferSize;
+      this.stdinPipeCapacity = other.stdinPipeCapacity;
+      this.stdoutPipeCapacity = other.stdoutPipeCapacity;
+      this.stderrPipeCapacity = other.stderrPipeCapacity;
+      this.channels = new TreeMap<Integer, Boolean>(other.channels);
+      this.inheritedFds = new TreeMap<Integer, Integer>(other.inheritedFds);
+      this.sharedMemoryChannels = new TreeMap<Integer, Integer>(other.sharedMemoryChannels);
+   }
+
+   public int getStdinFd()
+   {
+      return stdinFd;
+   }
+
+   public void setStdinFd(int stdinFd)
+   {
+      this.stdinFd = stdinFd;
+   }
+
+   /**
+    * The file the child opens read-only as its stdin when the stdin descriptor is {@link #FILE}.
+    * Each child opens the file itself, so every child has its own file offset.
+    *
+    * @return the path of the file, or {@code null}
+    */
+   public String getStdinPath()
+   {
+      return stdinPath;
+   }
+
+   /**
+    * Set stdin to {@link #FILE}, read from the specified path.
+    *
+    * @param stdinPath the path of the file
+    */
+   public void setStdinPath(String stdinPath)
+   {
+      this.stdinFd = FILE;
+      this.stdinPath = stdinPath;
+   }
+
+   public int getStdoutFd()
+   {
+      return stdoutFd;
+   }
+
+   public void setStdoutFd(int stdoutFd)
+   {
+      this.stdoutFd = stdoutFd;
+   }
+
+   public int getStderrFd()
+   {
+      return stderrFd;
+   }
+
+   public void setStderrFd(int stderrFd)
+   {
+      this.stderrFd = stderrFd;
+   }
+
+   /**
+    * When set, the child's stderr is dup'd from its stdout, whatever stdout is connected to,
+    * and the stderr setting is ignored.
+    *
+    * @return true if stderr is redirected into stdout
+    */
+   public boolean isRedirectErrorStream()
+   {
+      return redirectErrorStream;
+   }
+
+   public void setRedirectErrorStream(boolean redirectErrorStream)
+   {
+      this.redirectErrorStream = redirectErrorStream;
+   }
+
+   /**
+    * When set, every descriptor above the ones explicitly configured for the child is
+    * closed in the child before it executes.
+    *
+    * @return true if inherited descriptors are closed at spawn
+    */
+   public boolean isCloseFds()
+   {
+      return closeFds;
+   }
+
+   public void setCloseFds(boolean closeFds)
+   {
+      this.closeFds = closeFds;
+   }
+
+   /**
+    * The working directory of the child, or {@code null} to inherit the working directory
+    * of the Java process.
+    *
+    * @return the working directory, or {@code null}
+    */
+   public File getDirectory()
+   {
+      return directory;
+   }
+
+   public void setDirectory(File directory)
+   {
+      this.directory = directory;
+   }
+
+   /**
+    * When non-zero, the child's stdin and stdout are both connected to one end of an {@code AF_UNIX}
+    * {@code socketpair()} of this type ({@link LibC#SOCK_STREAM} or {@link LibC#SOCK_SEQPACKET})
+    * instead of a pair of pipes.  Only valid when both stdin and stdout are {@link #PIPE}.
+    *
+    * @return the socket type, or 0 for pipes
+    */
+   public int getStdioSocketType()
+   {
+      return stdioSocketType;
+   }
+
+   public void setStdioSocketType(int stdioSocketType)
+   {
+      this.stdioSocketType = stdioSocketType;
+   }
+
+   /**
+    * The {@code SO_SNDBUF} of the Java process end of the stdio socket, which is also used as the
+    * {@code SO_RCVBUF} of the child end.  Zero leaves the system default.
+    *
+    * @return the send buffer size in bytes, or 0
+    */
+   public int getSocketSendBufferSize()
+   {
+      return socketSendBufferSize;
+   }
+
+   public void setSocketSendBufferSize(int socketSendBufferSize)
+   {
+      this.socketSendBufferSize = socketSendBufferSize;
+   }
+
+   /**
+    * The {@code SO_RCVBUF} of the Java process end of the stdio socket, which is also used as the
+    * {@code SO_SNDBUF} of the child end.  Zero leaves the system default.
+    *
+    * @return the receive buffer size in bytes, or 0
+    */
+   public int getSocketReceiveBufferSize()
+   {
+      return socketReceiveBufferSize;
+   }
+
+   public void setSocketReceiveBufferSize(int socketReceiveBufferSize)
+   {
+      this.socketReceiveBufferSize = socketReceiveBufferSize;
+   }
+
+   /**
+    * The capacity requested with {@code F_SETPIPE_SZ} for the stdin pipe.  Zero leaves the system
+    * default.  Only used on Linux, and only when stdin is a {@link #PIPE}.
+    *
+    * @return the capacity in bytes, or 0
+    */
+   public int getStdinPipeCapacity()
+   {
+      return stdinPipeCapacity;
+   }
+
+   public void setStdinPipeCapacity(int stdinPipeCapacity)
+   {
+      this.stdinPipeCapacity = stdinPipeCapacity;
+   }
+
+   /**
+    * The capacity requested with {@code F_SETPIPE_SZ} for the stdout pipe, see
+    * {@link #getStdinPipeCapacity()}.
+    *
+    * @return the capacity in bytes, or 0
+    */
+   public int getStdoutPipeCapacity()
+   {
+      return stdoutPipeCapacity;
+   }
+
+   public void setStdoutPipeCapacity(int stdoutPipeCapacity)
+   {
+      this.stdoutPipeCapacity = stdoutPipeCapacity;
+   }
+
+   /**
+    * The capacity requested with {@code F_SETPIPE_SZ} for the stderr pipe, see
+    * {@link #getStdinPipeCapacity()}.
+    *
+    * @return the capacity in bytes, or 0
+    */
+   public int getStderrPipeCapacity()
+   {
+      return stderrPipeCapacity;
+   }
+
+   public void setStderrPipeCapacity(int stderrPipeCapacity)
+   {
+      this.stderrPipeCapacity = stderrPipeCapacity;
+   }
+
+   /**
+    * Declare an extra pipe at a child descriptor number of 3 or more.
+    *
+    * @param childFd the descriptor number in the child
+    * @param input true if the child reads from the channel, false if it writes to it
+    */
+   public void addChannel(int childFd, boolean input)
+   {
+      if (childFd < 3) {
+         throw new IllegalArgumentException("Channel descriptor must be 3 or greater, use the stdio settings for 0-2");
+      }
+
+      channels.put(childFd, input);
+      inheritedFds.remove(childFd);
+      removeSharedMemoryChannel(childFd);
+   }
+
+   /**
+    * The extra pipes, mapping each child descriptor number to true for input channels
+    * and false for output channels, in ascending descriptor order.
+    *
+    * @return an unmodifiable view of the channels
+    */
+   public Map<Integer, Boolean> getChannels()
+   {
+      return Collections.unmodifiableMap(channels);
+   }
+
+   /**
+    * Dup an existing descriptor of the Java process, which remains owned by the caller, into the
+    * child.  For descriptors 0-2 this is the same as setting the corresponding stdio descriptor.
+    *
+    * @param childFd the descriptor number in the child
+    * @param fd the descriptor of the Java process
+    */
+   public void inheritFd(int childFd, int fd)
+   {
+      if (childFd < 0 || fd < 0) {
+         throw new IllegalArgumentException("Descriptors must not be negative");
+      }
+
+      switch (childFd) {
+      case 0:
+         stdinFd = fd;
+         break;
+      case 1:
+         stdoutFd = fd;
+         break;
+      case 2:
+         stderrFd = fd;
+         break;
+      default:
+         inheritedFds.put(childFd, fd);
+         channels.remove(childFd);
+         removeSharedMemoryChannel(childFd);
+      }
+   }
+
+   /**
+    * The descriptors of the Java process to dup into the child at descriptors 3 and up, mapping
+    * each child descriptor number to the descriptor of the Java process.
+    *
+    * @return an unmodifiable view of the inherited descriptors
+    */
+   public Map<Integer, Integer> getInheritedFds()
+   {
+      return Collections.unmodifiableMap(inheritedFds);
+   }
+
+   /**
+    * Declare a shared memory ring at child descriptor {@code childFd}, with its two eventfds at
+    * {@code childFd + 1} and {@code childFd + 2}.  Channels and inherited descriptors at these
+    * numbers are replaced.
+    *
+    * @param childFd the descriptor number of the ring's memfd in the child
+    * @param capacity the size of the ring's data area, rounded up to a power of two
+    */
+   public void addSharedMemoryChannel(int childFd, int capacity)
+   {
+      if (childFd < 3) {
+         throw new IllegalArgumentException("Channel descriptor must be 3 or greater, use the stdio settings for 0-2");
+      }
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("Ring capacity must be positive");
+      }
+
+      for (int fd = childFd; fd < childFd + SHARED_MEMORY_FDS; fd++) {
+         channels.remove(fd);
+         inheritedFds.remove(fd);
+         removeSharedMemoryChannel(fd);
+      }
+      sharedMemoryChannels.put(childFd, capacity);
+   }
+
+   /**
+    * The shared memory rings, mapping the child descriptor number of each ring's memfd to the
+    * requested capacity, in ascending descriptor order.
+    *
+    * @return an unmodifiable view of the shared memory channels
+    */
+   public Map<Integer, Integer> getSharedMemoryChannels()
+   {
+      return Collections.unmodifiableMap(sharedMemoryChannels);
+   }
+
+   /**
+    * The highest descriptor number that is configured in the child.
+    *
+    * @return the highest of 2, the channels and the inherited descriptors
+    */
+   public int getMaxChildFd()
+   {
+      int max = 2;
+      if (!channels.isEmpty()) {
+         max = Math.max(max, channels.lastKey());
+      }
+      if (!inheritedFds.isEmpty()) {
+         max = Math.max(max, inheritedFds.lastKey());
+      }
+      if (!sharedMemoryChannels.isEmpty()) {
+         max = Math.max(max, sharedMemoryChannels.lastKey() + SHARED_MEMORY_FDS - 1);
+      }
+      return max;
+   }
+
+   /**
+    * Test whether any descriptor above 2 is configured in the child.
+    *
+    * @return true if there are channels or inherited descriptors
+    */
+   public boolean hasExtraFds()
+   {
+      return !channels.isEmpty() || !inheritedFds.isEmpty() || !sharedMemoryChannels.isEmpty();
+   }
+
+   private void removeSharedMemoryChannel(int childFd)
+   {
+      Integer first = sharedMemoryChannels.floorKey(childFd);
+      if (first != null && childFd < first + SHARED_MEMORY_FDS) {
+         sharedMemoryChannels.remove(first);
+      }
+   }
+
+   /**
+    * Test whether all of the standard streams are connected by pipes to the
+    * Java process, which is the only configuration supported on every platform.
+    *
+    * @return true if stdin, stdout and stderr are all {@link #PIPE}
+    */
+   public boolean isDefaultStdio()
+   {
+      return stdinFd == PIPE && stdoutFd == PIPE && stderrFd == PIPE;
+   }
+
+   /**
+    * Options are equal when they start processes the same way, so that the processes can be started
+    * as one batch.
+    */
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj) {
+         return true;
+      }
+      if (!(obj instanceof SpawnOptions)) {
+         return false;
+      }
+
+      SpawnOptions other = (SpawnOptions) obj;
+      return stdinFd == other.stdinFd
+         && stdoutFd == other.stdoutFd
+         && stderrFd == other.stderrFd
+         && redirectErrorStream == other.redirectErrorStream
+         && closeFds == other.closeFds
+         && stdioSocketType == other.stdioSocketType
+         && socketSendBufferSize == other.socketSendBufferSize
+         && socketReceiveBufferSize == other.socketReceiveBufferSize
+         && stdinPipeCapacity == other.stdinPipeCapacity
+         && stdoutPipeCapacity == other.stdoutPipeCapacity
+         && stderrPipeCapacity == other.stderrPipeCapacity
+         && (stdinPath == null ? other.stdinPath == null : stdinPath.equals(other.stdinPath))
+         && (directory == null ? other.directory == null : directory.equals(other.directory))
+         && channels.equals(other.channels)
+         && inheritedFds.equals(other.inheritedFds)
+         && sharedMemoryChannels.equals(other.sharedMemoryChannels);
+   }
+
+   @Override
+   public int hashCode()
+   {
+      int hash = stdinFd;
+      hash = 31 * hash + stdoutFd;
+      hash = 31 * hash + stderrFd;
+      hash = 31 * hash + (directory == null ? 0 : directory.hashCode());
+      hash = 31 * hash + channels.hashCode();
+      return 31 * hash + inheritedFds.hashCode();
+   }
+}
@@ -16,6 +16,7 @@
 
 package com.zaxxer.nuprocess.internal;
 
+import java.io.FileDescriptor;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
@@ -28,6 +29,7 @@ public final class UnsafeHelper
    private static final Unsafe UNSAFE;
    private static Constructor<?> DIRECT_BYTEBUFFER_CONSTRUCTOR;
    private static long ADDRESS_FIELD_OFFSET;
+   private static long FD_FIELD_OFFSET;
 
    static {
       try {
@@ -51,6 +53,13 @@ public final class UnsafeHelper
       catch (Exception e) {
          throw new RuntimeException("Unable to obtain reference to java.nio.DirectByteBuffer constructor", e);
       }
+
+      try {
+         FD_FIELD_OFFSET = UNSAFE.objectFieldOffset(FileDescriptor.class.getDeclaredField("fd"));
+      }
+      catch (Exception e) {
+         FD_FIELD_OFFSET = -1;
+      }
    }
 
    public static Unsafe getUnsafe()
@@ -72,4 +81,43 @@ public final class UnsafeHelper
    {
       return UNSAFE.getLong(byteBuffer, ADDRESS_FIELD_OFFSET);
    }
+
+   /**
+    * Get the POSIX descriptor number held by a {@link FileDescriptor}.
+    *
+    * @param fileDescriptor the descriptor
+    * @return the descriptor number, or -1 if it is not valid
+    */
+   public static int getFd(FileDescriptor fileDescriptor)
+   {
+      if (FD_FIELD_OFFSET == -1) {
+         throw new UnsupportedOperationException("Unable to access java.io.FileDescriptor.fd");
+      }
+      return UNSAFE.getInt(fileDescriptor, FD_FIELD_OFFSET);
+   }
+
+   /**
+    * Get the {@link FileDescriptor} of a channel implementation of the JDK, such as those of
+    * {@link java.nio.channels.FileChannel}, {@link java.nio.channels.SocketChannel} and
+    * {@link java.nio.channels.Pipe}, all of which keep it in a field named {@code fd}.
+    *
+    * @param channel the channel
+    * @return the descriptor of the channel
+    */
+   public static FileDescriptor getFileDescriptor(Object channel)
+   {
+      for (Class<?> clazz = channel.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+         try {
+            Field field = clazz.getDeclaredField("fd");
+            if (field.getType() == FileDescriptor.class) {
+               return (FileDescriptor) UNSAFE.getObject(channel, UNSAFE.objectFieldOffset(field));
+            }
+         }
+         catch (NoSuchFieldException e) {
+            continue;
+         }
+      }
+
+      throw new IllegalArgumentException("No file descriptor found in " + channel.getClass().getName());
+   }
 }
@@ -16,11 +16,15 @@
 
 package com.zaxxer.nuprocess.linux;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessFactory;
 import com.zaxxer.nuprocess.NuProcessHandler;
+import com.zaxxer.nuprocess.internal.BasePosixProcess;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
 
 /**
  * Linux process factory.  Creates and starts a process.
@@ -31,12 +35,39 @@ public class LinProcessFactory implements NuProcessFactory
 {
    /** {@inheritDoc} */
    @Override
-   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener)
+   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener, SpawnOptions options)
    {
       LinuxProcess process = new LinuxProcess(processListener);
+      BasePosixProcess.admitAll(Collections.singletonList(process), options);
       synchronized (LinProcessFactory.class) {
-         process.start(commands, env);
+         process.start(commands, env, options);
       }
       return process;
    }
+
+   /** {@inheritDoc} */
+   @Override
+   public List<NuProcess> createProcesses(List<List<String>> commands, String[] env, List<? extends NuProcessHandler> processListeners, SpawnOptions options)
+   {
+      List<LinuxProcess> processes = new ArrayList<LinuxProcess>(processListeners.size());
+      for (NuProcessHandler processListener : processListeners) {
+         processes.add(new LinuxProcess(processListener));
+      }
+      BasePosixProcess.admitAll(processes, options);
+      synchronized (LinProcessFactory.class) {
+         BasePosixProcess.startAll(processes, commands, env, options);
+      }
+      return new ArrayList<NuProcess>(processes);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void launchFailed(List<? extends NuProcessHandler> processListeners)
+   {
+      List<LinuxProcess> processes = new ArrayList<LinuxProcess>(processListeners.size());
+      for (NuProcessHandler processListener : processListeners) {
+         processes.add(new LinuxProcess(processListener));
+      }
+      BasePosixProcess.launchFailed(processes);
+   }
 }
@@ -21,12 +21,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sun.jna.Native;
 import com.sun.jna.ptr.IntByReference;
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.internal.BaseEventProcessor;
+import com.zaxxer.nuprocess.internal.ChildChannel;
 import com.zaxxer.nuprocess.internal.LibC;
 
 import static com.zaxxer.nuprocess.internal.LibC.WIFEXITED;
@@ -44,6 +46,8 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
    private int epoll;
    private EpollEvent triggeredEvent;
    private List<LinuxProcess> deadPool;
+   private ConcurrentLinkedQueue<LinuxProcess> pendingDeadPool;
+   private int deadPoolWait;
 
    private static BlockingQueue<EpollEvent> eventPool;
 
@@ -55,6 +59,8 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
 
       triggeredEvent = new EpollEvent();
       deadPool = new LinkedList<LinuxProcess>();
+      pendingDeadPool = new ConcurrentLinkedQueue<LinuxProcess>();
+      deadPoolWait = DEADPOOL_POLL_INTERVAL;
       eventPool = new ArrayBlockingQueue<EpollEvent>(EVENT_POOL_SIZE);
       for (int i = 0; i < EVENT_POOL_SIZE; i++) {
          eventPool.add(new EpollEvent());
@@ -72,36 +78,54 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
          return;
       }
 
+      int stdinFd = process.getStdin().get();
       int stdoutFd = process.getStdout().get();
       int stderrFd = process.getStderr().get();
-      
+
       pidToProcessMap.put(process.getPid(), process);
-      fildesToProcessMap.put(process.getStdin().get(), process);
-      fildesToProcessMap.put(stdoutFd, process);
-      fildesToProcessMap.put(stderrFd, process);
+      if (stdinFd != -1) {
+         fildesToProcessMap.put(stdinFd, process);
+      }
+
+      for (ChildChannel channel : process.getChannels()) {
+         if (channel.isInput()) {
+            fildesToProcessMap.put(channel.getFd().get(), process);
+         }
+      }
 
       try {
-         EpollEvent event = eventPool.take();
-         event.events = LibEpoll.EPOLLIN;
-         event.data.fd = stdoutFd;
-         int rc = LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_ADD, stdoutFd, event);
-         if (rc == -1) {
-            rc = Native.getLastError();
-            eventPool.put(event);
-            throw new RuntimeException("Unable to register new events to epoll, errorcode: " + rc);
+         // The eventfd of a shared memory channel never reports a hangup, it is watched for data
+         // however the exit of the process is detected
+         for (ChildChannel channel : process.getChannels()) {
+            if (channel.isSharedMemory()) {
+               fildesToProcessMap.put(channel.getFd().get(), process);
+               registerInput(channel.getFd().get());
+            }
          }
-         eventPool.put(event);
 
-         event = eventPool.take();
-         event.events = LibEpoll.EPOLLIN;
-         event.data.fd = stderrFd;
-         rc = LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_ADD, stderrFd, event);
-         if (rc == -1) {
-            rc = Native.getLastError();
-            eventPool.put(event);
-            throw new RuntimeException("Unable to register new events to epoll, errorcode: " + rc);
+         if (!process.hasOutputPipe()) {
+            // Without an output pipe there will never be an EOF to tell us the process has exited,
+            // so hand it straight to the dead pool to be reaped by polling.
+            pendingDeadPool.add(process);
+            return;
+         }
+
+         if (stdoutFd != -1) {
+            fildesToProcessMap.put(stdoutFd, process);
+            registerInput(stdoutFd);
+         }
+
+         if (stderrFd != -1) {
+            fildesToProcessMap.put(stderrFd, process);
+            registerInput(stderrFd);
+         }
+
+         for (ChildChannel channel : process.getChannels()) {
+            if (!channel.isInput() && !channel.isSharedMemory()) {
+               fildesToProcessMap.put(channel.getFd().get(), process);
+               registerInput(channel.getFd().get());
+            }
          }
-         eventPool.put(event);
       }
       catch (InterruptedException ie) {
          throw new RuntimeException(ie);
@@ -138,18 +162,73 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
    }
 
    @Override
-   public void closeStdin(LinuxProcess process)
+   public void queueChannelWrite(LinuxProcess process, ChildChannel channel)
    {
-      int stdin = process.getStdin().get();
-      fildesToProcessMap.remove(stdin);
-      LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, stdin, null);
+      if (shutdown) {
+         return;
+      }
+
+      try {
+         int fd = channel.getFd().get();
+         if (fd == -1) {
+            return;
+         }
+
+         EpollEvent event = eventPool.take();
+         event.events = LibEpoll.EPOLLOUT | LibEpoll.EPOLLONESHOT | LibEpoll.EPOLLRDHUP | LibEpoll.EPOLLHUP;
+         event.data.fd = fd;
+         int rc = LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_MOD, fd, event);
+         if (rc == -1) {
+            rc = LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_ADD, fd, event);
+         }
+
+         eventPool.put(event);
+         if (rc == -1) {
+            throw new RuntimeException("Unable to register new event to epoll queue");
+         }
+      }
+      catch (InterruptedException ie) {
+         throw new RuntimeException(ie);
+      }
+   }
+
+   @Override
+   public void setReadInterest(LinuxProcess process, int fildes, boolean enabled)
+   {
+      if (shutdown) {
+         return;
+      }
+
+      // Removed rather than modified, a pipe registered for no events would still report its hangup
+      if (!enabled) {
+         LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, fildes, null);
+         return;
+      }
+
+      try {
+         EpollEvent event = eventPool.take();
+         event.events = LibEpoll.EPOLLIN;
+         event.data.fd = fildes;
+         LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_ADD, fildes, event);
+         eventPool.put(event);
+      }
+      catch (InterruptedException ie) {
+         throw new RuntimeException(ie);
+      }
+   }
+
+   @Override
+   public void closeStdin(LinuxProcess process, int fildes)
+   {
+      fildesToProcessMap.remove(fildes);
+      LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, fildes, null);
    }
 
    @Override
    public boolean process()
    {
       try {
-         int nev = LibEpoll.epoll_wait(epoll, triggeredEvent, 1, DEADPOOL_POLL_INTERVAL);
+         int nev = LibEpoll.epoll_wait(epoll, triggeredEvent, 1, deadPoolWait);
          if (nev == -1) {
             throw new RuntimeException("Error waiting for epoll");
          }
@@ -167,13 +246,21 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
             return true;
          }
 
-         if ((events & LibEpoll.EPOLLIN) != 0) // stdout/stderr data available to read
+         boolean eof = false;
+         ChildChannel channel = linuxProcess.getChannel(ident);
+         if (channel != null) {
+            processChannel(linuxProcess, channel, ident, events);
+         }
+         else if ((events & LibEpoll.EPOLLIN) != 0) // stdout/stderr data available to read
          {
+            // epoll does not say how much is available, each read is limited by the buffer, which
+            // is sized to the pipe.  Readable but nothing read is EOF without a hangup, e.g. the child
+            // shut down its side of a stdio socket.  The event may predate a pause from another thread
             if (ident == linuxProcess.getStdout().get()) {
-               linuxProcess.readStdout(NuProcess.BUFFER_CAPACITY);
+               eof = !linuxProcess.isOutputPaused(1) && !linuxProcess.readStdout(Integer.MAX_VALUE);
             }
-            else {
-               linuxProcess.readStderr(NuProcess.BUFFER_CAPACITY);
+            else if (!linuxProcess.isOutputPaused(2)) {
+               eof = !linuxProcess.readStderr(Integer.MAX_VALUE);
             }
          }
          else if ((events & LibEpoll.EPOLLOUT) != 0) // Room in stdin pipe available to write
@@ -186,13 +273,23 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
             }
          }
 
-         if ((events & LibEpoll.EPOLLHUP) != 0 || (events & LibEpoll.EPOLLRDHUP) != 0 || (events & LibEpoll.EPOLLERR) != 0) {
+         if (channel == null && (eof || (events & LibEpoll.EPOLLHUP) != 0 || (events & LibEpoll.EPOLLRDHUP) != 0 || (events & LibEpoll.EPOLLERR) != 0)) {
             LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, ident, null);
+            // A pipe paused during the drain is registered again when it is resumed, and hangs up again
             if (ident == linuxProcess.getStdout().get()) {
-               linuxProcess.readStdout(-1);
+               // More than one read may be left at the hangup, in particular several SOCK_SEQPACKET messages
+               while (!linuxProcess.isOutputPaused(1) && linuxProcess.readStdout(Integer.MAX_VALUE)) {
+               }
+               if (!linuxProcess.isOutputPaused(1)) {
+                  linuxProcess.readStdout(-1);
+               }
             }
             else if (ident == linuxProcess.getStderr().get()) {
-               linuxProcess.readStderr(-1);
+               while (!linuxProcess.isOutputPaused(2) && linuxProcess.readStderr(Integer.MAX_VALUE)) {
+               }
+               if (!linuxProcess.isOutputPaused(2)) {
+                  linuxProcess.readStderr(-1);
+               }
             }
             else if (ident == linuxProcess.getStdin().get()) {
                linuxProcess.closeStdin();
@@ -216,12 +313,61 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
    // ************************************************************************
    AtomicInteger count = new AtomicInteger();
 
+   private void processChannel(LinuxProcess linuxProcess, ChildChannel channel, int ident, int events)
+   {
+      if ((events & LibEpoll.EPOLLIN) != 0) {
+         linuxProcess.readChannel(channel, NuProcess.BUFFER_CAPACITY);
+      }
+      else if ((events & LibEpoll.EPOLLOUT) != 0) {
+         if (linuxProcess.writeChannel(channel)) {
+            EpollEvent event = triggeredEvent;
+            event.events = LibEpoll.EPOLLOUT | LibEpoll.EPOLLONESHOT | LibEpoll.EPOLLRDHUP | LibEpoll.EPOLLHUP;
+            LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_MOD, ident, event);
+         }
+      }
+
+      if ((events & LibEpoll.EPOLLHUP) != 0 || (events & LibEpoll.EPOLLRDHUP) != 0 || (events & LibEpoll.EPOLLERR) != 0) {
+         LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, ident, null);
+         if (!channel.isInput()) {
+            linuxProcess.readChannel(channel, -1);
+            return;
+         }
+      }
+      else if (!channel.shouldClose()) {
+         return;
+      }
+
+      if (channel.isInput()) {
+         // Deregister before closing, the descriptor number may be reused right away
+         fildesToProcessMap.remove(ident);
+         LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_DEL, ident, null);
+         channel.close();
+      }
+   }
+
+   private void registerInput(int fd) throws InterruptedException
+   {
+      EpollEvent event = eventPool.take();
+      event.events = LibEpoll.EPOLLIN;
+      event.data.fd = fd;
+      int rc = LibEpoll.epoll_ctl(epoll, LibEpoll.EPOLL_CTL_ADD, fd, event);
+      if (rc == -1) {
+         rc = Native.getLastError();
+         eventPool.put(event);
+         throw new RuntimeException("Unable to register new events to epoll, errorcode: " + rc);
+      }
+      eventPool.put(event);
+   }
+
    private void cleanupProcess(LinuxProcess linuxProcess)
    {
       pidToProcessMap.remove(linuxProcess.getPid());
       fildesToProcessMap.remove(linuxProcess.getStdin().get());
       fildesToProcessMap.remove(linuxProcess.getStdout().get());
       fildesToProcessMap.remove(linuxProcess.getStderr().get());
+      for (ChildChannel channel : linuxProcess.getChannels()) {
+         fildesToProcessMap.remove(channel.getFd().get());
+      }
 
       //        linuxProcess.close(linuxProcess.getStdin());
       //        linuxProcess.close(linuxProcess.getStdout());
@@ -231,7 +377,9 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
       int rc = LibC.waitpid(linuxProcess.getPid(), ret, LibC.WNOHANG);
 
       if (rc == 0) {
+         // A process that closed its pipes is usually about to exit, poll for it again shortly
          deadPool.add(linuxProcess);
+         deadPoolWait = 1;
       }
       else if (rc < 0) {
          linuxProcess.onExit((Native.getLastError() == LibC.ECHILD) ? Integer.MAX_VALUE : Integer.MIN_VALUE);
@@ -248,7 +396,7 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
             }
          }
          else if (WIFSIGNALED(status)) {
-            linuxProcess.onExit(WTERMSIG(status));
+            linuxProcess.onExit(WTERMSIG(status), WTERMSIG(status));
          }
          else {
             linuxProcess.onExit(Integer.MIN_VALUE);
@@ -258,10 +406,19 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
 
    private void checkDeadPool()
    {
+      LinuxProcess pending;
+      while ((pending = pendingDeadPool.poll()) != null) {
+         deadPool.add(pending);
+      }
+
       if (deadPool.isEmpty()) {
+         deadPoolWait = DEADPOOL_POLL_INTERVAL;
          return;
       }
 
+      // Back off towards the regular interval while processes are slow to exit
+      deadPoolWait = Math.min(deadPoolWait * 2, DEADPOOL_POLL_INTERVAL);
+
       IntByReference ret = new IntByReference();
       Iterator<LinuxProcess> iterator = deadPool.iterator();
       while (iterator.hasNext()) {
@@ -272,6 +429,7 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
          }
 
          iterator.remove();
+         pidToProcessMap.remove(process.getPid());
          if (rc < 0) {
             process.onExit((Native.getLastError() == LibC.ECHILD) ? Integer.MAX_VALUE : Integer.MIN_VALUE);
             continue;
@@ -288,7 +446,7 @@ class ProcessEpoll extends BaseEventProcessor<LinuxProcess>
             }
          }
          else if (WIFSIGNALED(status)) {
-            process.onExit(WTERMSIG(status));
+            process.onExit(WTERMSIG(status), WTERMSIG(status));
          }
          else {
             process.onExit(Integer.MIN_VALUE);
@@ -42,7 +42,7 @@ public class OsxProcess extends BasePosixProcess
    {
       int fd = stdin.getAndSet(-1);
       if (fd != -1) {
-         LibC.close(fd);
+         closeStdinFd(fd);
       }
    }
 }
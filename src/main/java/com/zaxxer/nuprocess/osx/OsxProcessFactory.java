@@ -16,20 +16,49 @@
 
 package com.zaxxer.nuprocess.osx;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessFactory;
 import com.zaxxer.nuprocess.NuProcessHandler;
+import com.zaxxer.nuprocess.internal.BasePosixProcess;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
 
 public class OsxProcessFactory implements NuProcessFactory
 {
    /** {@inheritDoc} */
    @Override
-   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener)
+   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener, SpawnOptions options)
    {
       OsxProcess process = new OsxProcess(processListener);
-      process.start(commands, env);
+      BasePosixProcess.admitAll(Collections.singletonList(process), options);
+      process.start(commands, env, options);
       return process;
    }
+
+   /** {@inheritDoc} */
+   @Override
+   public List<NuProcess> createProcesses(List<List<String>> commands, String[] env, List<? extends NuProcessHandler> processListeners, SpawnOptions options)
+   {
+      List<OsxProcess> processes = new ArrayList<OsxProcess>(processListeners.size());
+      for (NuProcessHandler processListener : processListeners) {
+         processes.add(new OsxProcess(processListener));
+      }
+      BasePosixProcess.admitAll(processes, options);
+      BasePosixProcess.startAll(processes, commands, env, options);
+      return new ArrayList<NuProcess>(processes);
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void launchFailed(List<? extends NuProcessHandler> processListeners)
+   {
+      List<OsxProcess> processes = new ArrayList<OsxProcess>(processListeners.size());
+      for (NuProcessHandler processListener : processListeners) {
+         processes.add(new OsxProcess(processListener));
+      }
+      BasePosixProcess.launchFailed(processes);
+   }
 }
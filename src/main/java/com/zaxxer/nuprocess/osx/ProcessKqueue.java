@@ -25,7 +25,9 @@ import java.util.List;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
+import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.internal.BaseEventProcessor;
+import com.zaxxer.nuprocess.internal.ChildChannel;
 import com.zaxxer.nuprocess.internal.LibC;
 import com.zaxxer.nuprocess.osx.LibKevent.Kevent;
 import com.zaxxer.nuprocess.osx.LibKevent.TimeSpec;
@@ -45,6 +47,7 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
    private ThreadLocal<Kevent[]> keventArray;
    private BlockingQueue<OsxProcess> closeQueue;
    private BlockingQueue<OsxProcess> wantsWrite;
+   private BlockingQueue<OsxProcess> wantsChannelWrite;
 
    static {
       JAVA_PID = LibC.getpid();
@@ -62,6 +65,7 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
 
       closeQueue = new ArrayBlockingQueue<OsxProcess>(512);
       wantsWrite = new ArrayBlockingQueue<OsxProcess>(512);
+      wantsChannelWrite = new ArrayBlockingQueue<OsxProcess>(512);
       keventArray = new ThreadLocal<Kevent[]>() {
           @Override
           protected Kevent[] initialValue() {
@@ -93,24 +97,43 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
 
       // We don't use keventArray.get() here since this is called from the user's thread, so allocating
       // the thread-local events array which will never be re-used is pretty wasteful.
-      Kevent[] events = (Kevent[]) new Kevent().toArray(4);
+      ChildChannel[] channels = process.getChannels();
+      Kevent[] events = (Kevent[]) new Kevent().toArray(4 + channels.length);
+      int numEvents = 0;
       // Listen for process exit (one-shot event)
-      events[0].EV_SET(
+      events[numEvents++].EV_SET(
           (long) pid,
           Kevent.EVFILT_PROC,
           Kevent.EV_ADD | Kevent.EV_RECEIPT | Kevent.EV_ONESHOT, Kevent.NOTE_EXIT | Kevent.NOTE_EXITSTATUS | Kevent.NOTE_REAP,
           0l,
           pidPointer);
       // Listen for stdout and stderr data availability (events deleted automatically when file descriptors closed)
-      events[1].EV_SET(
-          process.getStdout().get(), Kevent.EVFILT_READ, Kevent.EV_ADD | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
-      events[2].EV_SET(
-          process.getStderr().get(), Kevent.EVFILT_READ, Kevent.EV_ADD | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+      if (process.getStdout().get() != -1) {
+         events[numEvents++].EV_SET(
+             process.getStdout().get(), Kevent.EVFILT_READ, Kevent.EV_ADD | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+      }
+      if (process.getStderr().get() != -1) {
+         events[numEvents++].EV_SET(
+             process.getStderr().get(), Kevent.EVFILT_READ, Kevent.EV_ADD | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+      }
       // Listen for stdin data availability (initially disabled until user wants read, deleted automatically when file descriptor closed)
-      events[3].EV_SET(
-          process.getStdin().get(), Kevent.EVFILT_WRITE, Kevent.EV_ADD | Kevent.EV_DISABLE | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+      if (process.getStdin().get() != -1) {
+         events[numEvents++].EV_SET(
+             process.getStdin().get(), Kevent.EVFILT_WRITE, Kevent.EV_ADD | Kevent.EV_DISABLE | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+      }
+      // Extra channels, read events for output channels and initially disabled write events for input channels
+      for (ChildChannel channel : channels) {
+         if (channel.isInput()) {
+            events[numEvents++].EV_SET(
+                channel.getFd().get(), Kevent.EVFILT_WRITE, Kevent.EV_ADD | Kevent.EV_DISABLE | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+         }
+         else {
+            events[numEvents++].EV_SET(
+                channel.getFd().get(), Kevent.EVFILT_READ, Kevent.EV_ADD | Kevent.EV_RECEIPT, 0, 0l, pidPointer);
+         }
+      }
 
-      registerEvents(events, 4);
+      registerEvents(events, numEvents);
    }
 
    private void registerEvents(Kevent[] keventArray, int numEvents)
@@ -161,7 +184,43 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
    }
 
    @Override
-   public void closeStdin(OsxProcess process)
+   public void queueChannelWrite(OsxProcess process, ChildChannel channel)
+   {
+      if (shutdown) {
+         return;
+      }
+
+      try {
+         wantsChannelWrite.put(process);
+      }
+      catch (InterruptedException e) {
+         return;
+      }
+
+      LibC.kill(JAVA_PID, LibC.SIGUSR2);
+   }
+
+   @Override
+   public void setReadInterest(OsxProcess process, int fildes, boolean enabled)
+   {
+      if (shutdown) {
+         return;
+      }
+
+      // Called from any thread, so a fresh array rather than the thread-local one
+      Kevent[] events = (Kevent[]) new Kevent().toArray(1);
+      events[0].EV_SET(fildes, Kevent.EVFILT_READ, (enabled ? Kevent.EV_ENABLE : Kevent.EV_DISABLE) | Kevent.EV_RECEIPT, 0, 0l,
+                       Pointer.createConstant(process.getPid()));
+      try {
+         registerEvents(events, 1);
+      }
+      catch (RuntimeException e) {
+         // The pipe was closed in the meantime
+      }
+   }
+
+   @Override
+   public void closeStdin(OsxProcess process, int fildes)
    {
       closeQueue.add(process);
    }
@@ -204,6 +263,7 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
       if (filter == Kevent.EVFILT_SIGNAL) {
          checkStdinCloses();
          checkWaitWrites();
+         checkWaitChannelWrites();
          return;
       }
 
@@ -219,15 +279,38 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
       {
          int available = kevent.data.intValue();
          if (ident == osxProcess.getStdout().get()) {
-            osxProcess.readStdout(available);
+            if (!osxProcess.isOutputPaused(1)) {
+               osxProcess.readStdout(available);
+            }
             if ((kevent.flags & Kevent.EV_EOF) != 0) {
-               osxProcess.readStdout(-1);
+               // More than one read may be left at EOF, in particular several messages of a stdio socket.
+               // A disabled filter reports the EOF again once it is enabled
+               while (!osxProcess.isOutputPaused(1) && osxProcess.readStdout(NuProcess.BUFFER_CAPACITY)) {
+               }
+               if (!osxProcess.isOutputPaused(1)) {
+                  osxProcess.readStdout(-1);
+               }
             }
          }
          else if (ident == osxProcess.getStderr().get()) {
-            osxProcess.readStderr(available);
+            if (!osxProcess.isOutputPaused(2)) {
+               osxProcess.readStderr(available);
+            }
             if ((kevent.flags & Kevent.EV_EOF) != 0) {
-               osxProcess.readStderr(-1);
+               while (!osxProcess.isOutputPaused(2) && osxProcess.readStderr(NuProcess.BUFFER_CAPACITY)) {
+               }
+               if (!osxProcess.isOutputPaused(2)) {
+                  osxProcess.readStderr(-1);
+               }
+            }
+         }
+         else {
+            ChildChannel channel = osxProcess.getChannel(ident);
+            if (channel != null) {
+               osxProcess.readChannel(channel, available);
+               if ((kevent.flags & Kevent.EV_EOF) != 0) {
+                  osxProcess.readChannel(channel, -1);
+               }
             }
          }
       }
@@ -248,6 +331,22 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
             registerEvents(events, 1);
          }
       }
+      else if (filter == Kevent.EVFILT_WRITE) // Room in an input channel pipe available to write
+      {
+         ChildChannel channel = osxProcess.getChannel(ident);
+         if (channel != null && !osxProcess.writeChannel(channel)) {
+            if (channel.shouldClose() || (kevent.flags & Kevent.EV_EOF) != 0) {
+               // Closing the descriptor removes its events from the kqueue
+               channel.close();
+            }
+            else {
+               // Nothing more to write for now. Disable the event.
+               Kevent[] events = keventArray.get();
+               events[0].EV_SET(ident, Kevent.EVFILT_WRITE, Kevent.EV_DISABLE | Kevent.EV_RECEIPT, 0, 0l, Pointer.createConstant(osxProcess.getPid()));
+               registerEvents(events, 1);
+            }
+         }
+      }
       else if ((kevent.fflags & Kevent.NOTE_EXIT) != 0) // process has exited System.gc()
       {
          cleanupProcess(osxProcess);
@@ -262,7 +361,7 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
             }
          }
          else if (WIFSIGNALED(status)) {
-            osxProcess.onExit(WTERMSIG(status));
+            osxProcess.onExit(WTERMSIG(status), WTERMSIG(status));
          }
          else {
             osxProcess.onExit(status);
@@ -284,6 +383,38 @@ final class ProcessKqueue extends BaseEventProcessor<OsxProcess>
      }
    }
 
+   private void checkWaitChannelWrites()
+   {
+      List<OsxProcess> processes = new ArrayList<OsxProcess>();
+      wantsChannelWrite.drainTo(processes);
+      if (processes.isEmpty()) {
+         return;
+      }
+
+      // Enable channel-ready notifications for every open input channel of each process, the ones
+      // with nothing queued are disabled again on their first event
+      Kevent[] kevents = keventArray.get();
+      int numEvents = 0;
+      for (OsxProcess process : processes) {
+         for (ChildChannel channel : process.getChannels()) {
+            int fd = channel.getFd().get();
+            if (!channel.isInput() || fd == -1) {
+               continue;
+            }
+
+            if (numEvents == kevents.length) {
+               registerEvents(kevents, numEvents);
+               numEvents = 0;
+            }
+            kevents[numEvents++].EV_SET(fd, Kevent.EVFILT_WRITE, Kevent.EV_ENABLE | Kevent.EV_RECEIPT, 0, 0l, Pointer.createConstant(process.getPid()));
+         }
+      }
+
+      if (numEvents > 0) {
+         registerEvents(kevents, numEvents);
+      }
+   }
+
    private void checkWaitWrites()
    {
       List<OsxProcess> processes = new ArrayList<OsxProcess>();
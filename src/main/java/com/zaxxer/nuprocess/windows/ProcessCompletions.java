@@ -168,7 +168,7 @@ public final class ProcessCompletions implements Runnable
       shutdown = true;
       Collection<WindowsProcess> processes = completionKeyToProcessMap.values();
       for (WindowsProcess process : processes) {
-         NuKernel32.TerminateProcess(process.getPid(), Integer.MAX_VALUE - 1);
+         NuKernel32.TerminateProcess(process.getProcessHandle(), Integer.MAX_VALUE - 1);
          process.onExit(Integer.MAX_VALUE - 1);
       }
    }
@@ -306,7 +306,7 @@ public final class ProcessCompletions implements Runnable
       Iterator<WindowsProcess> iterator = deadPool.iterator();
       while (iterator.hasNext()) {
          WindowsProcess process = iterator.next();
-         if (NuKernel32.GetExitCodeProcess(process.getPid(), exitCode) && exitCode.getValue() != WinNT.STILL_ACTIVE) {
+         if (NuKernel32.GetExitCodeProcess(process.getProcessHandle(), exitCode) && exitCode.getValue() != WinNT.STILL_ACTIVE) {
             iterator.remove();
             process.onExit(exitCode.getValue());
          }
@@ -320,7 +320,7 @@ public final class ProcessCompletions implements Runnable
       completionKeyToProcessMap.remove(process.getStderrPipe().ioCompletionKey);
 
       IntByReference exitCode = new IntByReference();
-      if (NuKernel32.GetExitCodeProcess(process.getPid(), exitCode) && exitCode.getValue() != WinNT.STILL_ACTIVE) {
+      if (NuKernel32.GetExitCodeProcess(process.getProcessHandle(), exitCode) && exitCode.getValue() != WinNT.STILL_ACTIVE) {
          process.onExit(exitCode.getValue());
       }
       else {
@@ -19,11 +19,13 @@
  */
 package com.zaxxer.nuprocess.windows;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessFactory;
 import com.zaxxer.nuprocess.NuProcessHandler;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
 
 /**
  * Windows process factory.  Creates and starts a process.
@@ -34,10 +36,47 @@ public class WinProcessFactory implements NuProcessFactory
 {
    /** {@inheritDoc} */
    @Override
-   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener)
+   public NuProcess createProcess(List<String> commands, String[] env, NuProcessHandler processListener, SpawnOptions options)
    {
+      if (!options.isDefaultStdio()) {
+         throw new UnsupportedOperationException("Redirection of standard streams is not supported on Windows");
+      }
+
+      if (!options.getChannels().isEmpty()) {
+         throw new UnsupportedOperationException("Extra channels are not supported on Windows");
+      }
+
+      if (options.getStdioSocketType() != 0) {
+         throw new UnsupportedOperationException("Socket stdio transports are not supported on Windows");
+      }
+
+      if (!options.getInheritedFds().isEmpty()) {
+         throw new UnsupportedOperationException("Passing descriptors is not supported on Windows");
+      }
+
       WindowsProcess process = new WindowsProcess(processListener);
-      process.start(commands, env);
+      process.start(commands, env, options);
       return process;
    }
+
+   /** {@inheritDoc} */
+   @Override
+   public List<NuProcess> createProcesses(List<List<String>> commands, String[] env, List<? extends NuProcessHandler> processListeners, SpawnOptions options)
+   {
+      // CreateProcessW() has no setup worth sharing, the processes are started one by one
+      List<NuProcess> processes = new ArrayList<NuProcess>(processListeners.size());
+      for (int i = 0; i < processListeners.size(); i++) {
+         processes.add(createProcess(commands.get(i), env, processListeners.get(i), options));
+      }
+      return processes;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void launchFailed(List<? extends NuProcessHandler> processListeners)
+   {
+      for (NuProcessHandler processListener : processListeners) {
+         new WindowsProcess(processListener).launchFailed();
+      }
+   }
 }
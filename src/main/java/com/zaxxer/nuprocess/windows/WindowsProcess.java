@@ -42,8 +42,12 @@ import com.sun.jna.platform.win32.WinBase.STARTUPINFO;
 import com.sun.jna.platform.win32.WinDef.DWORD;
 import com.sun.jna.platform.win32.WinNT;
 import com.sun.jna.platform.win32.WinNT.HANDLE;
+import com.zaxxer.nuprocess.NuFuture;
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessHandler;
+import com.zaxxer.nuprocess.NuSpawnException;
+import com.zaxxer.nuprocess.ProcessResult;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
 import com.zaxxer.nuprocess.internal.UnsafeHelper;
 import com.zaxxer.nuprocess.windows.NuKernel32.OVERLAPPED;
 
@@ -69,6 +73,9 @@ public final class WindowsProcess implements NuProcess
    protected volatile boolean isRunning;
    private AtomicInteger exitCode;
    private CountDownLatch exitPending;
+   private final NuFuture<ProcessResult> exitFuture;
+   private long startTimeMillis;
+   private long startNanos;
 
    AtomicBoolean userWantsWrite;
    private volatile boolean writePending;
@@ -133,6 +140,7 @@ public final class WindowsProcess implements NuProcess
       this.userWantsWrite = new AtomicBoolean();
       this.exitCode = new AtomicInteger();
       this.exitPending = new CountDownLatch(1);
+      this.exitFuture = new NuFuture<ProcessResult>();
       this.outClosed = true;
       this.errClosed = true;
       this.inClosed = true;
@@ -156,6 +164,35 @@ public final class WindowsProcess implements NuProcess
       return exitCode.get();
    }
 
+   /** {@inheritDoc} */
+   @Override
+   public NuFuture<ProcessResult> onExit()
+   {
+      return exitFuture;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public int getPid()
+   {
+      PROCESS_INFORMATION info = processInfo;
+      return (info != null && info.dwProcessId != null) ? info.dwProcessId.intValue() : 0;
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void pauseOutput(int fd)
+   {
+      throw new UnsupportedOperationException("Pausing output is not supported on Windows");
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void resumeOutput(int fd)
+   {
+      throw new UnsupportedOperationException("Pausing output is not supported on Windows");
+   }
+
    /** {@inheritDoc} */
    @Override
    public void wantWrite()
@@ -194,6 +231,20 @@ public final class WindowsProcess implements NuProcess
    {
       return !pendingWrites.isEmpty();
    }
+
+   /** {@inheritDoc} */
+   @Override
+   public void writeChannel(int fd, ByteBuffer buffer)
+   {
+      throw new UnsupportedOperationException("Extra channels are not supported on Windows");
+   }
+
+   /** {@inheritDoc} */
+   @Override
+   public void closeChannel(int fd)
+   {
+      throw new UnsupportedOperationException("Extra channels are not supported on Windows");
+   }
    
    /** {@inheritDoc} */
    @Override
@@ -220,10 +271,13 @@ public final class WindowsProcess implements NuProcess
    //                          Package-scoped methods
    // ************************************************************************
 
-   NuProcess start(List<String> commands, String[] environment)
+   NuProcess start(List<String> commands, String[] environment, SpawnOptions options)
    {
       callPreStart();
-      
+
+      startTimeMillis = System.currentTimeMillis();
+      startNanos = System.nanoTime();
+
       try {
          createPipes();
 
@@ -235,17 +289,23 @@ public final class WindowsProcess implements NuProcess
          startupInfo.clear();
          startupInfo.cb = new DWORD(startupInfo.size());
          startupInfo.hStdInput = hStdinWidow;
-         startupInfo.hStdError = hStderrWidow;
+         // When merging, our stderr pipe is still created but simply reaches EOF when the process exits
+         startupInfo.hStdError = options.isRedirectErrorStream() ? hStdoutWidow : hStderrWidow;
          startupInfo.hStdOutput = hStdoutWidow;
          startupInfo.dwFlags = WinNT.STARTF_USESTDHANDLES;
 
+         String directory = null;
+         if (options.getDirectory() != null) {
+            directory = options.getDirectory().getAbsolutePath();
+         }
+
          processInfo = new PROCESS_INFORMATION();
 
          DWORD dwCreationFlags = new DWORD(WinNT.CREATE_NO_WINDOW | WinNT.CREATE_UNICODE_ENVIRONMENT | WinNT.CREATE_SUSPENDED);
          if (!NuKernel32.CreateProcessW(null, getCommandLine(commands), null /*lpProcessAttributes*/, null /*lpThreadAttributes*/, true /*bInheritHandles*/,
-                                        dwCreationFlags, env, null /*lpCurrentDirectory*/, startupInfo, processInfo)) {
+                                        dwCreationFlags, env, directory, startupInfo, processInfo)) {
             int lastError = Native.getLastError();
-            throw new RuntimeException("CreateProcessW() failed, error: " + lastError);
+            throw new NuSpawnException("CreateProcessW() failed for " + commands.get(0) + ", error: " + lastError, lastError);
          }
 
          afterStart();
@@ -256,6 +316,10 @@ public final class WindowsProcess implements NuProcess
 
          NuKernel32.ResumeThread(processInfo.hThread);
       }
+      catch (NuSpawnException e) {
+         onExit(Integer.MIN_VALUE);
+         throw e;
+      }
       catch (Throwable e) {
          e.printStackTrace();
          onExit(Integer.MIN_VALUE);
@@ -269,7 +333,7 @@ public final class WindowsProcess implements NuProcess
       return this;
    }
 
-   HANDLE getPid()
+   HANDLE getProcessHandle()
    {
       return processInfo.hProcess;
    }
@@ -465,6 +529,9 @@ public final class WindowsProcess implements NuProcess
          stdoutPipe = null;
          stdinPipe = null;
          processHandler = null;
+
+         int pid = (processInfo != null) ? processInfo.dwProcessId.intValue() : 0;
+         exitFuture.complete(new ProcessResult(pid, statusCode, 0, startTimeMillis, System.nanoTime() - startNanos));
       }
    }
 
@@ -481,6 +548,30 @@ public final class WindowsProcess implements NuProcess
       inClosed = true;
    }
 
+   /**
+    * Report a launch that was given up before this process was created.
+    */
+   void launchFailed()
+   {
+      callPreStart();
+
+      // Nothing was created, so there is nothing for onExit() to flush or close
+      startTimeMillis = System.currentTimeMillis();
+      exitCode.set(Integer.MIN_VALUE);
+      try {
+         processHandler.onExit(Integer.MIN_VALUE);
+      }
+      catch (Exception e) {
+         // Don't let an exception thrown from the user's handler interrupt us
+         e.printStackTrace();
+      }
+      finally {
+         exitPending.countDown();
+         processHandler = null;
+         exitFuture.complete(new ProcessResult(0, Integer.MIN_VALUE, 0, startTimeMillis, 0));
+      }
+   }
+
    private void callPreStart()
    {
       try {
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuAdmissionControl.Policy;
+import com.zaxxer.nuprocess.internal.AdmissionControl;
+import com.zaxxer.nuprocess.internal.SpawnOptions;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class AdmissionTest
+{
+    private int descriptorBudget;
+    private int processBudget;
+
+    @Before
+    public void setup()
+    {
+        descriptorBudget = NuAdmissionControl.getDescriptorBudget();
+        processBudget = NuAdmissionControl.getProcessBudget();
+    }
+
+    @After
+    public void teardown()
+    {
+        NuAdmissionControl.setPolicy(Policy.NONE);
+        NuAdmissionControl.setBudgets(descriptorBudget, processBudget);
+    }
+
+    @Test
+    public void descriptorCounts()
+    {
+        SpawnOptions options = new SpawnOptions();
+        Assert.assertArrayEquals(new int[] { 6, 3 }, AdmissionControl.descriptorsNeeded(options));
+
+        options.setRedirectErrorStream(true);
+        Assert.assertArrayEquals(new int[] { 4, 2 }, AdmissionControl.descriptorsNeeded(options));
+    }
+
+    @Test
+    public void rejectOverBudget() throws InterruptedException
+    {
+        NuAdmissionControl.setBudgets(1000, 2);
+        NuAdmissionControl.setPolicy(Policy.REJECT);
+        long rejected = NuAdmissionControl.getRejectedCount();
+
+        NuProcess first = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sleep", "0.5").start();
+        NuProcess second = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sleep", "0.5").start();
+        Assert.assertEquals(2, NuAdmissionControl.getProcessesInUse());
+        Assert.assertEquals(6, NuAdmissionControl.getDescriptorsInUse());
+
+        final int[] exitCode = new int[1];
+        try {
+            new NuProcessBuilder(new NuAbstractProcessHandler() {
+                @Override
+                public void onExit(int statusCode)
+                {
+                    exitCode[0] = statusCode;
+                }
+            }, "sleep", "0.5").start();
+            Assert.fail("The third launch should have been rejected");
+        }
+        catch (NuAdmissionException e) {
+            Assert.assertEquals(NuAdmissionException.Reason.OVER_BUDGET, e.getReason());
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("over budget"));
+            Assert.assertEquals(1, e.getProcessesNeeded());
+            Assert.assertEquals(6, e.getDescriptorsNeeded());
+            Assert.assertEquals(2, e.getProcessesInUse());
+            Assert.assertEquals(2, e.getProcessBudget());
+            Assert.assertEquals(1000, e.getDescriptorBudget());
+        }
+        Assert.assertEquals(Integer.MIN_VALUE, exitCode[0]);
+        Assert.assertEquals(rejected + 1, NuAdmissionControl.getRejectedCount());
+
+        Assert.assertEquals(0, first.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, second.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, NuAdmissionControl.getProcessesInUse());
+        Assert.assertEquals(0, NuAdmissionControl.getDescriptorsInUse());
+    }
+
+    @Test
+    public void rejectBatchLargerThanBudget()
+    {
+        NuAdmissionControl.setBudgets(1000, 3);
+        NuAdmissionControl.setPolicy(Policy.QUEUE);
+        try {
+            new NuProcessBuilder(new NuAbstractProcessHandler() { }, "true").startAll(4);
+            Assert.fail("A batch larger than the budget should have been rejected");
+        }
+        catch (NuAdmissionException e) {
+            Assert.assertEquals(NuAdmissionException.Reason.EXCEEDS_BUDGET, e.getReason());
+            Assert.assertEquals(4, e.getProcessesNeeded());
+            Assert.assertEquals(3, e.getProcessBudget());
+        }
+        Assert.assertEquals(0, NuAdmissionControl.getProcessesInUse());
+    }
+
+    @Test
+    public void queueUntilExit() throws InterruptedException
+    {
+        NuAdmissionControl.setBudgets(1000, 1);
+        NuAdmissionControl.setPolicy(Policy.QUEUE, 10, TimeUnit.SECONDS);
+        long queued = NuAdmissionControl.getQueuedCount();
+
+        NuProcess first = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sleep", "0.5").start();
+
+        final List<NuProcess> started = new ArrayList<NuProcess>();
+        Thread launcher = new Thread() {
+            @Override
+            public void run()
+            {
+                started.add(new NuProcessBuilder(new NuAbstractProcessHandler() { }, "true").start());
+            }
+        };
+        launcher.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (NuAdmissionControl.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("The second launch should wait", 1, NuAdmissionControl.getQueueDepth());
+
+        Assert.assertEquals(0, first.waitFor(5, TimeUnit.SECONDS));
+        launcher.join(5000);
+        Assert.assertEquals(1, started.size());
+        Assert.assertEquals(0, started.get(0).waitFor(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, NuAdmissionControl.getQueueDepth());
+        Assert.assertEquals(queued + 1, NuAdmissionControl.getQueuedCount());
+        Assert.assertTrue("Wait time not recorded", NuAdmissionControl.getMaxWaitTime(TimeUnit.MILLISECONDS) >= 100);
+    }
+
+    @Test
+    public void queueTimeout() throws InterruptedException
+    {
+        NuAdmissionControl.setBudgets(1000, 1);
+        NuAdmissionControl.setPolicy(Policy.QUEUE, 100, TimeUnit.MILLISECONDS);
+
+        NuProcess first = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sleep", "0.5").start();
+        try {
+            new NuProcessBuilder(new NuAbstractProcessHandler() { }, "true").start();
+            Assert.fail("The launch should have timed out");
+        }
+        catch (NuAdmissionException e) {
+            Assert.assertEquals(NuAdmissionException.Reason.TIMED_OUT, e.getReason());
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+        }
+        Assert.assertEquals(0, NuAdmissionControl.getQueueDepth());
+        Assert.assertEquals(0, first.waitFor(5, TimeUnit.SECONDS));
+    }
+}
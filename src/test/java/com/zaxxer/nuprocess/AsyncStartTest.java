@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class AsyncStartTest
+{
+    @Test
+    public void manyAsync() throws Exception
+    {
+        List<NuFuture<NuProcess>> futures = new ArrayList<NuFuture<NuProcess>>();
+        List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        for (int i = 0; i < 100; i++) {
+            StringBuilder output = new StringBuilder();
+            outputs.add(output);
+            futures.add(new NuProcessBuilder(collector(output), "echo", String.valueOf(i)).startAsync());
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            NuProcess process = futures.get(i).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+            Assert.assertEquals("Output mismatch", i + "\n", outputs.get(i).toString());
+        }
+    }
+
+    @Test
+    public void builderChangesAfterStart() throws Exception
+    {
+        StringBuilder output = new StringBuilder();
+        NuProcessBuilder pb = new NuProcessBuilder(collector(output), "echo", "one");
+        NuFuture<NuProcess> future = pb.startAsync();
+        pb.command().set(1, "two");
+        pb.setProcessListener(collector(new StringBuilder()));
+
+        Assert.assertEquals("Exit code mismatch", 0, future.get(10, TimeUnit.SECONDS).waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("one\n", output.toString());
+    }
+
+    @Test
+    public void spawnFailure() throws Exception
+    {
+        NuFuture<NuProcess> future = new NuProcessBuilder(collector(new StringBuilder()), "/nonexistent/command").startAsync();
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("The future should fail for a missing executable");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue("Unexpected cause: " + e.getCause(), e.getCause() instanceof NuSpawnException);
+            Assert.assertEquals("errno mismatch", 2, ((NuSpawnException) e.getCause()).getErrno()); // ENOENT
+        }
+    }
+
+    @Test
+    public void spawnFailureInBatch() throws Exception
+    {
+        List<NuFuture<NuProcess>> futures = new ArrayList<NuFuture<NuProcess>>();
+        for (int i = 0; i < 20; i++) {
+            String command = (i % 2 == 0) ? "echo" : "/nonexistent/command";
+            futures.add(new NuProcessBuilder(collector(new StringBuilder()), command, String.valueOf(i)).startAsync());
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            if (i % 2 == 0) {
+                Assert.assertEquals("Exit code mismatch", 0, futures.get(i).get(10, TimeUnit.SECONDS).waitFor(10, TimeUnit.SECONDS));
+                continue;
+            }
+
+            try {
+                futures.get(i).get(10, TimeUnit.SECONDS);
+                Assert.fail("The future should fail for a missing executable");
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue("Unexpected cause: " + e.getCause(), e.getCause() instanceof NuSpawnException);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBuilder()
+    {
+        new NuProcessBuilder("echo").startAsync();
+    }
+
+    private static NuProcessHandler collector(final StringBuilder output)
+    {
+        return new NuAbstractProcessHandler() {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.append(new String(bytes));
+            }
+        };
+    }
+}
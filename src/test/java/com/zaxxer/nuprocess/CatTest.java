@@ -192,13 +192,43 @@ public class CatTest
         };
 
         NuProcessBuilder pb = new NuProcessBuilder(processListener, "/bin/zxczxc");
-        NuProcess process = pb.start();
+        try {
+            pb.start();
+            Assert.fail("start() should throw for a missing executable");
+        }
+        catch (NuSpawnException e) {
+            // ENOENT, or on Windows ERROR_FILE_NOT_FOUND (2) or ERROR_PATH_NOT_FOUND (3)
+            boolean windows = System.getProperty("os.name").toLowerCase().contains("win");
+            Assert.assertTrue("errno mismatch: " + e.getErrno(), e.getErrno() == 2 || (windows && e.getErrno() == 3));
+        }
         semaphore.acquireUninterruptibly();
-        Assert.assertFalse("Process incorrectly reported running", process.isRunning());
         Assert.assertEquals("Output did not matched expected result", Integer.MIN_VALUE, exitCode.get());
 
         System.err.println("Completed test noExecutableFound()");
     }
+
+    @Test
+    public void spawnFailureIsSynchronous()
+    {
+        final AtomicInteger exitCode = new AtomicInteger();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler() {
+            @Override
+            public void onExit(int statusCode)
+            {
+                exitCode.set(statusCode);
+            }
+        };
+
+        // No waiting, the failure must already have been reported when start() throws
+        try {
+            new NuProcessBuilder(processListener, "zxczxc-not-on-path").start();
+            Assert.fail("start() should throw for a missing executable");
+        }
+        catch (NuSpawnException e) {
+            Assert.assertEquals("Launch failure not reported by start()", Integer.MIN_VALUE, exitCode.get());
+        }
+    }
     
     @Test
     public void callbackOrder() throws InterruptedException
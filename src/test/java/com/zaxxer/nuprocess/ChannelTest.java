@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class ChannelTest
+{
+    @Test
+    public void outputChannel() throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+        final StringBuilder channel = new StringBuilder();
+        final AtomicBoolean channelClosed = new AtomicBoolean();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdout.append(asString(buffer));
+            }
+
+            @Override
+            public void onChannel(int fd, ByteBuffer buffer, boolean closed)
+            {
+                Assert.assertEquals("Unexpected channel", 3, fd);
+                channel.append(asString(buffer));
+                channelClosed.compareAndSet(false, closed);
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "echo log; echo data >&3");
+        pb.addOutputChannel(3);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout mismatch", "log\n", stdout.toString());
+        Assert.assertEquals("Channel mismatch", "data\n", channel.toString());
+        Assert.assertTrue("Channel EOF not delivered", channelClosed.get());
+    }
+
+    @Test
+    public void largeOutputChannel() throws InterruptedException
+    {
+        final AtomicLong channelBytes = new AtomicLong();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onChannel(int fd, ByteBuffer buffer, boolean closed)
+            {
+                channelBytes.addAndGet(buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "head -c 10485760 /dev/zero >&7");
+        pb.addOutputChannel(7);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Channel byte count mismatch", 10485760, channelBytes.get());
+    }
+
+    @Test
+    public void inputChannel() throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStart(NuProcess nuProcess)
+            {
+                nuProcess.writeChannel(4, ByteBuffer.wrap("payload\n".getBytes()));
+                // Takes effect once the payload has been written
+                nuProcess.closeChannel(4);
+            }
+
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdout.append(asString(buffer));
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "cat <&4");
+        pb.addInputChannel(4);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout mismatch", "payload\n", stdout.toString());
+    }
+
+    @Test
+    public void channelsWithCloseFds() throws InterruptedException
+    {
+        Assume.assumeTrue(new File("/proc/self/fd").isDirectory());
+
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdout.append(asString(buffer));
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "ls /proc/$$/fd; true");
+        pb.addOutputChannel(3);
+        pb.addInputChannel(5);
+        pb.setCloseFds(true);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Open fds mismatch", "0 1 2 3 5", stdout.toString().trim().replaceAll("\\s+", " "));
+    }
+
+    private static String asString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuExecutor.Result;
+import com.zaxxer.nuprocess.NuExecutor.ResultHandler;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class ExecutorTest
+{
+    @Test
+    public void completionOrder() throws InterruptedException
+    {
+        NuExecutor executor = new NuExecutor(new NuProcessBuilder("sh", "-c", "echo $0; echo err$0 >&2"), 8);
+        final List<Long> indices = new ArrayList<Long>();
+        executor.run(inputs(200).iterator(), new ResultHandler() {
+            @Override
+            public void onResult(Result result)
+            {
+                Assert.assertEquals(0, result.getExitCode());
+                Assert.assertEquals(result.getIndex() + "\n", text(result.getStdout()));
+                Assert.assertEquals("err" + result.getIndex() + "\n", text(result.getStderr()));
+                indices.add(result.getIndex());
+            }
+        });
+
+        Collections.sort(indices);
+        Assert.assertEquals("Result count mismatch", 200, indices.size());
+        Assert.assertEquals(Long.valueOf(199), indices.get(199));
+    }
+
+    @Test
+    public void inputOrder() throws InterruptedException
+    {
+        NuExecutor executor = new NuExecutor(new NuProcessBuilder("sh", "-c", "sleep $1; echo $0"), 4);
+        executor.setReorderWindow(6);
+
+        List<List<String>> inputs = new ArrayList<List<String>>();
+        for (int i = 0; i < 40; i++) {
+            // Every fifth process is slow, so that later ones finish before it
+            inputs.add(Arrays.asList(String.valueOf(i), (i % 5 == 0) ? "0.2" : "0"));
+        }
+
+        final List<Long> indices = new ArrayList<Long>();
+        executor.run(inputs.iterator(), new ResultHandler() {
+            @Override
+            public void onResult(Result result)
+            {
+                Assert.assertEquals(result.getIndex() + "\n", text(result.getStdout()));
+                indices.add(result.getIndex());
+            }
+        });
+
+        Assert.assertEquals("Result count mismatch", 40, indices.size());
+        for (int i = 0; i < indices.size(); i++) {
+            Assert.assertEquals("Out of order result", Long.valueOf(i), indices.get(i));
+        }
+    }
+
+    @Test
+    public void largeOutput() throws InterruptedException
+    {
+        List<List<String>> inputs = new ArrayList<List<String>>();
+        for (int i = 0; i < 6; i++) {
+            inputs.add(Arrays.asList(String.valueOf(i * 300000), "/dev/zero"));
+        }
+
+        // Grows the pooled buffers well past their initial size
+        NuExecutor executor = new NuExecutor(new NuProcessBuilder("head", "-c"), 3);
+        final int[] count = new int[1];
+        executor.run(inputs.iterator(), new ResultHandler() {
+            @Override
+            public void onResult(Result result)
+            {
+                Assert.assertEquals(0, result.getExitCode());
+                Assert.assertEquals(result.getIndex() * 300000, result.getStdout().remaining());
+                count[0]++;
+            }
+        });
+        Assert.assertEquals(6, count[0]);
+    }
+
+    @Test
+    public void failedLaunch() throws InterruptedException
+    {
+        NuExecutor executor = new NuExecutor(new NuProcessBuilder("/bin/no-such-command"), 2);
+        final int[] count = new int[1];
+        executor.run(inputs(5).iterator(), new ResultHandler() {
+            @Override
+            public void onResult(Result result)
+            {
+                Assert.assertEquals(Integer.MIN_VALUE, result.getExitCode());
+                count[0]++;
+            }
+        });
+        Assert.assertEquals(5, count[0]);
+    }
+
+    private static List<List<String>> inputs(int count)
+    {
+        List<List<String>> inputs = new ArrayList<List<String>>();
+        for (int i = 0; i < count; i++) {
+            inputs.add(Arrays.asList(String.valueOf(i)));
+        }
+        return inputs;
+    }
+
+    private static String text(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
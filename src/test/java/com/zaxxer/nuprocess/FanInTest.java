@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class FanInTest
+{
+    private static final int SHARDS = 20;
+    private static final int LINES = 500;
+
+    @Test
+    public void mergedBytes() throws InterruptedException, IOException
+    {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        NuFanIn fanIn = new NuFanIn(Channels.newChannel(sink));
+        runShards(fanIn, "head -c 300000 /dev/zero");
+        fanIn.close();
+
+        Assert.assertEquals("Merged byte count mismatch", SHARDS * 300000, sink.size());
+    }
+
+    @Test
+    public void wholeRecords() throws InterruptedException, IOException
+    {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        NuFanIn fanIn = new NuFanIn(Channels.newChannel(sink), (byte) '\n');
+        runShards(fanIn, "i=0; while [ $i -lt " + LINES + " ]; do echo \"$SHARD $i abcdefghijklmnopqrstuvwxyz\"; i=$((i+1)); done");
+        fanIn.close();
+
+        int[] nextLine = new int[SHARDS];
+        String[] records = sink.toString().split("\n");
+        Assert.assertEquals("Record count mismatch", SHARDS * LINES, records.length);
+        for (String record : records) {
+            String[] fields = record.split(" ");
+            Assert.assertEquals("Broken record: " + record, 3, fields.length);
+            Assert.assertEquals("Broken record: " + record, "abcdefghijklmnopqrstuvwxyz", fields[2]);
+
+            int shard = Integer.parseInt(fields[0]);
+            Assert.assertEquals("Out of order record: " + record, nextLine[shard], Integer.parseInt(fields[1]));
+            nextLine[shard]++;
+        }
+    }
+
+    @Test
+    public void slowSinkPausesProcess() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong written = new AtomicLong();
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException
+            {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                int n = src.remaining();
+                src.position(src.limit());
+                written.addAndGet(n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+
+        File marker = File.createTempFile("fanin", ".done");
+        marker.delete();
+        NuFanIn fanIn = new NuFanIn(sink);
+        NuProcessBuilder pb = new NuProcessBuilder(fanIn.handler(), "sh", "-c", "head -c 50000000 /dev/zero; touch " + marker.getPath());
+        NuProcess process = pb.start();
+
+        Thread.sleep(1000);
+        Assert.assertFalse("The process should be paused while the sink is blocked", marker.exists());
+
+        release.countDown();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(20, TimeUnit.SECONDS));
+        fanIn.close();
+        Assert.assertEquals("Merged byte count mismatch", 50000000, written.get());
+        marker.delete();
+    }
+
+    private static void runShards(NuFanIn fanIn, String script) throws InterruptedException
+    {
+        List<NuProcess> processes = new ArrayList<NuProcess>();
+        for (int i = 0; i < SHARDS; i++) {
+            NuProcessBuilder pb = new NuProcessBuilder(fanIn.handler(), "sh", "-c", script);
+            pb.environment().put("SHARD", String.valueOf(i));
+            processes.add(pb.start());
+        }
+
+        for (NuProcess process : processes) {
+            Assert.assertEquals("Exit code mismatch", 0, process.waitFor(20, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuFanout.SlowChildPolicy;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class FanoutTest
+{
+    private static final int TOTAL = 4 * 1024 * 1024;
+
+    @Before
+    public void setup()
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+    }
+
+    @Test
+    public void broadcast() throws InterruptedException
+    {
+        NuFanout fanout = new NuFanout(SlowChildPolicy.BLOCK);
+        List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        List<NuProcess> processes = new ArrayList<NuProcess>();
+        for (int i = 0; i < 3; i++) {
+            processes.add(fanout.start(counter(outputs, "wc -c")));
+        }
+
+        writeAll(fanout, TOTAL);
+
+        for (int i = 0; i < processes.size(); i++) {
+            Assert.assertEquals("Exit code mismatch", 0, processes.get(i).waitFor(10, TimeUnit.SECONDS));
+            Assert.assertEquals("Byte count mismatch", String.valueOf(TOTAL), outputs.get(i).toString().trim());
+        }
+    }
+
+    @Test
+    public void blockWaitsForSlowChild() throws InterruptedException
+    {
+        NuFanout fanout = new NuFanout(SlowChildPolicy.BLOCK);
+        List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        NuProcess fast = fanout.start(counter(outputs, "wc -c"));
+        NuProcess slow = fanout.start(counter(outputs, "sleep 1; wc -c"));
+
+        writeAll(fanout, TOTAL);
+
+        Assert.assertEquals("Exit code mismatch", 0, fast.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Exit code mismatch", 0, slow.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Fast byte count mismatch", String.valueOf(TOTAL), outputs.get(0).toString().trim());
+        Assert.assertEquals("Slow byte count mismatch", String.valueOf(TOTAL), outputs.get(1).toString().trim());
+    }
+
+    @Test
+    public void detachSlowChild() throws InterruptedException
+    {
+        final int total = 1024 * 1024;
+        NuFanout fanout = new NuFanout(SlowChildPolicy.DETACH);
+        List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        // A pipe that holds the whole stream, so that this child never lags however it is scheduled
+        NuProcessBuilder fastBuilder = counter(outputs, "wc -c");
+        fastBuilder.setPipeCapacities(total, 0, 0);
+        NuProcess fast = fanout.start(fastBuilder);
+        NuProcess slow = fanout.start(counter(outputs, "sleep 1; wc -c"));
+
+        long start = System.currentTimeMillis();
+        writeAll(fanout, total);
+        Assert.assertTrue("The writer should not wait for the slow child", System.currentTimeMillis() - start < 1000);
+
+        Assert.assertEquals("Exit code mismatch", 0, fast.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Exit code mismatch", 0, slow.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Fast byte count mismatch", String.valueOf(total), outputs.get(0).toString().trim());
+        Assert.assertTrue("Slow child should have been cut off", Long.parseLong(outputs.get(1).toString().trim()) < total);
+    }
+
+    private static void writeAll(NuFanout fanout, int total)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+        for (int written = 0; written < total; written += buffer.capacity()) {
+            buffer.clear();
+            fanout.write(buffer);
+        }
+        fanout.close();
+    }
+
+    private static NuProcessBuilder counter(List<StringBuilder> outputs, String script)
+    {
+        final StringBuilder stdout = new StringBuilder();
+        outputs.add(stdout);
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        };
+
+        return new NuProcessBuilder(processListener, "sh", "-c", script);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class FlowTest
+{
+    private static final int TOTAL = 8 * 1024 * 1024;
+
+    @Test
+    public void demandDrivesReading() throws InterruptedException
+    {
+        NuFlowHandler handler = new NuFlowHandler();
+        final AtomicLong outstanding = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final AtomicReference<NuFlow.Subscription> subscription = new AtomicReference<NuFlow.Subscription>();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch complete = new CountDownLatch(1);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        handler.stdout().subscribe(new NuFlow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(NuFlow.Subscription s)
+            {
+                subscription.set(s);
+                outstanding.incrementAndGet();
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item)
+            {
+                if (outstanding.decrementAndGet() < 0) {
+                    error.set("Received more than requested");
+                }
+                received.addAndGet(item.remaining());
+                first.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable)
+            {
+                error.set(throwable.toString());
+            }
+
+            @Override
+            public void onComplete()
+            {
+                complete.countDown();
+            }
+        });
+
+        NuProcess process = new NuProcessBuilder(handler, "head", "-c", String.valueOf(TOTAL), "/dev/zero").start();
+        Assert.assertTrue("First item not received", first.await(10, TimeUnit.SECONDS));
+
+        // Without demand, nothing drains the pipe and the child stays blocked
+        Thread.sleep(500);
+        Assert.assertTrue("Process should wait for the subscriber", process.isRunning());
+        Assert.assertTrue("Output should not be read ahead", received.get() < TOTAL / 4);
+
+        // One item at a time, from another thread
+        while (complete.getCount() > 0 && error.get() == null) {
+            if (outstanding.get() == 0) {
+                outstanding.incrementAndGet();
+                subscription.get().request(1);
+            }
+            Thread.sleep(1);
+        }
+
+        Assert.assertNull(error.get());
+        Assert.assertEquals("Byte count mismatch", TOTAL, received.get());
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stdoutToStdin() throws InterruptedException
+    {
+        NuFlowHandler producer = new NuFlowHandler();
+        NuFlowHandler consumer = new NuFlowHandler();
+        producer.stdout().subscribe(consumer.stdin());
+        StringBuilder output = collect(consumer.stdout());
+
+        NuProcess counter = new NuProcessBuilder(consumer, "wc", "-c").start();
+        NuProcess source = new NuProcessBuilder(producer, "head", "-c", String.valueOf(TOTAL), "/dev/zero").start();
+
+        Assert.assertEquals("Exit code mismatch", 0, source.waitFor(20, TimeUnit.SECONDS));
+        Assert.assertEquals("Exit code mismatch", 0, counter.waitFor(20, TimeUnit.SECONDS));
+        Assert.assertEquals("Byte count mismatch", String.valueOf(TOTAL), output.toString().trim());
+    }
+
+    @Test
+    public void publisherToStdin() throws InterruptedException
+    {
+        final int items = 1000;
+        final int itemSize = 10000;
+        final AtomicLong maxOutstanding = new AtomicLong();
+        NuFlow.Publisher<ByteBuffer> publisher = new NuFlow.Publisher<ByteBuffer>() {
+            @Override
+            public void subscribe(final NuFlow.Subscriber<? super ByteBuffer> subscriber)
+            {
+                subscriber.onSubscribe(new NuFlow.Subscription() {
+                    private long sent;
+                    private long requested;
+
+                    @Override
+                    public synchronized void request(long n)
+                    {
+                        requested += n;
+                        maxOutstanding.set(Math.max(maxOutstanding.get(), requested - sent));
+                        while (sent < requested && sent < items) {
+                            sent++;
+                            subscriber.onNext(ByteBuffer.allocate(itemSize));
+                        }
+                        if (sent == items) {
+                            sent++;
+                            subscriber.onComplete();
+                        }
+                    }
+
+                    @Override
+                    public void cancel()
+                    {
+                    }
+                });
+            }
+        };
+
+        NuFlowHandler handler = new NuFlowHandler();
+        publisher.subscribe(handler.stdin());
+        StringBuilder output = collect(handler.stdout());
+
+        NuProcess process = new NuProcessBuilder(handler, "wc", "-c").start();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(20, TimeUnit.SECONDS));
+        Assert.assertEquals("Byte count mismatch", String.valueOf(items * itemSize), output.toString().trim());
+        Assert.assertEquals("Stdin should request one item at a time", 1, maxOutstanding.get());
+    }
+
+    private static StringBuilder collect(NuFlow.Publisher<ByteBuffer> publisher)
+    {
+        final StringBuilder output = new StringBuilder();
+        publisher.subscribe(new NuFlow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(NuFlow.Subscription subscription)
+            {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item)
+            {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                output.append(new String(bytes));
+            }
+
+            @Override
+            public void onError(Throwable throwable)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+        return output;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class NuProcessesTest
+{
+    @Test
+    public void waitForAnyAndAll() throws InterruptedException
+    {
+        List<NuProcess> processes = new ArrayList<NuProcess>();
+        processes.add(start("sleep 1; exit 1"));
+        processes.add(start("exit 2"));
+        processes.add(start("sleep 1; exit 3"));
+
+        NuProcess first = NuProcesses.waitForAny(processes, 5, TimeUnit.SECONDS);
+        Assert.assertSame("The quick process should exit first", processes.get(1), first);
+
+        Assert.assertNull("Should time out", NuProcesses.waitForAll(processes, 100, TimeUnit.MILLISECONDS));
+
+        List<ProcessResult> results = NuProcesses.waitForAll(processes, 10, TimeUnit.SECONDS);
+        Assert.assertNotNull("Should not time out", results);
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals("Results should be in collection order", i + 1, results.get(i).getExitCode());
+        }
+    }
+
+    @Test
+    public void manyProcesses() throws InterruptedException
+    {
+        List<NuProcess> processes = new ArrayList<NuProcess>();
+        for (int i = 0; i < 500; i++) {
+            processes.add(start("exit 0"));
+        }
+
+        List<ProcessResult> results = NuProcesses.waitForAll(processes, 60, TimeUnit.SECONDS);
+        Assert.assertNotNull("Should not time out", results);
+        Assert.assertEquals("Result count mismatch", processes.size(), results.size());
+    }
+
+    @Test
+    public void allOfNothing() throws InterruptedException
+    {
+        List<ProcessResult> results = NuProcesses.waitForAll(Collections.<NuProcess> emptyList(), 1, TimeUnit.SECONDS);
+        Assert.assertEquals("Should complete at once", 0, results.size());
+    }
+
+    @Test
+    public void callbacksRemoved() throws Exception
+    {
+        NuProcess running = start("exec sleep 10");
+        List<NuProcess> processes = Collections.singletonList(running);
+
+        // A scheduler polling a long-running process
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull("Should time out", NuProcesses.waitForAny(processes, 1, TimeUnit.MILLISECONDS));
+            Assert.assertNull("Should time out", NuProcesses.waitForAll(processes, 1, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertEquals("Timed out waits should remove their callbacks", 0, running.onExit().getCallbackCount());
+
+        List<NuProcess> both = new ArrayList<NuProcess>();
+        both.add(running);
+        both.add(start("exit 0"));
+        Assert.assertSame(both.get(1), NuProcesses.anyOf(both).get());
+        // The callbacks are removed on the thread that completed the group, after get() has returned
+        awaitNoCallbacks(running.onExit());
+        Assert.assertEquals("A completed group should remove its callbacks", 0, running.onExit().getCallbackCount());
+
+        NuFuture<List<ProcessResult>> all = NuProcesses.allOf(processes);
+        Assert.assertEquals(1, running.onExit().getCallbackCount());
+        all.cancel(false);
+        Assert.assertEquals("A cancelled group should remove its callbacks", 0, running.onExit().getCallbackCount());
+
+        running.destroy(true);
+        Assert.assertNotNull("Should exit", NuProcesses.waitForAny(processes, 5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitNoCallbacks(NuFuture<?> future) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (future.getCallbackCount() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static NuProcess start(String script)
+    {
+        return new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sh", "-c", script).start();
+    }
+}
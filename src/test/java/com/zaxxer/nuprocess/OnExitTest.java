@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class OnExitTest
+{
+    @Test
+    public void exitCodeAndTiming() throws Exception
+    {
+        long before = System.currentTimeMillis();
+        NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sh", "-c", "sleep 0.2; exit 3").start();
+        ProcessResult result = process.onExit().get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals("Exit code mismatch", 3, result.getExitCode());
+        Assert.assertFalse("Should not be signaled", result.isSignaled());
+        Assert.assertTrue("Start time mismatch", result.getStartTimeMillis() >= before);
+        Assert.assertTrue("Elapsed time too short", result.getElapsed(TimeUnit.MILLISECONDS) >= 200);
+        Assert.assertSame("Should be the same future", process.onExit(), process.onExit());
+        Assert.assertEquals("waitFor() should agree", 3, process.waitFor(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void exitShortlyAfterClosingPipes() throws Exception
+    {
+        // The pipes close well before the exit, which is then found by polling for it
+        final int count = 5;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sh", "-c", "exec 0<&- 1>&- 2>&-; sleep 0.02").start();
+            Assert.assertEquals("Exit code mismatch", 0, process.onExit().get(10, TimeUnit.SECONDS).getExitCode());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertTrue("Exits found too late: " + elapsed + "ms", elapsed < count * 150);
+    }
+
+    @Test
+    public void signal() throws Exception
+    {
+        NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sh", "-c", "kill -9 $$").start();
+        ProcessResult result = process.onExit().get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Should be signaled", result.isSignaled());
+        Assert.assertEquals("Signal mismatch", 9, result.getSignal());
+    }
+
+    @Test
+    public void callbacksWithoutWaitingThreads() throws InterruptedException
+    {
+        final int count = 200;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger onEventThread = new AtomicInteger();
+        final Thread testThread = Thread.currentThread();
+
+        for (int i = 0; i < count; i++) {
+            NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "sh", "-c", "exit " + (i % 7)).start();
+            final int expected = i % 7;
+            process.onExit().whenComplete(new NuFuture.Callback<ProcessResult>() {
+                @Override
+                public void onComplete(ProcessResult result, Throwable failure)
+                {
+                    if (failure != null || result.getExitCode() != expected) {
+                        failures.incrementAndGet();
+                    }
+                    if (Thread.currentThread() != testThread) {
+                        onEventThread.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue("Not all processes exited", latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Wrong results", 0, failures.get());
+        Assert.assertTrue("Callbacks should run on the event processors", onEventThread.get() > 0);
+    }
+
+    @Test
+    public void callbackAfterCompletion() throws Exception
+    {
+        NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "true").start();
+        process.onExit().get(10, TimeUnit.SECONDS);
+
+        final ProcessResult[] seen = new ProcessResult[1];
+        process.onExit().whenComplete(new NuFuture.Callback<ProcessResult>() {
+            @Override
+            public void onComplete(ProcessResult result, Throwable failure)
+            {
+                seen[0] = result;
+            }
+        });
+        Assert.assertNotNull("Callback should run right away", seen[0]);
+        Assert.assertEquals("Exit code mismatch", 0, seen[0].getExitCode());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class PipeCapacityTest
+{
+    @Test
+    public void largerStdoutPipe() throws InterruptedException
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+
+        final int total = 4 * 1024 * 1024;
+        final AtomicLong stdoutBytes = new AtomicLong();
+        final AtomicInteger largestRead = new AtomicInteger();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                if (stdoutBytes.get() == 0) {
+                    // Let the child fill the pipe while we are busy
+                    try {
+                        Thread.sleep(500);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                largestRead.set(Math.max(largestRead.get(), buffer.remaining()));
+                stdoutBytes.addAndGet(buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "head -c " + total + " /dev/zero");
+        pb.setPipeCapacities(0, 262144, 0);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout byte count mismatch", total, stdoutBytes.get());
+        Assert.assertTrue("Reads should exceed the default 64K pipe, largest was " + largestRead.get(),
+                          largestRead.get() > NuProcess.BUFFER_CAPACITY);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuAdmissionControl.Policy;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class PipelineTest
+{
+    @Test
+    public void threeStages() throws InterruptedException
+    {
+        NuProcessHandler producer = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStart(NuProcess nuProcess)
+            {
+                nuProcess.writeStdin(ByteBuffer.wrap("hello pipeline\n".getBytes()));
+            }
+        };
+
+        final StringBuilder result = new StringBuilder();
+        NuProcessHandler consumer = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                result.append(new String(bytes));
+            }
+        };
+
+        NuPipeline pipeline = new NuPipeline(new NuProcessBuilder(producer, "cat"),
+                                             new NuProcessBuilder(new NuAbstractProcessHandler() {}, "tr", "a-z", "A-Z"),
+                                             new NuProcessBuilder(consumer, "cat"));
+        List<NuProcess> processes = pipeline.start();
+        Assert.assertEquals("Wrong number of stages", 3, processes.size());
+
+        // Closing the first stdin ends the whole pipeline
+        Thread.sleep(500);
+        processes.get(0).closeStdin();
+
+        for (NuProcess process : processes)
+        {
+            Assert.assertNotNull("Stage failed to start", process);
+            Assert.assertEquals("Stage exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        }
+
+        Assert.assertEquals("Pipeline output mismatch", "HELLO PIPELINE\n", result.toString());
+    }
+
+    @Test
+    public void stageExitCodes() throws InterruptedException
+    {
+        NuProcessBuilder first = new NuProcessBuilder(new NuAbstractProcessHandler() {}, "sh", "-c", "echo data; exit 3");
+        NuProcessBuilder last = new NuProcessBuilder(new NuAbstractProcessHandler() {}, "cat");
+
+        List<NuProcess> processes = new NuPipeline(first, last).start();
+
+        Assert.assertEquals("First stage exit code mismatch", 3, processes.get(0).waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Last stage exit code mismatch", 0, processes.get(1).waitFor(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalidStageSpawnsNothing()
+    {
+        final AtomicBoolean spawned = new AtomicBoolean();
+        NuProcessBuilder first = new NuProcessBuilder(new NuAbstractProcessHandler() {
+            @Override
+            public void onPreStart(NuProcess nuProcess)
+            {
+                spawned.set(true);
+            }
+        }, "echo", "data");
+        NuProcessBuilder last = new NuProcessBuilder("cat"); // no handler
+
+        try {
+            new NuPipeline(first, last).start();
+            Assert.fail("A stage without a handler should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertFalse("No stage should be spawned", spawned.get());
+        }
+    }
+
+    @Test
+    public void rejectedStageGivesUpTheRest() throws InterruptedException
+    {
+        int descriptorBudget = NuAdmissionControl.getDescriptorBudget();
+        int processBudget = NuAdmissionControl.getProcessBudget();
+        NuAdmissionControl.setBudgets(descriptorBudget, NuAdmissionControl.getProcessesInUse() + 1);
+        NuAdmissionControl.setPolicy(Policy.REJECT);
+        try {
+            final AtomicInteger preStarts = new AtomicInteger();
+            final AtomicInteger failures = new AtomicInteger();
+            NuProcessHandler handler = new NuAbstractProcessHandler() {
+                @Override
+                public void onPreStart(NuProcess nuProcess)
+                {
+                    preStarts.incrementAndGet();
+                }
+
+                @Override
+                public void onExit(int statusCode)
+                {
+                    if (statusCode == Integer.MIN_VALUE) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+
+            NuPipeline pipeline = new NuPipeline(new NuProcessBuilder(new NuAbstractProcessHandler() {}, "sleep", "10"),
+                                                 new NuProcessBuilder(handler, "cat"),
+                                                 new NuProcessBuilder(handler, "cat"));
+            List<NuProcess> processes = pipeline.start();
+
+            Assert.assertEquals("Wrong number of stages", 3, processes.size());
+            Assert.assertNotNull("First stage should be running", processes.get(0));
+            Assert.assertNull("Rejected stage", processes.get(1));
+            Assert.assertNull("Stage after the rejected one", processes.get(2));
+            Assert.assertEquals("Every given up stage should see onPreStart", 2, preStarts.get());
+            Assert.assertEquals("Every given up stage should see onExit", 2, failures.get());
+
+            processes.get(0).destroy(true);
+            Assert.assertNotEquals(Integer.MIN_VALUE, processes.get(0).waitFor(5, TimeUnit.SECONDS));
+        }
+        finally {
+            NuAdmissionControl.setPolicy(Policy.NONE);
+            NuAdmissionControl.setBudgets(descriptorBudget, processBudget);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuProcessPool.Worker;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class ProcessPoolTest
+{
+    @Test
+    public void checkoutAndCall() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("cat"), 2, 4);
+        pool.warmUp();
+        Assert.assertEquals(2, pool.getIdleCount());
+
+        Worker worker = pool.checkout(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("request " + i, worker.call("request " + i, 5, TimeUnit.SECONDS));
+        }
+        pool.checkin(worker);
+
+        Assert.assertEquals(2, pool.getIdleCount());
+        Assert.assertSame("The most recently used worker should be reused", worker, pool.checkout(5, TimeUnit.SECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void recycleAfterJobs() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("cat"), 1, 1);
+        pool.setMaxJobsPerWorker(2);
+
+        Worker first = pool.checkout(5, TimeUnit.SECONDS);
+        first.call("a", 5, TimeUnit.SECONDS);
+        first.call("b", 5, TimeUnit.SECONDS);
+        pool.checkin(first);
+        Assert.assertEquals("Retired worker should exit at EOF", 0, first.getProcess().waitFor(5, TimeUnit.SECONDS));
+
+        Worker second = pool.checkout(5, TimeUnit.SECONDS);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("c", second.call("c", 5, TimeUnit.SECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void crashedWorkerReplaced() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("cat"), 1, 1);
+        pool.warmUp();
+
+        Worker worker = pool.checkout(5, TimeUnit.SECONDS);
+        worker.getProcess().destroy(true);
+        worker.getProcess().waitFor(5, TimeUnit.SECONDS);
+        pool.checkin(worker);
+
+        Worker replacement = pool.checkout(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(replacement);
+        Assert.assertNotSame(worker, replacement);
+        Assert.assertEquals("alive", replacement.call("alive", 5, TimeUnit.SECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void maximumSize() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("cat"), 0, 1);
+        Worker worker = pool.checkout(5, TimeUnit.SECONDS);
+        Assert.assertNull("The pool is exhausted", pool.checkout(100, TimeUnit.MILLISECONDS));
+        pool.checkin(worker);
+        Assert.assertSame(worker, pool.checkout(100, TimeUnit.MILLISECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void healthCheck() throws Exception
+    {
+        final AtomicInteger checks = new AtomicInteger();
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("cat"), 1, 1);
+        pool.setHealthCheck(new NuProcessPool.HealthCheck() {
+            @Override
+            public boolean isHealthy(Worker worker)
+            {
+                checks.incrementAndGet();
+                // Unhealthy the first time, so that the worker is replaced
+                return checks.get() > 1;
+            }
+        });
+        pool.warmUp();
+
+        Thread.sleep(NuProcessPool.ALIVE_BYPASS_WINDOW_MS + 100);
+        Worker worker = pool.checkout(5, TimeUnit.SECONDS);
+        Assert.assertEquals("ok", worker.call("ok", 5, TimeUnit.SECONDS));
+        Assert.assertTrue("Idle worker should have been checked", checks.get() >= 1);
+        pool.close();
+    }
+
+    @Test
+    public void launchFailureNotReplaced() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("/nonexistent/x"), 1, 1);
+        try {
+            pool.warmUp();
+            Assert.fail("warmUp should fail when the workers cannot be launched");
+        }
+        catch (NuSpawnException e) {
+            // expected
+        }
+
+        Thread.sleep(200);
+        Assert.assertEquals("Failed launches should not be retried in the background", 0, pool.getSize());
+        pool.close();
+    }
+
+    @Test
+    public void silentExitNotReplaced() throws Exception
+    {
+        NuProcessPool pool = new NuProcessPool(new NuProcessBuilder("false"), 1, 1);
+        pool.warmUp();
+
+        Thread.sleep(500);
+        Assert.assertEquals("Workers that exit without answering should not be replaced", 0, pool.getSize());
+        pool.close();
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class RedirectTest
+{
+    @Test
+    public void redirectErrorStream() throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+        final AtomicInteger stderrBytes = new AtomicInteger();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+
+            @Override
+            public void onStderr(ByteBuffer buffer, boolean closed)
+            {
+                stderrBytes.addAndGet(buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "echo one; echo two 1>&2; echo three");
+        pb.redirectErrorStream(true);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Merged output mismatch", "one\ntwo\nthree\n", stdout.toString());
+        Assert.assertEquals("Nothing should arrive on stderr", 0, stderrBytes.get());
+    }
+
+    @Test
+    public void closeFds() throws InterruptedException, IOException
+    {
+        Assume.assumeTrue(new File("/proc/self/fd").isDirectory());
+
+        // An fd the JVM has open, which the child would otherwise inherit
+        FileInputStream extra = new FileInputStream("pom.xml");
+        try {
+            Assert.assertEquals("Open fds mismatch", "0 1 2", childFds(true));
+            Assert.assertNotEquals("Inherited fds expected without closeFds", "0 1 2", childFds(false));
+        }
+        finally {
+            extra.close();
+        }
+    }
+
+    private static String childFds(boolean closeFds) throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "ls /proc/$$/fd; true");
+        pb.setCloseFds(closeFds);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        return stdout.toString().trim().replaceAll("\\s+", " ");
+    }
+
+    @Test
+    public void directory() throws InterruptedException, IOException
+    {
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        };
+
+        File directory = new File("src/test").getCanonicalFile();
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "pwd");
+        pb.directory(directory);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Working directory mismatch", directory.getPath(), stdout.toString().trim());
+    }
+
+    @Test
+    public void noPipes() throws InterruptedException
+    {
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                callbacks.incrementAndGet();
+            }
+
+            @Override
+            public void onStderr(ByteBuffer buffer, boolean closed)
+            {
+                callbacks.incrementAndGet();
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "echo out; echo err 1>&2; exit 7");
+        pb.redirectInput(NuProcessBuilder.Redirect.DISCARD)
+          .redirectOutput(NuProcessBuilder.Redirect.DISCARD)
+          .redirectError(NuProcessBuilder.Redirect.DISCARD);
+        NuProcess process = pb.start();
+
+        // Only the exit is tracked, there is no stream to deliver anything on
+        Assert.assertEquals("Exit code mismatch", 7, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("No stream callbacks expected", 0, callbacks.get());
+    }
+
+    @Test
+    public void discardStdin() throws InterruptedException
+    {
+        final AtomicInteger stdoutBytes = new AtomicInteger();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdoutBytes.addAndGet(buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        };
+
+        // cat sees EOF right away instead of waiting for closeStdin()
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "cat");
+        pb.redirectInput(NuProcessBuilder.Redirect.DISCARD);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Nothing should be read from /dev/null", 0, stdoutBytes.get());
+    }
+
+    @Test
+    public void inheritFileDescriptor() throws InterruptedException, IOException
+    {
+        File file = File.createTempFile("nuprocess", ".txt");
+        file.deleteOnExit();
+
+        FileOutputStream os = new FileOutputStream(file);
+        NuProcessBuilder pb = new NuProcessBuilder(new NuAbstractProcessHandler() {}, "sh", "-c", "echo direct");
+        pb.inheritFd(1, os.getFD());
+        NuProcess process = pb.start();
+        os.close();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            Assert.assertEquals("File length mismatch", bytes.length, is.read(bytes));
+        }
+        finally {
+            is.close();
+        }
+        Assert.assertEquals("File content mismatch", "direct\n", new String(bytes));
+    }
+
+    @Test
+    public void inheritChannel() throws InterruptedException, IOException
+    {
+        Pipe pipe = Pipe.open();
+
+        NuProcessBuilder pb = new NuProcessBuilder(new NuAbstractProcessHandler() {}, "sh", "-c", "echo through-pipe >&5");
+        pb.inheritFd(5, pipe.sink());
+        NuProcess process = pb.start();
+        // The child holds its own copy, so the source sees EOF when it exits
+        pipe.sink().close();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (pipe.source().read(buffer) != -1) {
+            // read to EOF
+        }
+        pipe.source().close();
+        buffer.flip();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Assert.assertEquals("Pipe content mismatch", "through-pipe\n", new String(bytes));
+    }
+
+    @Test
+    public void sharedInput() throws InterruptedException, IOException
+    {
+        final int size = 1024 * 1024;
+        NuSharedInput input = NuSharedInput.create(ByteBuffer.allocate(size));
+
+        List<NuProcess> processes = new ArrayList<NuProcess>();
+        final List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                final StringBuilder stdout = new StringBuilder();
+                outputs.add(stdout);
+
+                NuProcessHandler processListener = new NuAbstractProcessHandler()
+                {
+                    @Override
+                    public void onStdout(ByteBuffer buffer, boolean closed)
+                    {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        stdout.append(new String(bytes));
+                    }
+                };
+
+                NuProcessBuilder pb = new NuProcessBuilder(processListener, "wc", "-c");
+                pb.redirectInput(input);
+                Assert.assertEquals(NuProcessBuilder.Redirect.FILE, pb.redirectInput());
+                processes.add(pb.start());
+            }
+        }
+        finally {
+            input.close();
+        }
+
+        // Each child reads the whole content through its own file offset
+        for (int i = 0; i < processes.size(); i++) {
+            Assert.assertEquals("Exit code mismatch", 0, processes.get(i).waitFor(5, TimeUnit.SECONDS));
+            Assert.assertEquals("Byte count mismatch", String.valueOf(size), outputs.get(i).toString().trim());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedSharedInput() throws IOException
+    {
+        NuSharedInput input = NuSharedInput.create(ByteBuffer.wrap("data".getBytes()));
+        NuProcessBuilder pb = new NuProcessBuilder(new NuAbstractProcessHandler() {}, "cat");
+        pb.redirectInput(input);
+        input.close();
+        pb.start();
+    }
+
+    @Test
+    public void fileStdin() throws InterruptedException, IOException
+    {
+        File file = File.createTempFile("nuprocess", ".txt");
+        file.deleteOnExit();
+        FileOutputStream os = new FileOutputStream(file);
+        os.write("from a file\n".getBytes());
+        os.close();
+
+        final StringBuilder stdout = new StringBuilder();
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "cat");
+        pb.redirectInput(file);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout mismatch", "from a file\n", stdout.toString());
+        file.delete();
+    }
+}
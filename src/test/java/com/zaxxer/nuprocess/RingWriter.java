@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import sun.misc.Unsafe;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.zaxxer.nuprocess.internal.LibC;
+
+/**
+ * The child of {@link SharedMemoryTest}, which writes a test pattern to a shared memory channel as
+ * described by {@link NuProcessBuilder#addSharedMemoryChannel(int, int)}.
+ * <p>
+ * Arguments: the descriptor of the memfd, the number of bytes to write, and {@code close} to set the
+ * closed flag at the end or {@code exit} to just exit.
+ *
+ * @author Brett Wooldridge
+ */
+@SuppressWarnings("restriction")
+public class RingWriter
+{
+    public static void main(String[] args) throws Exception
+    {
+        int fd = Integer.parseInt(args[0]);
+        long total = Long.parseLong(args[1]);
+
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        Unsafe unsafe = (Unsafe) field.get(null);
+
+        Pointer header = LibC.mmap(null, 4096, LibC.PROT_READ, LibC.MAP_SHARED, fd, 0);
+        int capacity = header.getInt(4);
+        LibC.munmap(header, 4096);
+
+        long address = Pointer.nativeValue(LibC.mmap(null, 4096 + capacity, LibC.PROT_READ | LibC.PROT_WRITE, LibC.MAP_SHARED, fd, 0));
+        Memory counter = new Memory(8);
+        Memory pollfd = new Memory(8);
+        pollfd.setInt(0, fd + 2);
+        pollfd.setShort(4, LibC.POLLIN);
+
+        Random random = new Random();
+        long head = 0;
+        while (head < total) {
+            long free = capacity - (head - unsafe.getLongVolatile(null, address + 128));
+            if (free == 0) {
+                LibC.poll(pollfd, 1, -1);
+                LibC.read(fd + 2, counter, 8);
+                continue;
+            }
+
+            int length = (int) Math.min(Math.min(free, total - head), 1 + random.nextInt(10000));
+            for (long n = head; n < head + length; n++) {
+                unsafe.putByte(address + 4096 + (n & (capacity - 1)), (byte) (n % 251));
+            }
+            head += length;
+            unsafe.putOrderedLong(null, address + 64, head);
+
+            counter.setLong(0, 1);
+            LibC.write(fd + 1, counter, 8);
+        }
+
+        if ("close".equals(args[2])) {
+            unsafe.putIntVolatile(null, address + 192, 1);
+            counter.setLong(0, 1);
+            LibC.write(fd + 1, counter, 8);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuRpcHandler.Framing;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class RpcTest
+{
+    @Test
+    public void pipelinedLines() throws Exception
+    {
+        NuRpcHandler rpc = new NuRpcHandler(Framing.LINE, 64);
+        NuProcess process = new NuProcessBuilder(rpc, "cat").start();
+
+        List<NuFuture<byte[]>> futures = new ArrayList<NuFuture<byte[]>>();
+        for (int i = 0; i < 10000; i++) {
+            futures.add(rpc.send(("request " + i).getBytes()));
+            Assert.assertTrue("In-flight bound exceeded", rpc.getInFlightCount() <= 64);
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertEquals("request " + i, new String(futures.get(i).get(5, TimeUnit.SECONDS)));
+        }
+
+        rpc.shutdown();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void outOfOrderResponses() throws Exception
+    {
+        NuRpcHandler rpc = new NuRpcHandler(Framing.LINE, 10);
+        NuProcess process = new NuProcessBuilder(rpc, "tac").start();
+
+        List<NuFuture<byte[]>> futures = new ArrayList<NuFuture<byte[]>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(rpc.send(String.valueOf(i).getBytes()));
+        }
+        Assert.assertNull("No slot should be free", rpc.send("11".getBytes(), 100, TimeUnit.MILLISECONDS));
+
+        // tac answers in reverse order, once stdin is closed
+        rpc.shutdown();
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertEquals(String.valueOf(i), new String(futures.get(i).get(5, TimeUnit.SECONDS)));
+        }
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void largeFrames() throws Exception
+    {
+        NuRpcHandler rpc = new NuRpcHandler(Framing.LENGTH_PREFIXED, 8);
+        NuProcess process = new NuProcessBuilder(rpc, "cat").start();
+
+        Random random = new Random(42);
+        List<byte[]> requests = new ArrayList<byte[]>();
+        List<NuFuture<byte[]>> futures = new ArrayList<NuFuture<byte[]>>();
+        for (int i = 0; i < 50; i++) {
+            byte[] payload = new byte[random.nextInt(200000)];
+            random.nextBytes(payload);
+            requests.add(payload);
+            futures.add(rpc.send(payload));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertTrue("Payload mismatch at " + i, Arrays.equals(requests.get(i), futures.get(i).get(5, TimeUnit.SECONDS)));
+        }
+
+        rpc.shutdown();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void exitFailsOutstanding() throws Exception
+    {
+        NuRpcHandler rpc = new NuRpcHandler(Framing.LINE, 4);
+        NuProcess process = new NuProcessBuilder(rpc, "sh", "-c", "read line; exit 3").start();
+
+        NuFuture<byte[]> future = rpc.send("lost".getBytes());
+        Assert.assertEquals("Exit code mismatch", 3, process.waitFor(5, TimeUnit.SECONDS));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("The request should have failed");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(0, rpc.getInFlightCount());
+    }
+
+    @Test
+    public void negativeFrameLength() throws Exception
+    {
+        assertProtocolError(new NuRpcHandler(Framing.LENGTH_PREFIXED, 4), "\\000\\000\\000\\001\\377\\377\\377\\377");
+    }
+
+    @Test
+    public void oversizedFrameLength() throws Exception
+    {
+        assertProtocolError(new NuRpcHandler(Framing.LENGTH_PREFIXED, 4, 1024), "\\000\\000\\000\\001\\000\\000\\020\\000");
+    }
+
+    @Test
+    public void linePayloadWithNewline() throws Exception
+    {
+        NuRpcHandler rpc = new NuRpcHandler(Framing.LINE, 1);
+        NuProcess process = new NuProcessBuilder(rpc, "cat").start();
+
+        try {
+            rpc.send("two\nlines".getBytes());
+            Assert.fail("A payload with a newline should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // The rejected request took no slot and wrote nothing
+        Assert.assertEquals("one line", new String(rpc.send("one line".getBytes()).get(5, TimeUnit.SECONDS)));
+
+        rpc.shutdown();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+    }
+
+    private void assertProtocolError(NuRpcHandler rpc, String header) throws Exception
+    {
+        // The process writes a bad header, then waits for stdin to be closed
+        NuProcess process = new NuProcessBuilder(rpc, "sh", "-c", "printf '" + header + "'; cat >/dev/null").start();
+
+        NuFuture<byte[]> future = rpc.send("request".getBytes());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("The request should have failed");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Protocol error"));
+        }
+
+        Assert.assertEquals("Stdin should have been closed", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, rpc.getInFlightCount());
+        try {
+            rpc.send("late".getBytes()).get(5, TimeUnit.SECONDS);
+            Assert.fail("A later request should fail");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class SharedMemoryTest
+{
+    @Before
+    public void setup()
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+    }
+
+    @Test
+    public void smallRing() throws InterruptedException
+    {
+        // Many times the capacity, so the child keeps waiting for space and the ring keeps wrapping
+        checkPattern(4096, 2 * 1024 * 1024, "close");
+    }
+
+    @Test
+    public void endsAtExit() throws InterruptedException
+    {
+        checkPattern(65536, 1024 * 1024, "exit");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresChannelHandler()
+    {
+        NuProcessBuilder pb = new NuProcessBuilder(new NuProcessHandler() {
+            public void onPreStart(NuProcess nuProcess) { }
+            public void onStart(NuProcess nuProcess) { }
+            public void onExit(int exitCode) { }
+            public void onStdout(ByteBuffer buffer, boolean closed) { }
+            public void onStderr(ByteBuffer buffer, boolean closed) { }
+            public boolean onStdinReady(ByteBuffer buffer) { return false; }
+        }, "true");
+        pb.addSharedMemoryChannel(3, 4096);
+        pb.start();
+    }
+
+    private static void checkPattern(int capacity, final long total, String end) throws InterruptedException
+    {
+        final long[] received = new long[1];
+        final int[] mismatches = new int[1];
+        final int[] closes = new int[1];
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onChannel(int fd, ByteBuffer buffer, boolean closed)
+            {
+                Assert.assertEquals(3, fd);
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() != (byte) (received[0] % 251)) {
+                        mismatches[0]++;
+                    }
+                    received[0]++;
+                }
+
+                if (closed) {
+                    closes[0]++;
+                }
+            }
+        };
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, java, "-cp", System.getProperty("java.class.path"),
+                                                   RingWriter.class.getName(), "3", String.valueOf(total), end);
+        pb.addSharedMemoryChannel(3, capacity);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Byte count mismatch", total, received[0]);
+        Assert.assertEquals("Corrupt bytes", 0, mismatches[0]);
+        Assert.assertEquals("The end of the stream should be delivered once", 1, closes[0]);
+    }
+}
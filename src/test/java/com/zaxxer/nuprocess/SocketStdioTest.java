@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zaxxer.nuprocess;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuProcessBuilder.StdioTransport;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class SocketStdioTest
+{
+    @Test
+    public void streamSocket() throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            private NuProcess nuProcess;
+
+            @Override
+            public void onStart(NuProcess nuProcess)
+            {
+                this.nuProcess = nuProcess;
+                nuProcess.writeStdin(ByteBuffer.wrap("hello\n".getBytes()));
+            }
+
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdout.append(asString(buffer));
+                if (stdout.length() == 6) {
+                    // cat only exits once it reads EOF through the shared socket
+                    nuProcess.closeStdin();
+                }
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "cat");
+        pb.setStdioTransport(StdioTransport.STREAM_SOCKET);
+        Assert.assertEquals(StdioTransport.STREAM_SOCKET, pb.getStdioTransport());
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout mismatch", "hello\n", stdout.toString());
+    }
+
+    @Test
+    public void childSharesOneSocket() throws InterruptedException
+    {
+        Assume.assumeTrue(new File("/proc/self/fd").isDirectory());
+
+        final StringBuilder stdout = new StringBuilder();
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                stdout.append(asString(buffer));
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "sh", "-c", "readlink /proc/$$/fd/0 /proc/$$/fd/1");
+        pb.setStdioTransport(StdioTransport.STREAM_SOCKET);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        String[] links = stdout.toString().trim().split("\n");
+        Assert.assertEquals("Expected two links", 2, links.length);
+        Assert.assertTrue("Not a socket: " + links[0], links[0].startsWith("socket:"));
+        Assert.assertEquals("Stdin and stdout should be the same socket", links[0], links[1]);
+    }
+
+    @Test
+    public void seqpacketBoundaries() throws InterruptedException
+    {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            private NuProcess nuProcess;
+
+            @Override
+            public void onStart(NuProcess nuProcess)
+            {
+                this.nuProcess = nuProcess;
+                nuProcess.writeStdin(ByteBuffer.wrap("a".getBytes()));
+                nuProcess.writeStdin(ByteBuffer.wrap("bb".getBytes()));
+                nuProcess.writeStdin(ByteBuffer.wrap("ccc".getBytes()));
+            }
+
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                if (buffer.hasRemaining()) {
+                    messages.add(asString(buffer));
+                }
+                if (messages.size() == 3) {
+                    nuProcess.closeStdin();
+                }
+            }
+        };
+
+        // cat reads and writes one message at a time
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "cat");
+        pb.setStdioTransport(StdioTransport.SEQPACKET_SOCKET);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Message boundaries not preserved", Arrays.asList("a", "bb", "ccc"), messages);
+    }
+
+    @Test
+    public void smallSocketBuffers() throws InterruptedException
+    {
+        final AtomicLong stdoutBytes = new AtomicLong();
+        final int total = 1024 * 1024;
+
+        NuProcessHandler processListener = new NuAbstractProcessHandler()
+        {
+            private NuProcess nuProcess;
+
+            @Override
+            public void onStart(NuProcess nuProcess)
+            {
+                this.nuProcess = nuProcess;
+                nuProcess.writeStdin(ByteBuffer.allocate(total));
+            }
+
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                if (stdoutBytes.addAndGet(buffer.remaining()) == total) {
+                    nuProcess.closeStdin();
+                }
+                buffer.position(buffer.limit());
+            }
+        };
+
+        NuProcessBuilder pb = new NuProcessBuilder(processListener, "cat");
+        pb.setStdioTransport(StdioTransport.STREAM_SOCKET);
+        pb.setSocketBufferSizes(4096, 4096);
+        NuProcess process = pb.start();
+
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Stdout byte count mismatch", total, stdoutBytes.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresPipedStdio()
+    {
+        NuProcessBuilder pb = new NuProcessBuilder(new NuAbstractProcessHandler() { }, "cat");
+        pb.setStdioTransport(StdioTransport.STREAM_SOCKET);
+        pb.redirectInput(NuProcessBuilder.Redirect.DISCARD);
+        pb.start();
+    }
+
+    private static String asString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
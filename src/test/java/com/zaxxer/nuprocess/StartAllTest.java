@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class StartAllTest
+{
+    @Test
+    public void identicalProcesses() throws InterruptedException
+    {
+        final AtomicInteger bytes = new AtomicInteger();
+        NuProcessHandler handler = new NuAbstractProcessHandler() {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                bytes.addAndGet(buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        };
+
+        List<NuProcess> processes = new NuProcessBuilder(handler, "echo", "hi").startAll(50);
+        Assert.assertEquals(50, processes.size());
+        for (NuProcess process : processes) {
+            Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals("Output size mismatch", 50 * 3, bytes.get());
+    }
+
+    @Test
+    public void argumentsAndHandlers() throws InterruptedException
+    {
+        List<List<String>> arguments = new ArrayList<List<String>>();
+        List<NuProcessHandler> handlers = new ArrayList<NuProcessHandler>();
+        List<StringBuilder> outputs = new ArrayList<StringBuilder>();
+        for (int i = 0; i < 20; i++) {
+            arguments.add(Arrays.asList("shard", String.valueOf(i)));
+            StringBuilder output = new StringBuilder();
+            outputs.add(output);
+            handlers.add(collector(output));
+        }
+
+        List<NuProcess> processes = new NuProcessBuilder("echo").startAll(arguments, handlers);
+        for (int i = 0; i < processes.size(); i++) {
+            Assert.assertEquals("Exit code mismatch", 0, processes.get(i).waitFor(10, TimeUnit.SECONDS));
+            Assert.assertEquals("shard " + i + "\n", outputs.get(i).toString());
+        }
+    }
+
+    @Test
+    public void launchFailure() throws InterruptedException
+    {
+        final List<Integer> exitCodes = new CopyOnWriteArrayList<Integer>();
+        List<NuProcessHandler> handlers = new ArrayList<NuProcessHandler>();
+        for (int i = 0; i < 3; i++) {
+            handlers.add(new NuAbstractProcessHandler() {
+                @Override
+                public void onExit(int statusCode)
+                {
+                    exitCodes.add(statusCode);
+                }
+            });
+        }
+
+        List<String> none = Collections.emptyList();
+        try {
+            new NuProcessBuilder("/nonexistent/command").startAll(Collections.nCopies(3, none), handlers);
+            Assert.fail("startAll() should throw for a missing executable");
+        }
+        catch (NuSpawnException e) {
+            Assert.assertEquals("errno mismatch", 2, e.getErrno()); // ENOENT
+        }
+        Assert.assertEquals("Every process should be reported", Arrays.asList(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE), exitCodes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void handlerCountMismatch()
+    {
+        List<String> none = Collections.emptyList();
+        new NuProcessBuilder("echo").startAll(Collections.nCopies(2, none), Collections.singletonList(collector(new StringBuilder())));
+    }
+
+    private static NuProcessHandler collector(final StringBuilder output)
+    {
+        return new NuAbstractProcessHandler() {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.append(new String(bytes));
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Adler32;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class StreamTest
+{
+    private static final int TOTAL = 8 * 1024 * 1024;
+
+    @Test
+    public void catRoundTrip() throws Exception
+    {
+        NuStreamHandler handler = new NuStreamHandler();
+        NuProcess process = new NuProcessBuilder(handler, "cat").start();
+
+        final OutputStream stdin = handler.getOutputStream();
+        final Adler32 written = new Adler32();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    byte[] bytes = new byte[10000];
+                    for (int total = 0; total < TOTAL; total += bytes.length) {
+                        for (int i = 0; i < bytes.length; i++) {
+                            bytes[i] = (byte) (total + i);
+                        }
+                        int length = Math.min(bytes.length, TOTAL - total);
+                        written.update(bytes, 0, length);
+                        stdin.write(bytes, 0, length);
+                    }
+                    stdin.close();
+                }
+                catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+
+        Adler32 read = new Adler32();
+        long count = 0;
+        InputStream stdout = handler.getInputStream();
+        byte[] buffer = new byte[7000];
+        int n;
+        while ((n = stdout.read(buffer)) != -1) {
+            read.update(buffer, 0, n);
+            count += n;
+        }
+        writer.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals("Byte count mismatch", TOTAL, count);
+        Assert.assertEquals("Adler32 mismatch between written and read", written.getValue(), read.getValue());
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void boundedOutput() throws Exception
+    {
+        NuStreamHandler handler = new NuStreamHandler();
+        NuProcess process = new NuProcessBuilder(handler, "head", "-c", String.valueOf(TOTAL), "/dev/zero").start();
+
+        InputStream stdout = handler.getInputStream();
+        Assert.assertEquals(0, stdout.read());
+
+        // Nothing drains the pipe while the stream is full, so the child stays blocked
+        Thread.sleep(500);
+        Assert.assertTrue("Process should wait for the reader", process.isRunning());
+
+        long count = 1;
+        byte[] buffer = new byte[100000];
+        int n;
+        while ((n = stdout.read(buffer)) != -1) {
+            count += n;
+        }
+
+        Assert.assertEquals("Byte count mismatch", TOTAL, count);
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void errorStream() throws Exception
+    {
+        NuStreamHandler handler = new NuStreamHandler();
+        NuProcess process = new NuProcessBuilder(handler, "sh", "-c", "echo oops >&2").start();
+
+        StringBuilder stderr = new StringBuilder();
+        InputStream stream = handler.getErrorStream();
+        int b;
+        while ((b = stream.read()) != -1) {
+            stderr.append((char) b);
+        }
+
+        Assert.assertEquals("oops\n", stderr.toString());
+        Assert.assertEquals(-1, handler.getInputStream().read());
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterExit() throws Exception
+    {
+        NuStreamHandler handler = new NuStreamHandler();
+        NuProcess process = new NuProcessBuilder(handler, "true").start();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(10, TimeUnit.SECONDS));
+
+        handler.getOutputStream().write(new byte[100]);
+        handler.getOutputStream().flush();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 Brett Wooldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zaxxer.nuprocess.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.zaxxer.nuprocess.NuAbstractProcessHandler;
+import com.zaxxer.nuprocess.NuProcess;
+import com.zaxxer.nuprocess.NuProcessBuilder;
+import com.zaxxer.nuprocess.RunOnlyOnUnix;
+
+/**
+ * @author Brett Wooldridge
+ */
+@RunWith(value=RunOnlyOnUnix.class)
+public class ExecutableCacheTest
+{
+    private static final long TTL = 5000;
+
+    private File root;
+    private ExecutableCache cache;
+
+    @Before
+    public void setup() throws IOException
+    {
+        root = File.createTempFile("nuprocess", ".path");
+        root.delete();
+        root.mkdir();
+    }
+
+    @After
+    public void teardown()
+    {
+        if (cache != null) {
+            cache.clear();
+        }
+        delete(root);
+    }
+
+    @Test
+    public void hitWithinTtl() throws IOException
+    {
+        cache = new ExecutableCache(TTL, false);
+        File a = dir("a");
+        File b = dir("b");
+        String path = a + ":" + b;
+        script(b, "cmd");
+
+        Assert.assertEquals(b + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1000));
+
+        // Found earlier in the path now, but the cached entry is still fresh
+        script(a, "cmd");
+        Assert.assertEquals("Should be a cache hit", b + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1000 + TTL - 1));
+        Assert.assertEquals("Should have expired", a + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1000 + TTL));
+    }
+
+    @Test
+    public void zeroTtlDisablesCache() throws IOException
+    {
+        cache = new ExecutableCache(0, false);
+        File a = dir("a");
+        script(a, "cmd");
+
+        Assert.assertNull(cache.resolve("cmd", a.getPath(), new SpawnOptions(), 1000));
+    }
+
+    @Test
+    public void modificationInvalidates() throws IOException
+    {
+        cache = new ExecutableCache(TTL, false);
+        File a = dir("a");
+        File b = dir("b");
+        String path = a + ":" + b;
+        File stale = script(a, "cmd");
+        script(b, "cmd");
+
+        Assert.assertEquals(a + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1000));
+
+        stale.setExecutable(false);
+        stale.setLastModified(stale.lastModified() - 10000);
+        Assert.assertEquals("Should have been looked up again", b + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1001));
+
+        new File(b, "cmd").delete();
+        Assert.assertNull("Should have been looked up again", cache.resolve("cmd", path, new SpawnOptions(), 1002));
+    }
+
+    @Test
+    public void skipsWhatPosixSpawnpSkips() throws IOException
+    {
+        cache = new ExecutableCache(TTL, false);
+        File a = dir("a");
+        File b = dir("b");
+        File c = dir("c");
+        String path = a + ":" + b + ":" + c;
+        script(a, "cmd").setExecutable(false);
+        new File(b, "cmd").mkdir();
+        script(c, "cmd");
+
+        Assert.assertEquals(c + "/cmd", cache.resolve("cmd", path, new SpawnOptions(), 1000));
+        Assert.assertNull("Not found", cache.resolve("missing", path, new SpawnOptions(), 1000));
+        Assert.assertNull("Paths are not searched", cache.resolve("c/cmd", root.getPath(), new SpawnOptions(), 1000));
+    }
+
+    @Test
+    public void matchesPosixSpawnp() throws InterruptedException
+    {
+        String path = System.getenv("PATH");
+        Assume.assumeNotNull(path);
+        cache = new ExecutableCache(TTL, false);
+
+        for (String command : new String[] { "cat", "sh", "ls" }) {
+            String resolved = cache.resolve(command, path, new SpawnOptions(), System.currentTimeMillis());
+            Assume.assumeNotNull(resolved);
+            Assert.assertEquals("Resolution of " + command, commandV(command), resolved);
+        }
+    }
+
+    @Test
+    public void emptyOrRelativeEntry() throws IOException
+    {
+        cache = new ExecutableCache(TTL, false);
+        File a = dir("a");
+        script(a, "cmd");
+
+        Assert.assertNull("Empty entry", cache.resolve("cmd", ":" + a, new SpawnOptions(), 1000));
+        Assert.assertNull("Relative entry", cache.resolve("cmd", "bin:" + a, new SpawnOptions(), 1000));
+        Assert.assertNull("Empty entry before a miss", cache.resolve("cmd", root + "::" + a, new SpawnOptions(), 1000));
+        Assert.assertEquals("Empty entry after a hit", a + "/cmd", cache.resolve("cmd", a + "::", new SpawnOptions(), 1000));
+    }
+
+    @Test
+    public void descriptorPath() throws InterruptedException, IOException
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+        String dir = binDir("echo");
+        cache = new ExecutableCache(TTL, true);
+
+        String resolved = cache.resolve("echo", dir, new SpawnOptions(), System.currentTimeMillis());
+        Assert.assertTrue("Should be executed through a descriptor: " + resolved, resolved.startsWith("/proc/self/fd/"));
+        Assert.assertEquals("Should pin the resolved file", new File(dir, "echo").getCanonicalPath(), new File(resolved).getCanonicalPath());
+
+        // Spawned through the descriptor path, as the cache makes posix_spawn() do
+        final StringBuilder stdout = new StringBuilder();
+        NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        }, resolved, "hello").start();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals("hello\n", stdout.toString());
+    }
+
+    @Test
+    public void descriptorPathExcludesScripts() throws IOException
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+        cache = new ExecutableCache(TTL, true);
+        File a = dir("a");
+        script(a, "cmd");
+
+        Assert.assertEquals(a + "/cmd", cache.resolve("cmd", a.getPath(), new SpawnOptions(), 1000));
+    }
+
+    @Test
+    public void descriptorPathNotAllowed()
+    {
+        Assume.assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+        String dir = binDir("cat");
+        String plain = dir + "/cat";
+        cache = new ExecutableCache(TTL, true);
+
+        SpawnOptions closeFds = new SpawnOptions();
+        closeFds.setCloseFds(true);
+        Assert.assertEquals("closeFds would close the descriptor", plain, cache.resolve("cat", dir, closeFds, 1000));
+
+        SpawnOptions channel = new SpawnOptions();
+        channel.addChannel(3, false);
+        Assert.assertEquals("A channel could be dup2()'d over the descriptor", plain, cache.resolve("cat", dir, channel, 1000));
+
+        SpawnOptions inherited = new SpawnOptions();
+        inherited.inheritFd(3, 0);
+        Assert.assertEquals("An inherited descriptor could be dup2()'d over it", plain, cache.resolve("cat", dir, inherited, 1000));
+
+        Assert.assertTrue("The cached entry keeps its descriptor", cache.resolve("cat", dir, new SpawnOptions(), 1000).startsWith("/proc/self/fd/"));
+    }
+
+    private File dir(String name)
+    {
+        File dir = new File(root, name);
+        dir.mkdir();
+        return dir;
+    }
+
+    private static File script(File dir, String name) throws IOException
+    {
+        File file = new File(dir, name);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write("#!/bin/sh\nexit 0\n".getBytes());
+        }
+        finally {
+            os.close();
+        }
+        file.setExecutable(true);
+        return file;
+    }
+
+    private static String binDir(String command)
+    {
+        for (String dir : new String[] { "/usr/bin", "/bin" }) {
+            if (new File(dir, command).canExecute()) {
+                return dir;
+            }
+        }
+        Assume.assumeTrue(false);
+        return null;
+    }
+
+    private static String commandV(String command) throws InterruptedException
+    {
+        final StringBuilder stdout = new StringBuilder();
+        NuProcess process = new NuProcessBuilder(new NuAbstractProcessHandler() {
+            @Override
+            public void onStdout(ByteBuffer buffer, boolean closed)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                stdout.append(new String(bytes));
+            }
+        }, "sh", "-c", "command -v " + command).start();
+        Assert.assertEquals("Exit code mismatch", 0, process.waitFor(5, TimeUnit.SECONDS));
+        return stdout.toString().trim();
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}